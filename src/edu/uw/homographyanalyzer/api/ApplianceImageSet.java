@@ -1,5 +1,6 @@
 package edu.uw.homographyanalyzer.api;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -8,6 +9,7 @@ import java.util.Map;
 import org.opencv.core.Point;
 
 import android.graphics.Bitmap;
+import edu.uw.homographyanalyzer.reusable.features.FeatureMask;
 
 /**
  * Container abstract class to represent a set of images that correspond to a complete Appliance
@@ -24,6 +26,11 @@ public abstract class ApplianceImageSet {
 	 */
 	private final Map<String, List<Point>> mFeatures = new HashMap<String, List<Point>>();
 	
+	/**
+	 * Size of the image the features were annotated on, 0 if unknown
+	 */
+	private int mAnnotatedWidth, mAnnotatedHeight;
+	
 	/**
 	 * Adds a new feature to the appliance image set
 	 * 
@@ -44,6 +51,19 @@ public abstract class ApplianceImageSet {
 		mFeatures.put(featureName, hiddenPoints);
 	}
 	 
+	/**
+	 * Sets the size of the image the feature points were annotated on
+	 * 
+	 * @param width width of the annotated image in pixels
+	 * @param height height of the annotated image in pixels
+	 */
+	protected void setAnnotatedSize(int width, int height){
+		if (width <= 0 || height <= 0)
+			throw new IllegalArgumentException("Illegal annotated size " + width + "x" + height);
+		mAnnotatedWidth = width;
+		mAnnotatedHeight = height;
+	}
+	
 	/**
 	 * Each image set contains a known set of features that are distinguishable on the appliance <b>
 	 * To be able to reference the image shapes the all the names of the features must be known<b>
@@ -79,6 +99,42 @@ public abstract class ApplianceImageSet {
 		return hiddenPoints;
 	}
 	
+	/**
+	 * Creates a mask covering all the annotated features of the reference image, 
+	 * used to restrict detection on the reference image to the regions that matter
+	 * <b>Feature points are scaled from the annotated size to width x height,
+	 * the annotated size is the one set by the subclass or else the size of the 
+	 * reference image.  Without either the points are used as they are.
+	 * 
+	 * @param width width of the reference image the mask is for
+	 * @param height height of the reference image the mask is for
+	 * @param dilation number of pixels of the mask the features are grown by
+	 * @return mask of the union of all features
+	 */
+	public FeatureMask getFeatureMask(int width, int height, int dilation){
+		int annotatedWidth = mAnnotatedWidth;
+		int annotatedHeight = mAnnotatedHeight;
+		if (annotatedWidth == 0){
+			Bitmap reference = getReferenceImage();
+			annotatedWidth = reference == null ? width : reference.getWidth();
+			annotatedHeight = reference == null ? height : reference.getHeight();
+		}
+		float scaleX = (float) width / annotatedWidth;
+		float scaleY = (float) height / annotatedHeight;
+		
+		List<float[]> polygons = new ArrayList<float[]>(mFeatures.size());
+		for (List<Point> shape: mFeatures.values()){
+			float[] polygon = new float[shape.size() * 2];
+			int i = 0;
+			for (Point p: shape){
+				polygon[i++] = (float) p.x * scaleX;
+				polygon[i++] = (float) p.y * scaleY;
+			}
+			polygons.add(polygon);
+		}
+		return FeatureMask.fromPolygons(width, height, polygons, dilation);
+	}
+
 	/**
 	 * 
 	 * @return reference image for this appliance
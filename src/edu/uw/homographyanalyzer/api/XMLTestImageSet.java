@@ -43,6 +43,7 @@ public class XMLTestImageSet extends ApplianceImageSet {
 
 		int eventType = xpp.getEventType();
 		StringBuffer stringBuffer = new StringBuffer();
+		int rows = 0, cols = 0;
 		while (eventType != XmlPullParser.END_DOCUMENT)
 		{
 			if(eventType == XmlPullParser.START_DOCUMENT)
@@ -54,9 +55,15 @@ public class XMLTestImageSet extends ApplianceImageSet {
 				//				stringBuffer.append("\nSTART_TAG: "+ xpp.getName() + " Text: " + xpp.getText());
 				String object = xpp.getName();
 
+				// Size the points were annotated at
+				if (object.equals("nrows") && xpp.next() == XmlPullParser.TEXT)
+					rows = Integer.parseInt(xpp.getText().trim());
+				else if (object.equals("ncols") && xpp.next() == XmlPullParser.TEXT)
+					cols = Integer.parseInt(xpp.getText().trim());
+
 				// Iterate through all the tags 
 				// find all the objects
-				if (object.equals("object")){
+				else if (object.equals("object")){
 					int objectType = xpp.next();
 					String tagName = xpp.getName(); 
 
@@ -161,6 +168,10 @@ public class XMLTestImageSet extends ApplianceImageSet {
 			eventType = xpp.next();
 		}
 		stringBuffer.append("\n--- End XML ---");
+		if (rows > 0 && cols > 0)
+			setAnnotatedSize(cols, rows);
+		else
+			Log.e(TAG, "No image size, feature points can not be scaled");
 		Log.i(TAG, "event name: " + stringBuffer);
 	}
 
@@ -1,13 +1,21 @@
 package edu.uw.homographyanalyzer.main;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import android.content.Context;
 import android.content.res.TypedArray;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
 import android.net.Uri;
 import android.view.View;
 import android.view.ViewGroup;
@@ -18,9 +26,18 @@ import android.widget.ImageView;
 import com.example.homographyanalyzer.R;
 
 import edu.uw.homographyanalyzer.global.GlobalLogger;
+import edu.uw.homographyanalyzer.tools.BitmapPool;
+import edu.uw.homographyanalyzer.tools.ImageCache;
+import edu.uw.homographyanalyzer.tools.OutputWriter;
 
 /**
  * Adapter used to cycle through images added to by client services
+ * 
+ * Only thumbnails of gallery cell size are kept in memory.  The full 
+ * resolution image handed in is written to the cache directory in the
+ * background and loaded again by loadFullImage when it is expanded.  Images
+ * that can be decoded again from their source are not written, they are
+ * handed in as a thumbnail and a loader.
  * @author mhotan
  *
  */
@@ -34,12 +51,50 @@ public class ImageSelectionAdapter extends BaseAdapter {
 	// 
 	public static final int POSITION_BASE = 0;
 	public static final int POSITION_QUERY = 1;
+
+	// Size of a gallery cell
+	public static final int THUMBNAIL_WIDTH = 300;
+	public static final int THUMBNAIL_HEIGHT = 200;
 	
 	
 	HashMap<Integer, ImageView> toShowMap;
 	HashMap<Integer, Uri> uriMap;
 	
 	protected List<Bitmap> mBitMaps;
+
+	// Directory full resolution images are kept in
+	private static final String FULL_DIR = "gallery";
+	private final File mFullDir;
+	// Names files in mFullDir uniquely
+	private int mFullCount;
+	// Full resolution version of each thumbnail larger then a cell
+	private final HashMap<Bitmap, FullImage> mFullImages;
+	// Thumbnails this adapter owns, returned to the BitmapPool when replaced
+	private final HashSet<Bitmap> mOwned;
+	private final Paint mThumbnailPaint;
+
+	/**
+	 * Full resolution image of a thumbnail, only referenced by the writer
+	 * until it is on disk, or loaded from its source
+	 */
+	private static class FullImage {
+		// File written to, or only the ImageCache key if there is a loader
+		private final String mPath;
+		private final Future<?> mWritten;
+		private final Callable<Bitmap> mLoader;
+
+		private FullImage(String path, Future<?> written){
+			mPath = path;
+			mWritten = written;
+			mLoader = null;
+		}
+
+		private FullImage(String key, Callable<Bitmap> loader){
+			mPath = key;
+			mWritten = null;
+			mLoader = loader;
+		}
+	}
 	
 	//Default Search Image
 	protected final Bitmap mPlaceHolder;
@@ -54,6 +109,12 @@ public class ImageSelectionAdapter extends BaseAdapter {
 	public ImageSelectionAdapter(Context galleryContext) {
 		mContext = galleryContext;	
 		mBitMaps = new ArrayList<Bitmap>(2);
+		mFullImages = new HashMap<Bitmap, FullImage>();
+		mOwned = new HashSet<Bitmap>();
+		mThumbnailPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+		mFullDir = new File(mContext.getCacheDir(), FULL_DIR);
+		// Left over from an earlier session
+		clearFullDir();
 		mPlaceHolder = BitmapFactory.decodeResource(mContext.getResources(), default_search_id);
 		
 		// Set the gallery item backgrounf image
@@ -100,7 +161,7 @@ public class ImageSelectionAdapter extends BaseAdapter {
 	    //specify the bitmap at this position in the array
 	    imageView.setImageBitmap(mBitMaps.get(position));
 	    //set layout options
-	    imageView.setLayoutParams(new Gallery.LayoutParams(300, 200));
+	    imageView.setLayoutParams(new Gallery.LayoutParams(THUMBNAIL_WIDTH, THUMBNAIL_HEIGHT));
 	    //scale type within view area
 	    imageView.setScaleType(ImageView.ScaleType.FIT_CENTER);
 	    //set default gallery item background
@@ -115,9 +176,143 @@ public class ImageSelectionAdapter extends BaseAdapter {
 	 * @param position position to show image at
 	 */
 	public void setImage(Bitmap image, int position) {
-		setImageWithoutNotif(image, position);
+		if (image != null && position >= 0 && position < mBitMaps.size()
+				&& mBitMaps.get(position) != image)
+			releaseImage(mBitMaps.get(position));
+		setImageWithoutNotif(toThumbnail(image, false), position);
 		notifyDataSetChanged();
 	}
+
+	/**
+	 * Sets a thumbnail whose full resolution image is decoded again from its
+	 * source when it is expanded, nothing is written
+	 * @param thumbnail image of at most cell size, the adapter owns it
+	 * @param position position to show image at
+	 * @param fullImage decodes the full image, called by loadFullImage
+	 */
+	public void setImage(Bitmap thumbnail, int position, Callable<Bitmap> fullImage) {
+		if (thumbnail == null || fullImage == null)
+			throw new IllegalArgumentException("NULL image");
+		if (position >= 0 && position < mBitMaps.size() && mBitMaps.get(position) != thumbnail)
+			releaseImage(mBitMaps.get(position));
+		synchronized (mFullImages){
+			mFullImages.put(thumbnail, new FullImage(ImageCache.newKey(TAG), fullImage));
+			mOwned.add(thumbnail);
+		}
+		setImageWithoutNotif(thumbnail, position);
+		notifyDataSetChanged();
+	}
+
+	/**
+	 * Scales image down to a gallery cell and queues the full resolution 
+	 * image to be written to the cache directory.  Images that already are 
+	 * thumbnails or fit a cell are returned as they are.
+	 * @param image full resolution image
+	 * @param owned true if the adapter takes over image, it is returned to the 
+	 * 			BitmapPool once written or replaced.  False leaves it untouched.
+	 * @return thumbnail to show
+	 */
+	protected Bitmap toThumbnail(Bitmap image, boolean owned){
+		if (image == null || image == mPlaceHolder) return image;
+		synchronized (mFullImages){
+			if (mFullImages.containsKey(image) || mOwned.contains(image)) return image;
+		}
+		int width = image.getWidth();
+		int height = image.getHeight();
+		double scale = Math.min((double) THUMBNAIL_WIDTH / width, 
+				(double) THUMBNAIL_HEIGHT / height);
+		if (scale >= 1.0 || (!mFullDir.isDirectory() && !mFullDir.mkdirs())){
+			if (scale < 1.0)
+				GlobalLogger.getInstance().loge(TAG + " Can not create " + mFullDir);
+			if (owned){
+				synchronized (mFullImages){
+					mOwned.add(image);
+				}
+			}
+			return image;
+		}
+		// Pooled buffer, steady state runs do not allocate thumbnails
+		int thumbWidth = Math.max(1, (int) Math.round(width * scale));
+		int thumbHeight = Math.max(1, (int) Math.round(height * scale));
+		Bitmap thumbnail = BitmapPool.obtain(thumbWidth, thumbHeight, Bitmap.Config.ARGB_8888);
+		new Canvas(thumbnail).drawBitmap(image, null, 
+				new Rect(0, 0, thumbWidth, thumbHeight), mThumbnailPaint);
+		String path = new File(mFullDir, "full_" + (mFullCount++) + ".png").getPath();
+		FullImage full = new FullImage(path, owned ? OutputWriter.submitAndRelease(image, path)
+				: OutputWriter.submit(image, path));
+		synchronized (mFullImages){
+			mFullImages.put(thumbnail, full);
+			mOwned.add(thumbnail);
+		}
+		return thumbnail;
+	}
+
+	/**
+	 * Loads the full resolution image of a thumbnail shown by this adapter.
+	 * Waits for the image to be written and decodes it, must not be called 
+	 * on the UI thread
+	 * @param thumbnail image returned by getImage or getItem
+	 * @return full resolution image, thumbnail if there is none
+	 */
+	public Bitmap loadFullImage(Bitmap thumbnail){
+		FullImage full;
+		synchronized (mFullImages){
+			full = mFullImages.get(thumbnail);
+		}
+		if (full == null) return thumbnail;
+		// Expanded images are kept within the budget of the ImageCache
+		Bitmap cached = ImageCache.getBitmap(full.mPath);
+		if (cached != null) return cached;
+		if (full.mLoader != null){
+			Bitmap image = null;
+			try {
+				image = full.mLoader.call();
+			} catch (Exception e) {
+				GlobalLogger.getInstance().loge(TAG + " Full image could not be loaded " + e);
+			}
+			if (image == null) return thumbnail;
+			ImageCache.putBitmap(full.mPath, image);
+			return image;
+		}
+		try {
+			full.mWritten.get();
+		} catch (InterruptedException e) {
+			return thumbnail;
+		} catch (ExecutionException e) {
+			GlobalLogger.getInstance().loge(TAG + " Full image was not written " + e.getCause());
+			return thumbnail;
+		}
+		Bitmap image = BitmapFactory.decodeFile(full.mPath);
+		if (image == null) return thumbnail;
+		ImageCache.putBitmap(full.mPath, image);
+		return image;
+	}
+
+	/**
+	 * Forgets a thumbnail that is not shown anymore and its full resolution 
+	 * image, an owned thumbnail is returned to the BitmapPool
+	 */
+	protected void releaseImage(Bitmap thumbnail){
+		FullImage full;
+		boolean owned;
+		synchronized (mFullImages){
+			full = mFullImages.remove(thumbnail);
+			owned = mOwned.remove(thumbnail);
+		}
+		if (owned) BitmapPool.release(thumbnail);
+		if (full == null) return;
+		ImageCache.remove(full.mPath);
+		// Files still being written are removed with the next session
+		if (full.mWritten != null && full.mWritten.isDone())
+			new File(full.mPath).delete();
+	}
+
+	private void clearFullDir(){
+		File[] files = mFullDir.listFiles();
+		if (files == null) return;
+		for (File f : files)
+			f.delete();
+	}
 	
 	/**
 	 * Adds with notifying any owning view
@@ -158,7 +353,7 @@ public class ImageSelectionAdapter extends BaseAdapter {
 	 */
 	public void addAllImagesToEnd(List<Bitmap> images){
 		for (int i = 0; i < images.size(); ++i)
-			setImageWithoutNotif(images.get(i), mBitMaps.size());
+			setImageWithoutNotif(toThumbnail(images.get(i), false), mBitMaps.size());
 		notifyDataSetChanged();
 	}
 	
@@ -175,6 +370,8 @@ public class ImageSelectionAdapter extends BaseAdapter {
 	 */
 	public void reset(){
 		// Reset image to look 
+		for (Bitmap b : mBitMaps)
+			releaseImage(b);
 		mBitMaps.clear();
 	}
 	
@@ -1,24 +1,32 @@
 package edu.uw.homographyanalyzer.main;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.Callable;
 
-import org.opencv.android.Utils;
+import org.opencv.core.CvType;
 import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.xmlpull.v1.XmlPullParserException;
 
 import android.app.Activity;
 import android.content.ContentResolver;
 import android.content.Intent;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Environment;
 import android.util.Log;
 import android.util.Pair;
 import android.view.Menu;
+import android.view.MenuItem;
+import android.view.SubMenu;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.widget.AdapterView;
@@ -35,8 +43,11 @@ import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.example.homographyanalyzer.BuildConfig;
 import com.example.homographyanalyzer.R;
 
+import edu.uw.homographyanalyzer.api.ApplianceImageSet;
+import edu.uw.homographyanalyzer.api.XMLTestImageSet;
 import edu.uw.homographyanalyzer.camera.BaseImageTaker;
 import edu.uw.homographyanalyzer.camera.ExternalApplication;
 import edu.uw.homographyanalyzer.global.GlobalLogger;
@@ -45,8 +56,18 @@ import edu.uw.homographyanalyzer.main.ocr.DisplayReaderActivity;
 import edu.uw.homographyanalyzer.quicktransform.TransformInfo;
 import edu.uw.homographyanalyzer.reusable.ComputerVision;
 import edu.uw.homographyanalyzer.reusable.ComputerVisionCallback;
+import edu.uw.homographyanalyzer.reusable.FrameStore;
+import edu.uw.homographyanalyzer.reusable.TiledProcessor;
 import edu.uw.homographyanalyzer.reusable.TransformationBuilder;
-import edu.uw.homographyanalyzer.tools.Utility;
+import edu.uw.homographyanalyzer.reusable.features.AdaptiveFastDetector;
+import edu.uw.homographyanalyzer.tools.BitmapPool;
+import edu.uw.homographyanalyzer.tools.ImageCache;
+import edu.uw.homographyanalyzer.tools.ImageLoader;
+import edu.uw.homographyanalyzer.tools.MatCodec;
+import edu.uw.homographyanalyzer.tools.MatPool;
+import edu.uw.homographyanalyzer.tools.MatTracker;
+import edu.uw.homographyanalyzer.tools.OutputWriter;
+import edu.uw.homographyanalyzer.tools.SharedMat;
 
 /*
  * Sample Activity meant to demonstrate how to use the implemented
@@ -111,9 +132,42 @@ OnItemSelectedListener, OnSeekBarChangeListener {
 	public static final String DATA_PATH = Environment
 			.getExternalStorageDirectory().toString() + "/HomographyAnalyzer/";
 	public static final String WARPED_PATH = DATA_PATH + "/warped_img.jpg";
+	// Directory in the cache ImageCache evicts to
+	private static final String EVICTED_DIR = "evicted";
+	// Directory in the cache the frames of decoded photos are kept in
+	private static final String FRAMES_DIR = "frames";
+	
+	// Menu item switching tiled full resolution analysis on and off
+	private static final int MENU_FULL_RESOLUTION = Menu.FIRST;
+	// Menu item trading ADAPTIVE_FAST key points for a shorter tuning budget
+	private static final int MENU_LOW_LATENCY_DETECTION = Menu.FIRST + 1;
+	private static final long LOW_LATENCY_BUDGET_MILLIS = 50;
+	// Menu item capping key points per image to the MAX_KEY_POINTS best spread ones
+	private static final int MENU_CAP_KEY_POINTS = Menu.FIRST + 2;
+	private static final int MAX_KEY_POINTS = 500;
+	// Sub menu choosing the annotated appliance the reference image shows,
+	// items are MENU_APPLIANCE + index into APPLIANCE_NAMES, NO_APPLIANCE for none
+	private static final int MENU_REFERENCE_APPLIANCE = Menu.FIRST + 4;
+	private static final int GROUP_APPLIANCE = Menu.FIRST;
+	private static final int MENU_APPLIANCE = Menu.FIRST + 100;
+	private static final int NO_APPLIANCE = -1;
+	private static final String[] APPLIANCE_NAMES = {
+		"Frigidaire dryer", "Mike's microwave", "Bryan's stove", "Whirlpool washer"};
+	private static final int[] APPLIANCE_XML_IDS = {
+		R.xml.frigidaire_dryer_faqe7072lw, R.xml.mike_microwave, 
+		R.xml.russel_stove, R.xml.whirlpool_washer};
 	
 	// CV library ready to be used
 	private boolean mCVLibraryInitialized = false;
+	// Images are analysed tile by tile at full resolution
+	private boolean mTiledMode = false;
+	// ADAPTIVE_FAST tunes its threshold within LOW_LATENCY_BUDGET_MILLIS
+	private boolean mLowLatencyDetection = false;
+	// At most MAX_KEY_POINTS key points are kept per image
+	private boolean mCapKeyPoints = false;
+	// Appliance detection on the reference image is restricted to, null for none
+	private int mApplianceIndex = NO_APPLIANCE;
+	private ApplianceImageSet mAppliance;
 
 	private static final String PREFIX_TAG = "[" + TAG + "] ";
 	public static final String EXTRA_POSITION = PREFIX_TAG + "POSITION";
@@ -125,11 +179,9 @@ OnItemSelectedListener, OnSeekBarChangeListener {
 	public static final String QUERY_SOURCE_EXTRA = PREFIX_TAG + "QUERY_SOURCE";
 	public static final String WARPED_SOURCE_EXTRA = PREFIX_TAG + "WARPED_SOURCE_EXTRA";
 	
-	//Target width for reading bitmaps in 
-	private static final int TARGET_WIDTH = 600;
-	private static final int TARGET_HEIGHT= 800;
-	
 	private Intent ocrIntent;
+	// Pending write of mWarpedImage for OCR, null if none
+	private AsyncTask<Void, Void, Uri> mOcrSaver;
 	
 	// adapter to display images
 	private OrganizedImageSelectionAdapter mImageAdapter;
@@ -154,6 +206,11 @@ OnItemSelectedListener, OnSeekBarChangeListener {
 	private TextView mExpandedImageText;
 
 	private ImageView expandedImage;
+	// Loads the full resolution image of the expanded thumbnail
+	private AsyncTask<Void, Void, Bitmap> mExpandLoader;
+	// Decodes the picked image of each gallery position again when expanded
+	private final HashMap<Integer, Callable<Bitmap>> mFullImageLoaders = 
+			new HashMap<Integer, Callable<Bitmap>>();
 
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
@@ -206,6 +263,11 @@ OnItemSelectedListener, OnSeekBarChangeListener {
 
 		//		(SlidingDrawer) findViewById(R.id.slidingDrawer);
 
+		// Images evicted from memory are kept in the cache directory
+		ImageCache.setDiskDirectory(new File(getCacheDir(), EVICTED_DIR));
+		// Debug builds record where Mats come from and report unreleased ones
+		MatTracker.setEnabled(BuildConfig.DEBUG);
+
 		// Adpater for managing images to be displayed in gallery
 		mImageAdapter = new OrganizedImageSelectionAdapter(this);
 
@@ -251,6 +313,7 @@ OnItemSelectedListener, OnSeekBarChangeListener {
 						expandedImage.setImageBitmap(image);
 						String message = mImageAdapter.getTitle(image);
 						mExpandedImageText.setText(message);
+						expandFullImage(image);
 					}
 				}
 				return false;
@@ -258,6 +321,18 @@ OnItemSelectedListener, OnSeekBarChangeListener {
 		});
 	}
 
+	@Override
+	public void onLowMemory(){
+		super.onLowMemory();
+		MatTracker.report();
+	}
+
+	@Override
+	protected void onDestroy(){
+		super.onDestroy();
+		MatTracker.report();
+	}
+
 	/**
 	 * Initializes the features drop down menu in sliding menu 
 	 * @param s Spinner to contain all Feaatures
@@ -306,6 +381,56 @@ OnItemSelectedListener, OnSeekBarChangeListener {
 		s.setOnItemSelectedListener(this);
 	}
 
+	/**
+	 * Replaces the thumbnail shown in the expanded view by its full 
+	 * resolution image once that is loaded
+	 * @param thumbnail thumbnail currently expanded
+	 */
+	private void expandFullImage(final Bitmap thumbnail){
+		if (mExpandLoader != null) mExpandLoader.cancel(false);
+		mExpandLoader = new AsyncTask<Void, Void, Bitmap>() {
+			@Override
+			protected Bitmap doInBackground(Void... params) {
+				return mImageAdapter.loadFullImage(thumbnail);
+			}
+
+			@Override
+			protected void onPostExecute(Bitmap full) {
+				mExpandLoader = null;
+				if (full != thumbnail) expandedImage.setImageBitmap(full);
+			}
+		};
+		mExpandLoader.execute();
+	}
+
+	/**
+	 * Warps the reference at full resolution for OCR.  Sources are read tile
+	 * by tile, only the output OCR reads is held as a whole.
+	 * @return Uri of WARPED_PATH, null if it could not be written
+	 */
+	private Uri saveFullResolutionWarp(){
+		Size size = tranBuilder.getFullResolutionSize();
+		final Mat full = MatPool.obtain((int) size.height, (int) size.width, CvType.CV_8UC4);
+		try {
+			tranBuilder.warpFullResolution(new TiledProcessor.TileSink() {
+				@Override
+				public void onTile(Mat tile, Rect region) {
+					Mat target = full.submat(region);
+					tile.copyTo(target);
+					target.release();
+				}
+			});
+			MatCodec.write(full, WARPED_PATH, MatCodec.Format.PNG, 
+					MatCodec.DEFAULT_PNG_COMPRESSION);
+			return Uri.fromFile(new File(WARPED_PATH));
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to save full resolution warp: " + e);
+			return null;
+		} finally {
+			MatPool.release(full);
+		}
+	}
+
 	/**
 	 * Starts activity to obtain image for further processing
 	 * Img address is set to 
@@ -341,13 +466,12 @@ OnItemSelectedListener, OnSeekBarChangeListener {
 		// obtain a Bitmap image of object
 		// Getting source of the image
 
-		Bitmap image = null;
+		Uri pickedUri = null;
 		//Decode File path f
 		if (filePath == null) {
 			//query the data
-			Uri pickedUri = data.getExtras().getParcelable(
+			pickedUri = data.getExtras().getParcelable(
 					BaseImageTaker.INTENT_RESULT_IMAGE_URI);
-			image = getBitmapFromURIviaInputStream(getContentResolver(), pickedUri);
 
 			if (ocrIntent == null){
 				// TODO Add class for this intent
@@ -363,102 +487,130 @@ OnItemSelectedListener, OnSeekBarChangeListener {
 				ocrIntent.putExtra(QUERY_SOURCE_TYPE_EXTRA, URI_TYPE_EXTRA);
 				ocrIntent.putExtra(QUERY_SOURCE_EXTRA, pickedUri);
 			}
-			
-			
-		} else{
-			// Assign target dimension to read in images
-			int targetWidth = TARGET_HEIGHT;
-			int targetHeight = TARGET_WIDTH;
-
-			
-			BitmapFactory.Options bmpOptions = new BitmapFactory.Options();
-			bmpOptions.inJustDecodeBounds = true;
-			BitmapFactory.decodeFile(filePath, bmpOptions);
-			int currHeight = bmpOptions.outHeight;
-			int currWidth = bmpOptions.outWidth;
-
-			int sampleSize = 1;
-			{
-				//use either width or height
-				if ((currWidth>currHeight))
-					sampleSize = Math.round((float)currHeight/(float)targetHeight);
-				else
-					sampleSize = Math.round((float)currWidth/(float)targetWidth);
-			}
-
-			bmpOptions.inSampleSize = sampleSize;
-			bmpOptions.inJustDecodeBounds = false;
-			//decode the file with restricted sizee
-			image = BitmapFactory.decodeFile(filePath, bmpOptions);
 		}
 
-		//Update the adapter and transform builder
-		if (image == null){
+		if (pickedUri == null && filePath == null){
 			message = "Null image cannot display";
 			Log.e(TAG, message);
 			return;
-		} else {
-			// Display the image in the gallery
-			mImageAdapter.setImage(image, position);
-			
-			// Update the transformation process
+		}
+		
+		// The builder decodes the image once in the background, the gallery 
+		// shows a thumbnail of that decode once its features are found.  
+		// Only an expanded image is decoded again from the source.
+		mFullImageLoaders.put(position, fullImageLoader(pickedUri, filePath));
+		if (pickedUri != null){
 			if (position == 0)
-				tranBuilder.setReferenceImage(image);
+				tranBuilder.setReferenceImage(getContentResolver(), pickedUri);
 			else if (position == 1)
-				tranBuilder.setOtherImage(image);
-			
-		}
+				tranBuilder.setOtherImage(getContentResolver(), pickedUri);
+		} else if (position == 0)
+			tranBuilder.setReferenceImage(filePath);
+		else if (position == 1)
+			tranBuilder.setOtherImage(filePath);
 	}
 
 	/**
-	 * 
-	 * @param uri
-	 * @return
+	 * @return loader of the working resolution image of uri, or of path if
+	 * 			uri is null
 	 */
-	public static Bitmap getBitmapFromURIviaInputStream(ContentResolver resolver, Uri uri){
-
-		Bitmap image = null;
-		try {
-			int targetWidth = TARGET_WIDTH;
-			int targetHeight = TARGET_HEIGHT;
-
-			BitmapFactory.Options bmpOptions = new BitmapFactory.Options();
-			bmpOptions.inJustDecodeBounds = true;
-			InputStream is = resolver.openInputStream(uri);
-			BitmapFactory.decodeStream(is,null, bmpOptions);
-			int currHeight = bmpOptions.outHeight;
-			int currWidth = bmpOptions.outWidth;
-
-			is.close();
-			InputStream is2 = resolver.openInputStream(uri);
-
-			int sampleSize = 1;
-			{
-				//use either width or height
-				if (currWidth>currHeight)
-					sampleSize = Math.round((float)currHeight/(float)targetHeight);
-				else
-					sampleSize = Math.round((float)currWidth/(float)targetWidth);
+	private Callable<Bitmap> fullImageLoader(final Uri uri, final String path){
+		final ContentResolver resolver = getContentResolver();
+		return new Callable<Bitmap>() {
+			@Override
+			public Bitmap call() {
+				return uri != null ? ImageLoader.load(resolver, uri) : ImageLoader.load(path);
 			}
-
-			bmpOptions.inSampleSize = sampleSize;
-			bmpOptions.inJustDecodeBounds = false;
-			//decode the file with restricted sizee
-			image = BitmapFactory.decodeStream(is2, null, bmpOptions);
-			is2.close();
-			return image;
-		} catch (IOException e) {
-			Log.e(TAG, "Exception when reading: "+ e);
-			return image;
-		}
+		};
 	}
 
 	@Override
 	public boolean onCreateOptionsMenu(Menu menu) {
 		getMenuInflater().inflate(R.menu.activity_homography, menu);
+		menu.add(Menu.NONE, MENU_FULL_RESOLUTION, Menu.NONE, "Full resolution")
+				.setCheckable(true).setChecked(mTiledMode);
+		menu.add(Menu.NONE, MENU_LOW_LATENCY_DETECTION, Menu.NONE, "Low latency detection")
+				.setCheckable(true).setChecked(mLowLatencyDetection);
+		menu.add(Menu.NONE, MENU_CAP_KEY_POINTS, Menu.NONE, "Cap key points")
+				.setCheckable(true).setChecked(mCapKeyPoints);
+		SubMenu appliances = menu.addSubMenu(Menu.NONE, MENU_REFERENCE_APPLIANCE, 
+				Menu.NONE, "Reference appliance");
+		appliances.add(GROUP_APPLIANCE, MENU_APPLIANCE + NO_APPLIANCE, Menu.NONE, "None")
+				.setChecked(mApplianceIndex == NO_APPLIANCE);
+		for (int i = 0; i < APPLIANCE_NAMES.length; ++i)
+			appliances.add(GROUP_APPLIANCE, MENU_APPLIANCE + i, Menu.NONE, APPLIANCE_NAMES[i])
+					.setChecked(mApplianceIndex == i);
+		appliances.setGroupCheckable(GROUP_APPLIANCE, true, true);
+		return true;
+	}
+
+	@Override
+	public boolean onOptionsItemSelected(MenuItem item) {
+		// Options apply to images selected from now on unless noted
+		if (item.getGroupId() == GROUP_APPLIANCE){
+			if (!selectAppliance(item.getItemId() - MENU_APPLIANCE)) return true;
+			item.setChecked(true);
+			if (tranBuilder != null) applyOptions();
+			return true;
+		}
+		switch (item.getItemId()) {
+		case MENU_FULL_RESOLUTION:
+			mTiledMode = !item.isChecked();
+			item.setChecked(mTiledMode);
+			break;
+		case MENU_LOW_LATENCY_DETECTION:
+			mLowLatencyDetection = !item.isChecked();
+			item.setChecked(mLowLatencyDetection);
+			break;
+		case MENU_CAP_KEY_POINTS:
+			mCapKeyPoints = !item.isChecked();
+			item.setChecked(mCapKeyPoints);
+			break;
+		default:
+			return super.onOptionsItemSelected(item);
+		}
+		if (tranBuilder != null) applyOptions();
 		return true;
 	}
 
+	/**
+	 * Hands the options of the menu to the builder
+	 */
+	private void applyOptions(){
+		tranBuilder.setTiledMode(mTiledMode);
+		tranBuilder.setAdaptiveDetection(AdaptiveFastDetector.DEFAULT_TARGET_COUNT, 
+				mLowLatencyDetection ? LOW_LATENCY_BUDGET_MILLIS 
+						: AdaptiveFastDetector.DEFAULT_BUDGET_MILLIS);
+		// Images already set are detected again when the cap changes
+		tranBuilder.setMaxKeyPoints(mCapKeyPoints ? MAX_KEY_POINTS : 0, mCapKeyPoints);
+		tranBuilder.setReferenceRegions(mAppliance == null ? null 
+				: APPLIANCE_NAMES[mApplianceIndex], mAppliance);
+	}
+
+	/**
+	 * Loads the annotations of an appliance, reference images selected 
+	 * afterwards are only searched for features in its annotated regions
+	 * @param index index into APPLIANCE_NAMES, NO_APPLIANCE for none
+	 * @return true if the appliance was selected
+	 */
+	private boolean selectAppliance(int index){
+		if (index == NO_APPLIANCE){
+			mApplianceIndex = NO_APPLIANCE;
+			mAppliance = null;
+			return true;
+		}
+		try {
+			mAppliance = new XMLTestImageSet(this, APPLIANCE_XML_IDS[index]);
+			mApplianceIndex = index;
+			return true;
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to read annotations of " + APPLIANCE_NAMES[index] + ": " + e);
+		} catch (XmlPullParserException e) {
+			Log.e(TAG, "Illformatted annotations of " + APPLIANCE_NAMES[index] + ": " + e);
+		}
+		return false;
+	}
+
 	@Override
 	public void logd(String msg) {
 		Log.d(TAG, msg);
@@ -476,6 +628,10 @@ OnItemSelectedListener, OnSeekBarChangeListener {
 		initializeFeatures(featureDetectorSpinner);
 		initializeMethods(homoMethodSpinner);
 		tranBuilder.setTransformationStateListener(this);
+		// Photos taken again are mapped from the cache instead of decoded, 
+		// the oldest frames go once they exceed FrameStore.DEFAULT_MAX_BYTES
+		tranBuilder.setFrameStore(new FrameStore(new File(getCacheDir(), FRAMES_DIR)));
+		applyOptions();
 		mCVLibraryInitialized = true;
 	}
 
@@ -526,11 +682,41 @@ OnItemSelectedListener, OnSeekBarChangeListener {
 			// No support for filePath 
 			if (ocrIntent == null) return;
 
-			// TODO
-			Bitmap warp = tranBuilder.getWarpedImages().first;
-			Uri uri = Utility.saveBitmapToFile(warp, WARPED_PATH);
-			ocrIntent.putExtra(WARPED_SOURCE_EXTRA, uri);
-			startActivity(ocrIntent);
+			final Bitmap warped = mImageAdapter.getWarpedImage();
+			if (warped == null || mOcrSaver != null) return;
+			final boolean fullResolution = tranBuilder.hasFullResolution();
+
+			// Written in the background, OCR starts once the file is complete
+			ocrButton.setEnabled(false);
+			mOcrSaver = new AsyncTask<Void, Void, Uri>() {
+				@Override
+				protected Uri doInBackground(Void... params) {
+					if (fullResolution) return saveFullResolutionWarp();
+					// The gallery only keeps a thumbnail in memory
+					Bitmap full = mImageAdapter.loadFullImage(warped);
+					try {
+						return OutputWriter.write(full, WARPED_PATH, 
+								Bitmap.CompressFormat.PNG, 100);
+					} catch (IOException e) {
+						Log.e(TAG, "Unable to save warped image: " + e);
+						return null;
+					}
+				}
+
+				@Override
+				protected void onPostExecute(Uri uri) {
+					mOcrSaver = null;
+					ocrButton.setEnabled(true);
+					if (uri == null){
+						Toast.makeText(MainActivity.this, "Unable to save warped image", 
+								Toast.LENGTH_SHORT).show();
+						return;
+					}
+					ocrIntent.putExtra(WARPED_SOURCE_EXTRA, uri);
+					startActivity(ocrIntent);
+				}
+			};
+			mOcrSaver.execute();
 		}
 	}
 
@@ -576,15 +762,87 @@ OnItemSelectedListener, OnSeekBarChangeListener {
 		tranBuilder.setRansacThreshhold(nThreshhold);
 	}
 
+	/**
+	 * Renders an image of the storage in the background and shows it in 
+	 * the gallery, nothing is drawn on the main thread
+	 */
+	private abstract class OverlayRenderer extends AsyncTask<Void, Void, Bitmap> {
+
+		@Override
+		protected void onPostExecute(Bitmap overlay) {
+			if (overlay != null) show(overlay);
+		}
+
+		/**
+		 * @param overlay rendered image, the adapter owns it from now on
+		 */
+		protected abstract void show(Bitmap overlay);
+	}
+
+	/**
+	 * Shows a thumbnail of the image the builder decoded for a gallery 
+	 * position, rendered in the background from the decoded color image
+	 * @param image color image of position, released here
+	 */
+	private void showThumbnail(final SharedMat image, final int position){
+		final Callable<Bitmap> fullImage = mFullImageLoaders.get(position);
+		if (image == null || fullImage == null){
+			SharedMat.release(image);
+			return;
+		}
+		new OverlayRenderer() {
+			@Override
+			protected Bitmap doInBackground(Void... params) {
+				Mat color = image.view();
+				double scale = Math.min(1.0, Math.min(
+						(double) ImageSelectionAdapter.THUMBNAIL_WIDTH / color.cols(), 
+						(double) ImageSelectionAdapter.THUMBNAIL_HEIGHT / color.rows()));
+				Mat thumbnail = MatPool.obtain(Math.max(1, (int) Math.round(color.rows() * scale)),
+						Math.max(1, (int) Math.round(color.cols() * scale)), color.type());
+				Imgproc.resize(color, thumbnail, thumbnail.size(), 0, 0, Imgproc.INTER_AREA);
+				image.release();
+				Bitmap disp = BitmapPool.fromMat(thumbnail);
+				MatPool.release(thumbnail);
+				return disp;
+			}
+
+			@Override
+			protected void show(Bitmap thumbnail) {
+				mImageAdapter.setImage(thumbnail, position, fullImage);
+			}
+		}.execute();
+	}
+
+	/**
+	 * @return Bitmap of the overlay, null if there is none
+	 */
+	private static Bitmap toBitmap(SharedMat overlay){
+		if (overlay == null) return null;
+		// The cached overlay is converted in place, not copied
+		Bitmap disp = BitmapPool.fromMat(overlay.view());
+		overlay.release();
+		return disp;
+	}
+
 	@Override
-	public void OnHomographyStored(TransformInfo storage) {
+	public void OnHomographyStored(final TransformInfo storage) {
 		// Draw the key point matches and put in gallery
-		Mat matches = storage.getMatchImage();
-		// Must convert to Bitmap from Mat
-		Bitmap disp = Bitmap.createBitmap(matches.cols(), matches.rows(),
-				Bitmap.Config.ARGB_8888); // Android uses ARGB_8888
-		Utils.matToBitmap(matches, disp);
-		mImageAdapter.setPutativeImageWithLinesImage(disp);
+		new OverlayRenderer() {
+			@Override
+			protected Bitmap doInBackground(Void... params) {
+				Mat matches = storage.getMatchImage();
+				if (matches == null) return null;
+				// Must convert to Bitmap from Mat, the adapter owns the Bitmap
+				Bitmap disp = BitmapPool.fromMat(matches);
+				MatPool.release(matches);
+				return disp;
+			}
+
+			@Override
+			protected void show(Bitmap overlay) {
+				mImageAdapter.setPutativeImageWithLinesImage(overlay);
+			}
+		}.execute();
 		
 		// Ready to show display reset text
 		mExpandedImageText.setText(R.string.show_exp_image);
@@ -599,18 +857,39 @@ OnItemSelectedListener, OnSeekBarChangeListener {
 	}
 
 	@Override
-	public void OnKeypointsFoundForReference(Mat image) {
-		Bitmap disp = Bitmap.createBitmap(image.cols(), image.rows(),
-				Bitmap.Config.ARGB_8888); // Android uses ARGB_8888
-		Utils.matToBitmap(image, disp);
-		mImageAdapter.setReferenceKeyPointImage(disp);
+	public void OnKeypointsFoundForReference(final TransformInfo storage) {
+		// The storage reference is the image picked for the query position
+		showThumbnail(storage.getReferenceView(), ImageSelectionAdapter.POSITION_QUERY);
+		new OverlayRenderer() {
+			@Override
+			protected Bitmap doInBackground(Void... params) {
+				// Render only as large as the gallery shows it
+				return toBitmap(storage.getRefKeyPointView(ImageSelectionAdapter.THUMBNAIL_WIDTH, 
+						ImageSelectionAdapter.THUMBNAIL_HEIGHT));
+			}
+
+			@Override
+			protected void show(Bitmap overlay) {
+				mImageAdapter.setReferenceKeyPointImage(overlay);
+			}
+		}.execute();
 	}
 
 	@Override
-	public void OnKeypointsFoundForOther(Mat image) {
-		Bitmap disp = Bitmap.createBitmap(image.cols(), image.rows(),
-				Bitmap.Config.ARGB_8888); // Android uses ARGB_8888
-		Utils.matToBitmap(image, disp);
-		mImageAdapter.setOtherKeyPointImage(disp);
+	public void OnKeypointsFoundForOther(final TransformInfo storage) {
+		showThumbnail(storage.getOtherView(), ImageSelectionAdapter.POSITION_BASE);
+		new OverlayRenderer() {
+			@Override
+			protected Bitmap doInBackground(Void... params) {
+				// Render only as large as the gallery shows it
+				return toBitmap(storage.getOtherKeyPointView(ImageSelectionAdapter.THUMBNAIL_WIDTH, 
+						ImageSelectionAdapter.THUMBNAIL_HEIGHT));
+			}
+
+			@Override
+			protected void show(Bitmap overlay) {
+				mImageAdapter.setOtherKeyPointImage(overlay);
+			}
+		}.execute();
 	}
 }
@@ -6,6 +6,12 @@ import java.util.List;
 import android.content.Context;
 import android.graphics.Bitmap;
 
+/**
+ * Gallery of the fixed set of images a transformation produces, every image
+ * is kept as a thumbnail and loaded at full resolution when expanded.
+ * Rendered artefacts (key points, matches, warps) are owned by the adapter
+ * and go back to the BitmapPool once replaced.
+ */
 public class OrganizedImageSelectionAdapter extends ImageSelectionAdapter {
 
 	private static final String REFERENCE = "Reference Image";
@@ -72,50 +78,67 @@ public class OrganizedImageSelectionAdapter extends ImageSelectionAdapter {
 	
 	public void setReferenceImage(Bitmap ref){
 		if (ref == null) return;
-		mReference = ref;
+		mReference = replace(mReference, ref, false);
 		buildImageViews();
 	}
 	
 	public void setOtherImage(Bitmap other){
 		if (other == null) return;
-		mOther = other;
+		mOther = replace(mOther, other, false);
 		buildImageViews();
 	}
 	
 	public void setReferenceKeyPointImage(Bitmap img){
 		if (img == null) return;
-		mRefKP = img;
+		mRefKP = replace(mRefKP, img, true);
 		buildImageViews();
 	}
 	
 	public void setOtherKeyPointImage(Bitmap img){
 		if (img == null) return;
-		mOtherKP = img;
+		mOtherKP = replace(mOtherKP, img, true);
 		buildImageViews();
 	}
 	public void setPutativeImageWithoutLinesImage(Bitmap img){
 		if (img == null) return;
-		mPutativeMatchesWithOutLines = img;
+		mPutativeMatchesWithOutLines = replace(mPutativeMatchesWithOutLines, img, true);
 		buildImageViews();
 	}
 	public void setPutativeImageWithLinesImage(Bitmap img){
 		if (img == null) return;
-		mPutativeMatchesWithLines = img;
+		mPutativeMatchesWithLines = replace(mPutativeMatchesWithLines, img, true);
 		buildImageViews();
 	}
 	
 	public void setWarpedImage(Bitmap img){
 		if (img == null) return;
-		mRegularWarp = img;
+		mRegularWarp = replace(mRegularWarp, img, true);
 		buildImageViews();
 	}
 	
 	public void setInvertedWarpedImage(Bitmap img){
 		if (img == null) return;
-		mInvWarp = img;
+		mInvWarp = replace(mInvWarp, img, true);
 		buildImageViews();
 	}
 	
+	/**
+	 * @param owned true for rendered artefacts the adapter takes over
+	 * @return thumbnail of image, the image old stood for is released
+	 */
+	private Bitmap replace(Bitmap old, Bitmap image, boolean owned){
+		Bitmap thumbnail = toThumbnail(image, owned);
+		if (old != null && old != thumbnail) releaseImage(old);
+		return thumbnail;
+	}
+
+	/**
+	 * @return thumbnail of the regular warp, null if there is none
+	 */
+	public Bitmap getWarpedImage(){
+		return mRegularWarp;
+	}
+	
 	@Override
 	public void reset(){
 		super.reset();
@@ -41,6 +41,8 @@ import com.example.homographyanalyzer.R;
 import edu.uw.homographyanalyzer.api.XMLTestImageSet;
 import edu.uw.homographyanalyzer.main.ImageSelectionAdapter;
 import edu.uw.homographyanalyzer.main.MainActivity;
+import edu.uw.homographyanalyzer.tools.ImageLoader;
+import edu.uw.homographyanalyzer.tools.MatScope;
 
 public class DisplayReaderActivity extends Activity implements OnItemSelectedListener,
 ViewFactory {
@@ -148,8 +150,7 @@ ViewFactory {
 	private void updateImages(){
 		_imgAdapter.reset();
 		for (int i = 0; i < _uris.size(); ++i){
-			Bitmap b = MainActivity.getBitmapFromURIviaInputStream(
-					getContentResolver(), _uris.get(i));
+			Bitmap b = ImageLoader.load(getContentResolver(), _uris.get(i));
 			_images[i] = b;
 			_imgAdapter.setImage(b, i);
 		}
@@ -214,24 +215,31 @@ ViewFactory {
 			return;
 		}
 
-		Mat origWBorder = new Mat();
-		Mat warpWBorder = new Mat();
-
-		Utils.bitmapToMat(_images[0], origWBorder);
-		Utils.bitmapToMat(_images[2], warpWBorder);
-
-		Bitmap origBdrBM = Bitmap.createBitmap(origWBorder.cols(), origWBorder.rows(),
-				Bitmap.Config.ARGB_8888);
-		Bitmap warpedBdrBM = Bitmap.createBitmap(warpWBorder.cols(), warpWBorder.rows(),
-				Bitmap.Config.ARGB_8888);
-
-		// Draw three images
-		// 1. Original image with border drawn
-		drawBorder(origWBorder, shape);
-		Utils.matToBitmap(origWBorder, origBdrBM);
-		// 2. Warp image with border drawn
-		drawBorder(warpWBorder, shape);
-		Utils.matToBitmap(warpWBorder, warpedBdrBM);
+		// Border images are only needed until they are converted
+		MatScope scope = new MatScope("DisplayReader borders");
+		Bitmap origBdrBM, warpedBdrBM;
+		try {
+			Mat origWBorder = scope.newMat();
+			Mat warpWBorder = scope.newMat();
+
+			Utils.bitmapToMat(_images[0], origWBorder);
+			Utils.bitmapToMat(_images[2], warpWBorder);
+
+			origBdrBM = Bitmap.createBitmap(origWBorder.cols(), origWBorder.rows(),
+					Bitmap.Config.ARGB_8888);
+			warpedBdrBM = Bitmap.createBitmap(warpWBorder.cols(), warpWBorder.rows(),
+					Bitmap.Config.ARGB_8888);
+
+			// Draw three images
+			// 1. Original image with border drawn
+			drawBorder(origWBorder, shape);
+			Utils.matToBitmap(origWBorder, origBdrBM);
+			// 2. Warp image with border drawn
+			drawBorder(warpWBorder, shape);
+			Utils.matToBitmap(warpWBorder, warpedBdrBM);
+		} finally {
+			scope.close();
+		}
 
 		String origBdrUrl = MediaStore.Images.Media.insertImage(getContentResolver(), 
 				origBdrBM, "Original with main feature", "Original image with main feature drawn" +
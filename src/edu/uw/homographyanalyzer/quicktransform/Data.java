@@ -4,32 +4,88 @@ import java.util.ArrayList;
 import java.util.List;
 
 import android.graphics.Bitmap;
+import edu.uw.homographyanalyzer.tools.ImageCache;
 
 /**
  * Represents the 5 distinct images of 
+ * 
+ * Images are kept in the ImageCache, they may be evicted to disk and 
+ * are read back on request.
  * @author mhotan
  *
  */
 public class Data {
 	public final static int NUM_OF_BITMAP = 5;
 	
+	private static final String KEY_PREFIX = "Data.";
+	
 	public String homographyMethod;
 	public String featureDetection;
 	
 	//The singleton
 	private static Data mInstance;
-	public Bitmap bmp[], sbsBmp1, sbsBmp2;
 	
-	private List<Bitmap> bmpList;
+	// Keys of the images added by addBitMap
+	private List<String> bmpList;
 	
 	public Data(){
-		bmp = new Bitmap[NUM_OF_BITMAP];
-		bmpList = new ArrayList<Bitmap>();
+		bmpList = new ArrayList<String>();
 	}
 	
 	public void addBitMap(Bitmap image){
 		if (image == null) return;
-		bmpList.add(image);
+		String key = ImageCache.newKey(KEY_PREFIX + "list");
+		ImageCache.putBitmap(key, image);
+		bmpList.add(key);
+	}
+	
+	/**
+	 * @param index 0 - NUM_OF_BITMAP - 1
+	 * @return image at index, null if none
+	 */
+	public Bitmap getBitmap(int index){
+		return ImageCache.getBitmap(bitmapKey(index));
+	}
+	
+	/**
+	 * @param index 0 - NUM_OF_BITMAP - 1
+	 * @param image image to show at index, null to clear it
+	 */
+	public void setBitmap(int index, Bitmap image){
+		set(bitmapKey(index), image);
+	}
+	
+	/**
+	 * @param side 1 for the left, 2 for the right side by side image
+	 * @return side by side image, null if none
+	 */
+	public Bitmap getSideBySide(int side){
+		return ImageCache.getBitmap(sideBySideKey(side));
+	}
+	
+	/**
+	 * @param side 1 for the left, 2 for the right side by side image
+	 * @param image image to show, null to clear it
+	 */
+	public void setSideBySide(int side, Bitmap image){
+		set(sideBySideKey(side), image);
+	}
+	
+	private static void set(String key, Bitmap image){
+		if (image == null) ImageCache.remove(key);
+		else ImageCache.putBitmap(key, image);
+	}
+	
+	private static String bitmapKey(int index){
+		if (index < 0 || index >= NUM_OF_BITMAP)
+			throw new IllegalArgumentException("Illegal bitmap index " + index);
+		return KEY_PREFIX + "bmp" + index;
+	}
+	
+	private static String sideBySideKey(int side){
+		if (side != 1 && side != 2)
+			throw new IllegalArgumentException("Illegal side " + side);
+		return KEY_PREFIX + "sbsBmp" + side;
 	}
 	
 	public static Data getInstance(){
@@ -2,6 +2,7 @@ package edu.uw.homographyanalyzer.quicktransform;
 
 import android.app.Activity;
 import android.graphics.Bitmap;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.util.Log;
 import android.widget.ImageView;
@@ -24,24 +25,36 @@ public class Display extends Activity {
 		super.onCreate(savedInstanceState);
 		setContentView(R.layout.display);
 		
-		Data data = Data.getInstance();
+		final Data data = Data.getInstance();
 		mBitmapIndex = getIntent().getIntExtra(DATA_BITMAP_INDEX, -1);
 		
 		if(mBitmapIndex == -1){
 			loge("Must passed bitmap index to Display activity!");
 			finish();
+			return;
 		}
 		
-		mDisplayImage = data.bmp[mBitmapIndex];
-		if(mDisplayImage == null){
-			loge("No image passed!");
-			finish();
-		}
-		else{
-			initWidgets();
-			//logd("Image density: " + mDisplayImage.getDensity());
-			DisplayImage();
-		}
+		// The image may have been evicted to disk, it is read in the background
+		new AsyncTask<Void, Void, Bitmap>() {
+			@Override
+			protected Bitmap doInBackground(Void... params) {
+				return data.getBitmap(mBitmapIndex);
+			}
+
+			@Override
+			protected void onPostExecute(Bitmap image) {
+				mDisplayImage = image;
+				if(mDisplayImage == null){
+					loge("No image passed!");
+					finish();
+				}
+				else{
+					initWidgets();
+					//logd("Image density: " + mDisplayImage.getDensity());
+					DisplayImage();
+				}
+			}
+		}.execute();
 	}
 	
 	private void DisplayImage(){
@@ -1,6 +1,8 @@
 package edu.uw.homographyanalyzer.quicktransform;
 
 import android.app.Activity;
+import android.graphics.Bitmap;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.GestureDetector;
@@ -46,9 +48,19 @@ public class SideBySideDisplay extends Activity implements View.OnClickListener{
 		super.onCreate(bdl);
 		setContentView(R.layout.sidebysidedisplay);
 		initWidgets();
-		img[0].setImageBitmap(data_.sbsBmp1);
-		img[1].setImageBitmap(data_.sbsBmp2);
-		
+		// Images may have been evicted to disk, they are read in the background
+		new AsyncTask<Void, Void, Bitmap[]>() {
+			@Override
+			protected Bitmap[] doInBackground(Void... params) {
+				return new Bitmap[]{ data_.getSideBySide(1), data_.getSideBySide(2) };
+			}
+
+			@Override
+			protected void onPostExecute(Bitmap[] images) {
+				img[0].setImageBitmap(images[0]);
+				img[1].setImageBitmap(images[1]);
+			}
+		}.execute();
 	}
 	
 	public void toggleVisible(){
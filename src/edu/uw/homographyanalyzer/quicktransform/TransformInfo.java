@@ -3,17 +3,31 @@ package edu.uw.homographyanalyzer.quicktransform;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import org.opencv.core.Core;
+import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfDMatch;
 import org.opencv.core.MatOfKeyPoint;
 import org.opencv.core.Point;
 import org.opencv.core.Scalar;
+import org.opencv.core.Size;
 import org.opencv.features2d.Features2d;
-import org.opencv.features2d.KeyPoint;
+import org.opencv.imgproc.Imgproc;
 
 import android.graphics.Bitmap;
+import edu.uw.homographyanalyzer.reusable.FeatureAdapter;
+import edu.uw.homographyanalyzer.reusable.PreprocessedImage;
+import edu.uw.homographyanalyzer.reusable.features.KdForest;
+import edu.uw.homographyanalyzer.reusable.features.KeyPointBuffer;
+import edu.uw.homographyanalyzer.reusable.features.PqCodes;
+import edu.uw.homographyanalyzer.reusable.features.ProductQuantizer;
+import edu.uw.homographyanalyzer.tools.ImageCache;
+import edu.uw.homographyanalyzer.tools.MatPool;
+import edu.uw.homographyanalyzer.tools.MatTracker;
+import edu.uw.homographyanalyzer.tools.SharedMat;
 
 /**
  * Wrapper class that contains information to images
@@ -33,17 +47,27 @@ public class TransformInfo {
 	 * Stores all information regarding a transformation process
 	 * 	
 	 * Abstract Function
-	 * 	reference_image = Bitmap Representation of reference image
-	 * 	other_image = Bitmap representation of other image
+	 * 	reference_image = Color and grayscale representation of reference image
+	 * 	other_image = Color and grayscale representation of other image
 	 * 	reference_keyPoint = Key Points found by feature detector for reference image
 	 * 	other_keyPoint = Key Points found by feature detector for other image
-	 * 	reference_KPImage = Reference image with Key points labeled with circles
-	 * 	other_KPImage = Other image with Key points labled with circles
+	 * 	reference_KPImage = Reference image with Key points labeled with circles,
+	 * 				rendered on first request at the requested size
+	 * 	other_KPImage = Other image with Key points labled with circles,
+	 * 				rendered on first request at the requested size
 	 *  reference_matched_points = Matched points on reference image
 	 *  other_matched_points = Matched points on other image
 	 *  homography = Homography matrix between two images
-	 *  generalPhotos = List of general Bitmap images that relate the two images
+	 *  generalPhotos = ImageCache keys of general Bitmap images that relate the two images
 	 *  				It is up to the client to decide the organization of these images
+	 *  generalPhotoKeys = Key of each Bitmap in generalPhotos that is still referenced
+	 *  
+	 *  Key points, descriptors, matches, overlays and the homography are 
+	 *  SharedMats, clones acquire them instead of copying and every instance 
+	 *  releases its own references when they are replaced.  Key points and 
+	 *  descriptors are owned and released with the last reference, unless 
+	 *  they are borrowed from a feature cache.  Every instance also holds a 
+	 *  reference on its preprocessed images, see PreprocessedImage.acquire().
 	 *  
 	 *  Representation Invariant
 	 *  	generalPhotos != null;
@@ -53,49 +77,76 @@ public class TransformInfo {
 //	private static final int NUM_IMAGES = 2;
 	
 	// Base reference images
-	private Mat reference_image, other_image;
+	private PreprocessedImage reference_image, other_image;
 	
-	// KeyPoint features for both images sizes are not equal
-	private MatOfKeyPoint reference_keyPoint, other_keyPoint;
+	// KeyPoint features for both images sizes are not equal, views are MatOfKeyPoints
+	private SharedMat reference_keyPoint, other_keyPoint;
+	
+	// Columnar copies of the keypoints shared by all later stages, null until requested
+	private KeyPointBuffer reference_KPBuffer, other_KPBuffer;
 	
 	// KeyPoint features for both images sizes are not equal
-	private Mat reference_Descriptors, other_Descriptors;
+	private SharedMat reference_Descriptors, other_Descriptors;
+	
+	// Nearest neighbor index over float reference descriptors, null until requested
+	private KdForest reference_Index;
 	
-	// Bitmaps of reference and other images with keypoints
-	private Mat reference_KPImage, other_KPImage;
+	// Product quantized other descriptors replacing other_Descriptors, 
+	// null unless compact storage is used
+	private PqCodes other_Codes;
+	private ProductQuantizer other_Quantizer;
 	
-	// Matches of
-	private MatOfDMatch matches;
+	// Cached overlays of reference and other images with keypoints, null until requested
+	private SharedMat reference_KPImage, other_KPImage;
+	// Bounds the cached overlays were rendered for
+	private int reference_KPWidth, reference_KPHeight, other_KPWidth, other_KPHeight;
+	
+	// Matches of other to reference, the view is a MatOfDMatch
+	private SharedMat matches;
 	
 	//public Mat reference_mat, other_mat;
-	private Mat homography;
+	private SharedMat homography;
 
-	//List of general photos stored
-	private List<Bitmap> generalPhotos;
+	//List of general photos stored, the Bitmaps are kept in the ImageCache 
+	// so any number of them stays within its budget
+	private List<String> generalPhotos;
+	private Map<Bitmap, String> generalPhotoKeys;
 	
 	public TransformInfo(){
-		generalPhotos = new ArrayList<Bitmap>();
+		generalPhotos = new ArrayList<String>();
+		generalPhotoKeys = new WeakHashMap<Bitmap, String>();
 	}
 	
 	/**
-	 * Returns clone of this storage with all containing elements
+	 * Returns clone of this storage with all containing elements, matrices 
+	 * are shared and not copied
 	 * @param src to be copied
 	 * @return copied element
 	 */
-	public TransformInfo clone(){
+	public synchronized TransformInfo clone(){
 		TransformInfo clone = new TransformInfo();
-		clone.reference_image = reference_image;
-		clone.other_image = other_image;
-		clone.reference_keyPoint = reference_keyPoint;
-		clone.other_keyPoint = other_keyPoint;
-		clone.reference_KPImage = reference_KPImage;
-		clone.other_KPImage = other_KPImage;
-		clone.matches = matches;
+		clone.reference_image = acquire(reference_image);
+		clone.other_image = acquire(other_image);
+		clone.reference_keyPoint = SharedMat.acquire(reference_keyPoint);
+		clone.other_keyPoint = SharedMat.acquire(other_keyPoint);
+		clone.reference_KPBuffer = reference_KPBuffer;
+		clone.other_KPBuffer = other_KPBuffer;
+		clone.reference_KPImage = SharedMat.acquire(reference_KPImage);
+		clone.reference_KPWidth = reference_KPWidth;
+		clone.reference_KPHeight = reference_KPHeight;
+		clone.other_KPImage = SharedMat.acquire(other_KPImage);
+		clone.other_KPWidth = other_KPWidth;
+		clone.other_KPHeight = other_KPHeight;
+		clone.matches = SharedMat.acquire(matches);
 //		clone.other_matched_points = other_matched_points;
-		clone.homography = homography;
+		clone.homography = SharedMat.acquire(homography);
 		clone.generalPhotos.addAll(generalPhotos);
-		clone.reference_Descriptors = reference_Descriptors;
-		clone.other_Descriptors = other_Descriptors;
+		clone.generalPhotoKeys.putAll(generalPhotoKeys);
+		clone.reference_Descriptors = SharedMat.acquire(reference_Descriptors);
+		clone.other_Descriptors = SharedMat.acquire(other_Descriptors);
+		clone.reference_Index = reference_Index;
+		clone.other_Codes = other_Codes;
+		clone.other_Quantizer = other_Quantizer;
 		return clone;
 	}
 	
@@ -110,18 +161,31 @@ public class TransformInfo {
 	 * removes any memory of all artifacts and clears all knowledge of stored Bitmaps
 	 */
 	public void reset(){
-		reference_image = null;
-		other_image = null;
-		homography = null;
-		reference_keyPoint = null;
-		other_keyPoint = null;
-		reference_KPImage = null;
-		other_KPImage = null;
-		matches = null;
-		homography = null;
-		other_Descriptors = null;
-		reference_Descriptors = null;
-		generalPhotos.clear();
+		release();
+		reference_KPBuffer = null;
+		other_KPBuffer = null;
+		reference_Index = null;
+		other_Codes = null;
+		other_Quantizer = null;
+		clearBitmaps();
+	}
+	
+	/**
+	 * Gives up the shared matrices and images of this storage, those no 
+	 * other clone holds are released.  This storage no longer has images,
+	 * key points, descriptors, matches, overlays or a homography afterwards.
+	 */
+	public synchronized void release(){
+		reference_image = release(reference_image);
+		other_image = release(other_image);
+		reference_keyPoint = SharedMat.release(reference_keyPoint);
+		other_keyPoint = SharedMat.release(other_keyPoint);
+		matches = SharedMat.release(matches);
+		reference_Descriptors = SharedMat.release(reference_Descriptors);
+		other_Descriptors = SharedMat.release(other_Descriptors);
+		reference_KPImage = SharedMat.release(reference_KPImage);
+		other_KPImage = SharedMat.release(other_KPImage);
+		homography = SharedMat.release(homography);
 	}
 	
 	/**
@@ -134,58 +198,119 @@ public class TransformInfo {
 	}
 
 	public void addBitMap(Bitmap image) {
-		generalPhotos.add(image);
+		if (image == null) return;
+		generalPhotos.add(keyOf(image));
 	}
 	
 	////////////////////////////////////////////////////////////////////////////
 	// Mutating Methods
 	
+	/**
+	 * Sets the reference image and keypoints, this storage owns keyPoints
+	 * and descriptors and the caller's reference on ref from now on
+	 * 
+	 * @requires ref != null and keyPoints != null
+	 * @param ref preprocessed reference image
+	 * @param keyPoints
+	 */
+	public void setReferenceImage(PreprocessedImage ref, MatOfKeyPoint keyPoints, Mat descriptors){
+		setReferenceImage(ref, keyPoints, descriptors, false);
+	}
+
 	/**
 	 * Sets the reference image and keypoints
 	 * 
 	 * @requires ref != null and keyPoints != null
-	 * @param ref reference Matrix
+	 * @param ref preprocessed reference image, the caller's reference is 
+	 * 			taken over, the replaced image is released
 	 * @param keyPoints
+	 * @param cached true if a feature cache owns keyPoints and descriptors, 
+	 * 			they are borrowed instead of released with the last reference
 	 */
-	public void setReferenceImage(Mat ref, MatOfKeyPoint keyPoints, Mat descriptors){
+	public synchronized void setReferenceImage(PreprocessedImage ref, MatOfKeyPoint keyPoints, 
+			Mat descriptors, boolean cached){
+		// Setting the same image again gives up the duplicate reference
+		release(reference_image);
 		reference_image = ref;
-		reference_keyPoint = keyPoints;
-		reference_Descriptors = descriptors;
-		// Store current Image with Circles
-		reference_KPImage = getMatWithKP(reference_image, reference_keyPoint);
+		SharedMat.release(reference_keyPoint);
+		reference_keyPoint = cached ? SharedMat.borrow(keyPoints) : SharedMat.wrap(keyPoints);
+		reference_KPBuffer = null;
+		SharedMat.release(reference_Descriptors);
+		reference_Descriptors = cached ? SharedMat.borrow(descriptors) : SharedMat.wrap(descriptors);
+		reference_Index = null;
+		// Overlay is rendered when somebody asks for it
+		reference_KPImage = SharedMat.release(reference_KPImage);
+	}
+
+	/**
+	 * Sets the other image and keypoints, this storage owns keyPoints and
+	 * descriptors and the caller's reference on other from now on
+	 * 
+	 * @requires other != null and keyPoints != null
+	 * @param other preprocessed other image
+	 * @param keyPoints
+	 */
+	public void setOtherImage(PreprocessedImage other, MatOfKeyPoint keyPoints, Mat descriptors){
+		setOtherImage(other, keyPoints, descriptors, false);
 	}
 
 	/**
 	 * Sets the other image and keypoints
 	 * 
 	 * @requires other != null and keyPoints != null
-	 * @param other Other Matrix
+	 * @param other preprocessed other image, the caller's reference is 
+	 * 			taken over, the replaced image is released
 	 * @param keyPoints
+	 * @param cached true if a feature cache owns keyPoints and descriptors, 
+	 * 			they are borrowed instead of released with the last reference
 	 */
-	public void setOtherImage(Mat other, MatOfKeyPoint keyPoints, Mat descriptors){
+	public synchronized void setOtherImage(PreprocessedImage other, MatOfKeyPoint keyPoints, 
+			Mat descriptors, boolean cached){
+		release(other_image);
 		other_image = other;
-		other_keyPoint = keyPoints;
-		other_Descriptors = descriptors;
-		// Store current Image with circles
-		other_KPImage = getMatWithKP(other_image, other_keyPoint);
+		SharedMat.release(other_keyPoint);
+		other_keyPoint = cached ? SharedMat.borrow(keyPoints) : SharedMat.wrap(keyPoints);
+		other_KPBuffer = null;
+		SharedMat.release(other_Descriptors);
+		other_Descriptors = cached ? SharedMat.borrow(descriptors) : SharedMat.wrap(descriptors);
+		other_Codes = null;
+		other_Quantizer = null;
+		// Overlay is rendered when somebody asks for it
+		other_KPImage = SharedMat.release(other_KPImage);
 	}
 	
 	/**
-	 * Store matches from reference to other matches
+	 * Stores the other descriptors compactly, the uncompressed other
+	 * descriptors are dropped
+	 * @requires neither argument is null
+	 * @param quantizer quantizer that encoded codes
+	 * @param codes product quantized other descriptors
+	 */
+	public void setOtherCodes(ProductQuantizer quantizer, PqCodes codes){
+		other_Quantizer = quantizer;
+		other_Codes = codes;
+		other_Descriptors = SharedMat.release(other_Descriptors);
+	}
+	
+	/**
+	 * Store matches from reference to other matches, this storage owns 
+	 * them from now on
 	 * @requires neither argument is null
 	 * @param matchedPnts matches on referencs image
 	 * @param matchedPnts2 matches on other image
 	 */
 	public void setPutativeMatches(MatOfDMatch matches){
-		this.matches = matches;
+		SharedMat.release(this.matches);
+		this.matches = SharedMat.wrap(matches);
 	}
 	
 	/**
-	 * Sets homography Matrix 
+	 * Sets homography Matrix, this storage owns it from now on
 	 * @param homography
 	 */
 	public void setHomographyMatrix(Mat homography){
-		this.homography = homography;
+		SharedMat.release(this.homography);
+		this.homography = SharedMat.wrap(homography);
 	}
 	
 	/**
@@ -195,10 +320,11 @@ public class TransformInfo {
 	 */
 	public void addBitmap(Bitmap b){
 		if (b == null) return;
-		if (generalPhotos.contains(b)){
-			generalPhotos.remove(b);
+		String key = keyOf(b);
+		if (generalPhotos.contains(key)){
+			generalPhotos.remove(key);
 		} 
-		generalPhotos.add(b);
+		generalPhotos.add(key);
 	}
 	
 	/**
@@ -211,21 +337,38 @@ public class TransformInfo {
 	 */
 	public void addBitmap(Bitmap b, int pos){
 		if (b == null) return;
-		int idx = generalPhotos.indexOf(b);
+		String key = keyOf(b);
+		int idx = generalPhotos.indexOf(key);
 		if (idx != -1){
 			if (idx == pos)
 				return;
-			generalPhotos.remove(b);
+			generalPhotos.remove(key);
 		}
 		int position = Math.max(0, Math.min(generalPhotos.size()-1, pos));
-		generalPhotos.add(position, b);
+		generalPhotos.add(position, key);
+	}
+
+	/**
+	 * @return ImageCache key of b, b is cached under a new key if it was not
+	 * 			added before
+	 */
+	private String keyOf(Bitmap b){
+		String key = generalPhotoKeys.get(b);
+		if (key == null || !ImageCache.contains(key)){
+			key = ImageCache.newKey("TransformInfo");
+			ImageCache.putBitmap(key, b);
+			generalPhotoKeys.put(b, key);
+		}
+		return key;
 	}
 	
 	/**
-	 * Removes all Bitmaps from memory
+	 * Removes all Bitmaps from memory.  Cached images are shared with clones,
+	 * they are left to the ImageCache to evict.
 	 */
 	public void clearBitmaps(){
 		generalPhotos.clear();
+		generalPhotoKeys.clear();
 	}
 	
 	/**
@@ -242,42 +385,166 @@ public class TransformInfo {
 	 * @param b Bitmap to remove
 	 */
 	public void removeBitmapFrom(Bitmap b){
-		generalPhotos.remove(b);
+		String key = generalPhotoKeys.remove(b);
+		if (key != null) generalPhotos.remove(key);
 	}
 	
 	////////////////////////////////////////////////////////////////////////////
 	// Retrieving Methods
 	// NOTE: To ensure Representation exposure and unwanted client manipulation
-	// All getters are required to return copies
+	// Mat getters return copies, the *View getters return read only
+	// SharedMats the caller releases and copies only if it needs to modify
 	
 	/**
 	 * @return null if there is no reference image, a copy of reference image otherwise
 	 */
-	public Mat getReferenceMatrix(){
-		return reference_image == null ? null : reference_image.clone();
+	public synchronized Mat getReferenceMatrix(){
+		Mat color = reference_image == null ? null : reference_image.getColor();
+		return color == null ? null : color.clone();
 	}
 	
 	/**
 	 * @return null if there is no other image, a copy of other image otherwise
 	 */
-	public Mat getOtherMatrix(){
-		return other_image == null ? null : other_image.clone();
+	public synchronized Mat getOtherMatrix(){
+		Mat color = other_image == null ? null : other_image.getColor();
+		return color == null ? null : color.clone();
+	}
+	
+	/**
+	 * The view is a header of its own on the pixels of the color image, 
+	 * they stay valid until it is released even if the image is replaced
+	 * @return null if there is no reference image, a read only view otherwise
+	 */
+	public synchronized SharedMat getReferenceView(){
+		return share(reference_image);
+	}
+	
+	/**
+	 * @see #getReferenceView()
+	 * @return null if there is no other image, a read only view otherwise
+	 */
+	public synchronized SharedMat getOtherView(){
+		return share(other_image);
+	}
+
+	/**
+	 * The preprocessed image is shared with the feature stages and is not copied,
+	 * it must not be modified.  It is valid while this storage holds it, 
+	 * callers that keep it longer acquire() it.
+	 * @return null if there is no reference image, the preprocessed reference image otherwise
+	 */
+	public PreprocessedImage getPreprocessedReference(){
+		return reference_image;
+	}
+
+	/**
+	 * @see #getPreprocessedReference()
+	 * @return null if there is no other image, the preprocessed other image otherwise
+	 */
+	public PreprocessedImage getPreprocessedOther(){
+		return other_image;
 	}
 	
 	/**
 	 * @return null if no KeyPoints exits, or a copy of KeyPoint array
 	 */
 	public MatOfKeyPoint getReferenceKeyPoints(){
-		return reference_keyPoint == null ? null :
-			new MatOfKeyPoint(reference_keyPoint);
+		return copyKeyPoints(reference_keyPoint);
 	}
 	
 	/**
 	 * @return null if no KeyPoints exits, or a copy of KeyPoint array
 	 */
 	public MatOfKeyPoint getOtherKeyPoints(){
-		return other_keyPoint == null ? null :
-			new MatOfKeyPoint(other_keyPoint);
+		return copyKeyPoints(other_keyPoint);
+	}
+
+	private static MatOfKeyPoint copyKeyPoints(SharedMat keyPoints){
+		if (keyPoints == null) return null;
+		MatOfKeyPoint copy = new MatOfKeyPoint();
+		keyPoints.view().copyTo(copy);
+		return copy;
+	}
+	
+	/**
+	 * Keypoints of the reference image read with one bulk copy the first time
+	 * they are requested, all stages share the same buffer
+	 * @return null if no KeyPoints exist, or the keypoints which must not be modified
+	 */
+	public synchronized KeyPointBuffer getReferenceKeyPointBuffer(){
+		if (reference_KPBuffer == null && reference_keyPoint != null)
+			reference_KPBuffer = FeatureAdapter.toKeyPointBuffer(
+					(MatOfKeyPoint) reference_keyPoint.view());
+		return reference_KPBuffer;
+	}
+	
+	/**
+	 * Keypoints of the other image read with one bulk copy the first time
+	 * they are requested, all stages share the same buffer
+	 * @return null if no KeyPoints exist, or the keypoints which must not be modified
+	 */
+	public synchronized KeyPointBuffer getOtherKeyPointBuffer(){
+		if (other_KPBuffer == null && other_keyPoint != null)
+			other_KPBuffer = FeatureAdapter.toKeyPointBuffer(
+					(MatOfKeyPoint) other_keyPoint.view());
+		return other_KPBuffer;
+	}
+	
+	/**
+	 * Index over the float descriptors (SIFT, SURF) of the reference image, 
+	 * built the first time it is requested and reused by every later match 
+	 * against the same reference
+	 * @param numTrees number of randomized trees of the index
+	 * @return null if the reference has no float descriptors, or the index
+	 */
+	public synchronized KdForest getReferenceDescriptorIndex(int numTrees){
+		if (reference_Descriptors == null 
+				|| reference_Descriptors.type() != CvType.CV_32FC1) return null;
+		if (reference_Index == null || reference_Index.getTreeCount() != numTrees)
+			reference_Index = new KdForest(FeatureAdapter.toFloatDescriptors(reference_Descriptors.view()), 
+					numTrees);
+		return reference_Index;
+	}
+	
+	/**
+	 * @return null unless the other descriptors are stored compactly, 
+	 * the codes which must not be modified
+	 */
+	public PqCodes getOtherCodes(){
+		return other_Codes;
+	}
+	
+	/**
+	 * @return null unless the other descriptors are stored compactly, 
+	 * the quantizer that encoded getOtherCodes()
+	 */
+	public ProductQuantizer getOtherQuantizer(){
+		return other_Quantizer;
+	}
+	
+	/**
+	 * @return null if the other image has no descriptors, or the descriptors
+	 * which must not be modified
+	 */
+	public Mat getOtherDescriptors(){
+		return other_Descriptors == null ? null : other_Descriptors.view();
+	}
+	
+	/**
+	 * @return null if the reference has no uncompressed descriptors, or a 
+	 * 			read only view the caller releases
+	 */
+	public synchronized SharedMat getReferenceDescriptorsView(){
+		return SharedMat.acquire(reference_Descriptors);
+	}
+	
+	/**
+	 * @return null if the other image has no descriptors, or a read only
+	 * 			view the caller releases
+	 */
+	public synchronized SharedMat getOtherDescriptorsView(){
+		return SharedMat.acquire(other_Descriptors);
 	}
 	
 	/**
@@ -285,8 +552,41 @@ public class TransformInfo {
 	 * an image with KeyPoints identified with reference image
 	 */
 	public Mat getRefKeyPointImage(){
-		return reference_KPImage == null ? null : 
-			reference_KPImage.clone();
+		return getRefKeyPointImage(Integer.MAX_VALUE, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Renders the key points of the reference image scaled down to fit the 
+	 * bounds, the result is cached until the reference image changes
+	 * @param maxWidth maximum width of the returned image
+	 * @param maxHeight maximum height of the returned image
+	 * @return null if no source and keypoint are available, 
+	 * an image with KeyPoints identified with reference image
+	 */
+	public Mat getRefKeyPointImage(int maxWidth, int maxHeight){
+		SharedMat view = getRefKeyPointView(maxWidth, maxHeight);
+		if (view == null) return null;
+		Mat copy = view.copy();
+		view.release();
+		return copy;
+	}
+	
+	/**
+	 * Like getRefKeyPointImage(int, int) without copying the cached overlay
+	 * @return null if no source and keypoint are available, or a read only
+	 * 			view of the overlay the caller releases
+	 */
+	public synchronized SharedMat getRefKeyPointView(int maxWidth, int maxHeight){
+		if (reference_image == null || reference_keyPoint == null) return null;
+		if (reference_KPImage == null || reference_KPWidth != maxWidth 
+				|| reference_KPHeight != maxHeight){
+			SharedMat.release(reference_KPImage);
+			reference_KPImage = SharedMat.wrap(getMatWithKP(reference_image.getColor(), 
+					getReferenceKeyPointBuffer(), maxWidth, maxHeight));
+			reference_KPWidth = maxWidth;
+			reference_KPHeight = maxHeight;
+		}
+		return reference_KPImage.acquire();
 	}
 	
 	/**
@@ -294,24 +594,63 @@ public class TransformInfo {
 	 * an image with KeyPoints identified with Other image
 	 */
 	public Mat getOtherKeyPointImage(){
-		return other_KPImage == null ? null : 
-			other_KPImage.clone();
+		return getOtherKeyPointImage(Integer.MAX_VALUE, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Renders the key points of the other image scaled down to fit the 
+	 * bounds, the result is cached until the other image changes
+	 * @param maxWidth maximum width of the returned image
+	 * @param maxHeight maximum height of the returned image
+	 * @return null if no source and keypoint are available, 
+	 * an image with KeyPoints identified with Other image
+	 */
+	public Mat getOtherKeyPointImage(int maxWidth, int maxHeight){
+		SharedMat view = getOtherKeyPointView(maxWidth, maxHeight);
+		if (view == null) return null;
+		Mat copy = view.copy();
+		view.release();
+		return copy;
+	}
+	
+	/**
+	 * Like getOtherKeyPointImage(int, int) without copying the cached overlay
+	 * @return null if no source and keypoint are available, or a read only
+	 * 			view of the overlay the caller releases
+	 */
+	public synchronized SharedMat getOtherKeyPointView(int maxWidth, int maxHeight){
+		if (other_image == null || other_keyPoint == null) return null;
+		if (other_KPImage == null || other_KPWidth != maxWidth 
+				|| other_KPHeight != maxHeight){
+			SharedMat.release(other_KPImage);
+			other_KPImage = SharedMat.wrap(getMatWithKP(other_image.getColor(), 
+					getOtherKeyPointBuffer(), maxWidth, maxHeight));
+			other_KPWidth = maxWidth;
+			other_KPHeight = maxHeight;
+		}
+		return other_KPImage.acquire();
 	}
 	
 	/**
 	 * Using the images stored in t
-	 * @return null if no images exist or an image of two images of same appliance
+	 * @return null if no images exist or an image of two images of same appliance,
+	 * 			taken from the MatPool and can be released to it
 	 */
-	public Mat getMatchImage(){
+	public synchronized Mat getMatchImage(){
 		if (matches == null || reference_image == null || 
 				other_image == null || reference_keyPoint == null 
 				|| other_keyPoint == null)
 		return null;
-		Mat output = new Mat();
+		// Size and type drawMatches renders, so a pooled buffer is not reallocated
+		Mat ref = reference_image.getColor();
+		Mat other = other_image.getColor();
+		if (ref == null || other == null) return null;
+		Mat output = MatPool.obtain(Math.max(ref.rows(), other.rows()), 
+				ref.cols() + other.cols(), CvType.CV_8UC3);
 		List<MatOfDMatch> list = new LinkedList<MatOfDMatch>();
-		list.add(matches);
-		Features2d.drawMatches2(reference_image, reference_keyPoint, 
-				other_image, other_keyPoint, list, output);
+		list.add((MatOfDMatch) matches.view());
+		Features2d.drawMatches2(ref, (MatOfKeyPoint) reference_keyPoint.view(), 
+				other, (MatOfKeyPoint) other_keyPoint.view(), list, output);
 		return output;
 	}
 	
@@ -339,10 +678,10 @@ public class TransformInfo {
 	 * @return empty list if no reference image exist, or list containing descriptors
 	 */
 	public Mat[] getDescriptors(){
-		if (reference_Descriptors == null) return new Mat[0];
+		if (reference_Descriptors == null || other_Descriptors == null) return new Mat[0];
 		Mat[] m = new Mat[2];
-		m[0] = reference_Descriptors.clone();
-		m[1] = other_Descriptors.clone();
+		m[0] = reference_Descriptors.copy();
+		m[1] = other_Descriptors.copy();
 		return m;
 	}
 
@@ -350,29 +689,75 @@ public class TransformInfo {
 	 * @return null if there is no matrix, or homography other wise
 	 */
 	public Mat getHomographyMatrix(){
-		return homography == null ? null : homography.clone();
+		return homography == null ? null : homography.copy();
+	}
+	
+	/**
+	 * @return null if there is no matrix, or a read only view of the 
+	 * 			homography the caller releases
+	 */
+	public synchronized SharedMat getHomographyView(){
+		return SharedMat.acquire(homography);
 	}
 	
 	/**
-	 * Retrieve Bitmap images that are currently stored
+	 * Retrieve Bitmap images that are currently stored, evicted ones are 
+	 * read back from disk
 	 * @return
 	 */
 	public List<Bitmap> getBitmaps(){
-		return new LinkedList<Bitmap>(generalPhotos);
+		List<Bitmap> bitmaps = new LinkedList<Bitmap>();
+		for (String key : generalPhotos){
+			Bitmap b = ImageCache.getBitmap(key);
+			if (b != null) bitmaps.add(b);
+		}
+		return bitmaps;
 	}
 	
 //	clone.generalPhotos.addAll(generalPhotos);
 	/**
 	 * Returns a new matrix with circles drawn over key points
 	 * the size of each circle corelates with the size of the key point
+	 * The image is scaled down first so no full size copy is drawn on
 	 * 
 	 * @param src Source matrix to clone
 	 * @param mKeypoints array of keypoints to label on image
+	 * @param maxWidth maximum width of the result
+	 * @param maxHeight maximum height of the result
 	 * @modifies 
 	 * @requires src != null and keyPoints != null
 	 * @return new matrix with key points labeled by circles
 	 */
-	private Mat getMatWithKP(Mat src, MatOfKeyPoint matKeyPoints) {
+	/**
+	 * Null safe acquire, for copying images into a clone
+	 * @return image, or null if it was null or already released
+	 */
+	private static PreprocessedImage acquire(PreprocessedImage image){
+		return image != null && image.acquire() ? image : null;
+	}
+
+	/**
+	 * Null safe release, for images being replaced
+	 * @return null
+	 */
+	private static PreprocessedImage release(PreprocessedImage image){
+		if (image != null) image.release();
+		return null;
+	}
+
+	/**
+	 * @return null if there is no image or color, otherwise a view owning a 
+	 * 			header of its own on the color pixels
+	 */
+	private static SharedMat share(PreprocessedImage image){
+		Mat color = image == null ? null : image.getColor();
+		if (color == null) return null;
+		// The header keeps the native pixels alive after the image is released
+		return SharedMat.wrap(color.submat(0, color.rows(), 0, color.cols()));
+	}
+
+	private static Mat getMatWithKP(Mat src, KeyPointBuffer keyPoints, 
+			int maxWidth, int maxHeight) {
 //		Mat image = new Mat();
 //		MatOfKeyPoint keypoints = new MatOfKeyPoint();
 //		KeyPoint[] mKeypoints;
@@ -386,13 +771,23 @@ public class TransformInfo {
 //		KeyPoint[] mKeypoints = keypoints.toArray();
 //		Log.d(TAG,"number of features: " + mKeypoints.length);
 		
-		Mat image = src.clone();
-		KeyPoint[] keyPoints = matKeyPoints.toArray();
-		Point[] points = new Point[keyPoints.length];
-		for (int i = 0; i < points.length; i++) {
-			points[i] = keyPoints[i].pt;
-			Core.circle(image, points[i], (int) keyPoints[i].size, new Scalar(
-					255, 0, 0));
+		double scale = Math.min(1.0, Math.min((double) maxWidth / src.cols(), 
+				(double) maxHeight / src.rows()));
+		Mat image;
+		if (scale < 1.0){
+			image = MatTracker.track(new Mat(), "TransformInfo overlay");
+			Size size = new Size(Math.max(1, Math.round(src.cols() * scale)), 
+					Math.max(1, Math.round(src.rows() * scale)));
+			Imgproc.resize(src, image, size, 0, 0, Imgproc.INTER_AREA);
+		} else 
+			image = MatTracker.track(src.clone(), "TransformInfo overlay");
+
+		Point center = new Point();
+		Scalar color = new Scalar(255, 0, 0);
+		for (int i = 0; i < keyPoints.size(); i++) {
+			center.x = keyPoints.getX(i) * scale;
+			center.y = keyPoints.getY(i) * scale;
+			Core.circle(image, center, Math.max(1, (int) (keyPoints.getSize(i) * scale)), color);
 		}
 		return image;
 		
@@ -3,6 +3,7 @@ package edu.uw.homographyanalyzer.quicktransform;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -19,12 +20,18 @@ import org.opencv.core.Point;
 import org.opencv.core.Scalar;
 import org.opencv.core.Size;
 import org.opencv.features2d.FeatureDetector;
-import org.opencv.features2d.KeyPoint;
 import org.opencv.imgproc.Imgproc;
 
 import com.example.homographyanalyzer.R;
 
 import edu.uw.homographyanalyzer.main.MainActivity;
+import edu.uw.homographyanalyzer.reusable.ComputerVision;
+import edu.uw.homographyanalyzer.reusable.FeatureAdapter;
+import edu.uw.homographyanalyzer.reusable.PreprocessedImage;
+import edu.uw.homographyanalyzer.reusable.features.FeatureBatch;
+import edu.uw.homographyanalyzer.reusable.features.HammingMatcher;
+import edu.uw.homographyanalyzer.reusable.features.KeyPointBuffer;
+import edu.uw.homographyanalyzer.reusable.features.OrbExtractor;
 
 import android.app.Activity;
 import android.content.Intent;
@@ -197,7 +204,7 @@ public class TransformationDemoActivity extends Activity implements
 	}
 
 	private void DisplayKP(Bitmap bmp) {
-		data_.bmp[0] = GetBmpWithKP(bmp);
+		data_.setBitmap(0, GetBmpWithKP(bmp));
 		Intent i = new Intent(this, Display.class);
 		logd("putting image index to intent");
 		i.putExtra("bitmapIdx", 0);
@@ -208,21 +215,20 @@ public class TransformationDemoActivity extends Activity implements
 	private Bitmap GetBmpWithKP(Bitmap bmp) {
 		Mat image = new Mat();
 		MatOfKeyPoint keypoints = new MatOfKeyPoint();
-		KeyPoint[] mKeypoints;
-		Point[] points;
+		Point center = new Point();
+		Scalar color = new Scalar(255, 0, 0);
 
 		Utils.bitmapToMat(bmp, image);
 		logd("doing feature detection");
 		fd_.detect(image, keypoints);
 
 		logd("drawing keypoints");
-		mKeypoints = keypoints.toArray();
-		logd("number of features: " + mKeypoints.length);
-		points = new Point[mKeypoints.length];
-		for (int i = 0; i < points.length; i++) {
-			points[i] = mKeypoints[i].pt;
-			Core.circle(image, points[i], (int) mKeypoints[i].size, new Scalar(
-					255, 0, 0));
+		KeyPointBuffer kp = FeatureAdapter.toKeyPointBuffer(keypoints);
+		logd("number of features: " + kp.size());
+		for (int i = 0; i < kp.size(); i++) {
+			center.x = kp.getX(i);
+			center.y = kp.getY(i);
+			Core.circle(image, center, (int) kp.getSize(i), color);
 		}
 
 		Bitmap result = Bitmap.createBitmap(bmp.getWidth(), bmp.getHeight(),
@@ -241,46 +247,64 @@ public class TransformationDemoActivity extends Activity implements
 		// Original Matrix
 		Mat refMat = new Mat();
 		Mat otherMat = new Mat();
-		// KeyPoints
-		MatOfKeyPoint refMkp, otherMkp;
-		// Point coordinate for the keypoints
-		Point[] refPts, otherPts;
-
-		// Data structures needed
-		// The 2 matrices put to a list
-		List<Mat> listM = new LinkedList<Mat>();
-		listM.add(refMat);
-		listM.add(otherMat);
-		// List that holds the resulting keypoints
-		List<MatOfKeyPoint> listMkp = new LinkedList<MatOfKeyPoint>();
 
 		// Convert bitmap to Matrix
 		Utils.bitmapToMat(referenceImage_, refMat);
 		Utils.bitmapToMat(otherImage_, otherMat);
 		//Utils.bitmapToMat(referenceImage_, otherMat);
-		
-		// Find keypoints
-		fd_.detect(listM, listMkp);
-		refMkp = listMkp.get(0);
-		otherMkp = listMkp.get(1);
-
-		KeyPoint[] refKp = refMkp.toArray();
-		KeyPoint[] otherKp = otherMkp.toArray();
-
-		int numKP = Math.min(refKp.length, otherKp.length);
-		refPts = new Point[numKP];
-		otherPts = new Point[numKP];
 
+		// Find keypoints with the selected detector and describe both 
+		// images in one batch
+		List<PreprocessedImage> images = new LinkedList<PreprocessedImage>();
+		images.add(PreprocessedImage.fromRgba(refMat));
+		images.add(PreprocessedImage.fromRgba(otherMat));
+		FeatureBatch features = ComputerVision.findFeatures(images, fd_,
+				OrbExtractor.DEFAULT_NUM_FEATURES);
+
+		// Pair every keypoint of the reference with its closest descriptor 
+		// on the other image
+		KeyPointBuffer refKp = features.copyKeyPoints(0);
+		KeyPointBuffer otherKp = features.copyKeyPoints(1);
+		int numKP = refKp.size();
+		if (numKP == 0 || otherKp.size() == 0) {
+			loge("No keypoints to match, " + numKP + " and " + otherKp.size() + " found");
+			return;
+		}
+		int[] trainIdx = new int[numKP];
+		int[] distances = new int[numKP];
+		HammingMatcher.match(features.copyDescriptors(0), features.copyDescriptors(1), 
+				trainIdx, distances);
+
+		float[] refPts = new float[numKP * 2];
+		float[] otherPts = new float[numKP * 2];
+		int numMatches = 0;
 		for (int i = 0; i < numKP; i++) {
-			refPts[i] = refKp[i].pt;
-			otherPts[i] = otherKp[i].pt;
+			if (trainIdx[i] == -1) continue;
+			refPts[2 * numMatches] = refKp.getX(i);
+			refPts[2 * numMatches + 1] = refKp.getY(i);
+			otherPts[2 * numMatches] = otherKp.getX(trainIdx[i]);
+			otherPts[2 * numMatches + 1] = otherKp.getY(trainIdx[i]);
+			numMatches++;
+		}
+		// A homography needs at least 4 point pairs
+		if (numMatches < 4) {
+			loge("Not enough matches for a homography: " + numMatches);
+			return;
 		}
 
-		MatOfPoint2f refMatPt = new MatOfPoint2f(refPts);
-		MatOfPoint2f baseMatPt = new MatOfPoint2f(otherPts);
+		MatOfPoint2f refMatPt = new MatOfPoint2f();
+		refMatPt.alloc(numMatches);
+		refMatPt.put(0, 0, Arrays.copyOf(refPts, 2 * numMatches));
+		MatOfPoint2f baseMatPt = new MatOfPoint2f();
+		baseMatPt.alloc(numMatches);
+		baseMatPt.put(0, 0, Arrays.copyOf(otherPts, 2 * numMatches));
 
 		Mat m = Calib3d.findHomography(refMatPt, baseMatPt, Calib3d.RANSAC, 4);
 		logd("Homography matrix size: " + m.size());
+		if (m.empty()) {
+			loge("No homography found");
+			return;
+		}
 
 		Size sz = refMat.size();
 		Mat result = new Mat(sz, refMat.type());
@@ -290,7 +314,7 @@ public class TransformationDemoActivity extends Activity implements
 				Bitmap.Config.ARGB_8888);
 		Utils.matToBitmap(result, disp);
 
-		data_.bmp[0] = disp;
+		data_.setBitmap(0, disp);
 
 		logd("invoking new activity");
 		Intent i = new Intent(this, Display.class);
@@ -410,8 +434,8 @@ public class TransformationDemoActivity extends Activity implements
 		}
 		logd("Camera activity returns OK");
 
-		data_.sbsBmp1 = GetBmpWithKP(referenceImage_);
-		data_.sbsBmp2 = GetBmpWithKP(otherImage_);
+		data_.setSideBySide(1, GetBmpWithKP(referenceImage_));
+		data_.setSideBySide(2, GetBmpWithKP(otherImage_));
 		DisplaySideBySide();
 
 		// DisplayKP(otherImage_);
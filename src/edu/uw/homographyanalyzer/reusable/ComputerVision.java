@@ -12,15 +12,19 @@ import org.opencv.core.MatOfDMatch;
 import org.opencv.core.MatOfKeyPoint;
 import org.opencv.core.MatOfPoint2f;
 import org.opencv.core.Point;
-import org.opencv.features2d.DMatch;
 import org.opencv.features2d.DescriptorExtractor;
 import org.opencv.features2d.DescriptorMatcher;
 import org.opencv.features2d.FeatureDetector;
-import org.opencv.features2d.KeyPoint;
 import org.opencv.imgproc.Imgproc;
 
 import android.app.Activity;
 import android.content.Context;
+import edu.uw.homographyanalyzer.reusable.features.FeatureBatch;
+import edu.uw.homographyanalyzer.reusable.features.ImagePyramid;
+import edu.uw.homographyanalyzer.reusable.features.KeyPointBuffer;
+import edu.uw.homographyanalyzer.reusable.features.KeyPointSelector;
+import edu.uw.homographyanalyzer.tools.MatScope;
+import edu.uw.homographyanalyzer.tools.MatTracker;
 
 /*
  * Helper class that wraps the OpenCV algorithm 
@@ -87,40 +91,112 @@ public class ComputerVision {
 	 * (eg. FeatureDetector.FAST)
 	 */
 	public synchronized MatOfKeyPoint findKeyPoints(FeatureDetector detector, Mat images){
-		MatOfKeyPoint results = new MatOfKeyPoint();	
+		MatOfKeyPoint results = MatTracker.track(new MatOfKeyPoint(), "keypoints");	
 		detector.detect(images, results);
 		return results;
 	}
-	
+
 	/*
-	 * Find the keypoints between to patrices and returns a list the same size
-	 * as number of images.  Each array is of the same size
-	 * featureDetector can be obtained from the FeatureDetector class
-	 * (eg. FeatureDetector.FAST)
+	 * Find at most maxKeyPoints keypoints of a matrix, the ones with the 
+	 * highest response are kept.  maxKeyPoints <= 0 keeps all of them
 	 */
-	public synchronized List<Point[]> findKeyPointMatches(FeatureDetector detector, List<Mat> images){
-		List<MatOfKeyPoint> results = new ArrayList<MatOfKeyPoint>();
-		detector.detect(images, results);
-		
-		//Key points per image
-		KeyPoint[] referenceKeyPoints = results.get(0).toArray();
-		KeyPoint[] otherKeyPoints = results.get(1).toArray();
-		
-		int minNumOfPoints = Math.min(referenceKeyPoints.length, otherKeyPoints.length);
-		Point[] refPts = new Point[minNumOfPoints];
-		Point[] otherPts = new Point[minNumOfPoints];
+	public synchronized MatOfKeyPoint findKeyPoints(FeatureDetector detector, Mat images, 
+			int maxKeyPoints){
+		return capKeyPoints(findKeyPoints(detector, images), maxKeyPoints, false);
+	}
+
+	/**
+	 * Caps the number of key points so matching and homography estimation
+	 * cost stay predictable
+	 * @param keyPoints key points to cap
+	 * @param maxKeyPoints maximum number of key points, <= 0 for no cap 
+	 * @param spread true to select with adaptive non maximal suppression so key 
+	 * 			points are spread over the image, false to keep the strongest
+	 * @return keyPoints if there are not more then maxKeyPoints, a new capped 
+	 * 			MatOfKeyPoint otherwise
+	 */
+	public static MatOfKeyPoint capKeyPoints(MatOfKeyPoint keyPoints, int maxKeyPoints, 
+			boolean spread){
+		if (maxKeyPoints <= 0 || keyPoints.total() <= maxKeyPoints) 
+			return keyPoints;
+		KeyPointBuffer buffer = FeatureAdapter.toKeyPointBuffer(keyPoints);
+		if (spread)
+			KeyPointSelector.retainSpread(buffer, maxKeyPoints, KeyPointSelector.DEFAULT_ROBUSTNESS);
+		else
+			KeyPointSelector.retainBest(buffer, maxKeyPoints);
+		return FeatureAdapter.toMatOfKeyPoint(buffer);
+	}
 
-		for (int i = 0; i < minNumOfPoints; i++) {
-			refPts[i] = referenceKeyPoints[i].pt;
-			otherPts[i] = otherKeyPoints[i].pt;
+	/**
+	 * Finds key points only inside a region of interest
+	 * @param detector detector to use
+	 * @param image image to search
+	 * @param mask 8 bit single channel mask of image size, non zero inside
+	 * @return key points inside mask
+	 */
+	public synchronized MatOfKeyPoint findKeyPoints(FeatureDetector detector, Mat image, Mat mask){
+		MatOfKeyPoint results = MatTracker.track(new MatOfKeyPoint(), "keypoints");	
+		detector.detect(image, results, mask);
+		return results;
+	}
+	
+	/**
+	 * Detects and describes ORB features on several images in one call, the 
+	 * images are processed concurrently.  Key points and descriptors are 
+	 * returned per image, use them with HammingMatcher to find correspondences
+	 * (nothing is paired by index).
+	 * 
+	 * @param images preprocessed images, their pyramids are reused
+	 * @param numFeatures maximum number of features per image
+	 * @return features of all images in the order of images
+	 */
+	public static FeatureBatch findFeatures(List<PreprocessedImage> images, int numFeatures){
+		List<ImagePyramid> pyramids = new ArrayList<ImagePyramid>(images.size());
+		for (PreprocessedImage image: images){
+			ImagePyramid pyramid = image.getPyramid();
+			pyramid.acquire();
+			pyramids.add(pyramid);
+		}
+		try {
+			return FeatureBatch.detectAndCompute(pyramids, numFeatures);
+		} finally {
+			for (ImagePyramid pyramid: pyramids)
+				pyramid.release();
+		}
+	}
+	
+	/**
+	 * Same as findFeatures(List, int) but the key points are found by detector, 
+	 * the strongest numFeatures of every image are described with ORB
+	 * 
+	 * @param images preprocessed images, their pyramids are reused
+	 * @param detector detector to find key points with
+	 * @param numFeatures maximum number of features per image
+	 * @return features of all images in the order of images
+	 */
+	public static FeatureBatch findFeatures(List<PreprocessedImage> images, 
+			FeatureDetector detector, int numFeatures){
+		List<KeyPointBuffer> keyPoints = new ArrayList<KeyPointBuffer>(images.size());
+		for (PreprocessedImage image: images){
+			MatOfKeyPoint found = new MatOfKeyPoint();
+			detector.detect(image.getGray(), found);
+			KeyPointBuffer buffer = FeatureAdapter.toKeyPointBuffer(found);
+			found.release();
+			KeyPointSelector.retainBest(buffer, numFeatures);
+			keyPoints.add(buffer);
+		}
+		List<ImagePyramid> pyramids = new ArrayList<ImagePyramid>(images.size());
+		for (PreprocessedImage image: images){
+			ImagePyramid pyramid = image.getPyramid();
+			pyramid.acquire();
+			pyramids.add(pyramid);
+		}
+		try {
+			return FeatureBatch.compute(pyramids, keyPoints);
+		} finally {
+			for (ImagePyramid pyramid: pyramids)
+				pyramid.release();
 		}
-		
-		//TODO to change so points are not being removed
-		
-		List<Point[]> matchedPoints = new ArrayList<Point[]>(2); 
-		matchedPoints.add(refPts);
-		matchedPoints.add(otherPts);
-		return matchedPoints;
 	}
 	
 	/*
@@ -129,10 +205,10 @@ public class ComputerVision {
 	 * 
 	 */
 	public synchronized Point[] convertMatOfKeyPointToPointArray(MatOfKeyPoint source){
-		KeyPoint[] keyPointArray = source.toArray();
-		Point[] result = new Point[keyPointArray.length];
-		for(int i = 0 ; i < keyPointArray.length ; i++){
-			result[i] = keyPointArray[i].pt;
+		KeyPointBuffer keyPoints = FeatureAdapter.toKeyPointBuffer(source);
+		Point[] result = new Point[keyPoints.size()];
+		for(int i = 0 ; i < result.length ; i++){
+			result[i] = new Point(keyPoints.getX(i), keyPoints.getY(i));
 		}
 		return result;
 	}
@@ -156,7 +232,7 @@ public class ComputerVision {
 	public synchronized MatOfDMatch getMatchingCorrespondences(Mat queryDescriptors,
 			Mat trainDescriptors) {
 		// Holds the result
-		MatOfDMatch matches = new MatOfDMatch();
+		MatOfDMatch matches = MatTracker.track(new MatOfDMatch(), "matches");
 		// Flann-based descriptor
 		DescriptorMatcher dm = DescriptorMatcher
 				.create(DescriptorMatcher.BRUTEFORCE_SL2);
@@ -177,27 +253,23 @@ public class ComputerVision {
 	 */
 	public synchronized MatOfPoint2f[] getCorrespondences(MatOfDMatch descriptors,
 			MatOfKeyPoint ref_kp, MatOfKeyPoint tgt_kp) {
+		return getCorrespondences(descriptors, FeatureAdapter.toKeyPointBuffer(ref_kp),
+				FeatureAdapter.toKeyPointBuffer(tgt_kp));
+	}
 
-		// The source of computation
-		DMatch[] descriptors_array = descriptors.toArray();
-		KeyPoint[] ref_kp_array = ref_kp.toArray();
-		KeyPoint[] tgt_kp_array = tgt_kp.toArray();
-
-		// The result
-		Point[] ref_pts_array = new Point[descriptors_array.length];
-		Point[] tgt_pts_array = new Point[descriptors_array.length];
-
-		for (int i = 0; i < descriptors_array.length; i++) {
-			ref_pts_array[i] = ref_kp_array[descriptors_array[i].trainIdx].pt;
-			tgt_pts_array[i] = tgt_kp_array[descriptors_array[i].queryIdx].pt;
-		}
-		
-		MatOfPoint2f ref_pts = new MatOfPoint2f(ref_pts_array);
-		MatOfPoint2f tgt_pts = new MatOfPoint2f(tgt_pts_array);
+	/*
+	 * Same as above but reads the coordinates straight out of the 
+	 * columnar key point buffers
+	 */
+	public synchronized MatOfPoint2f[] getCorrespondences(MatOfDMatch descriptors,
+			KeyPointBuffer ref_kp, KeyPointBuffer tgt_kp) {
+		// A fresh builder so the returned points are owned by the caller
+		CorrespondenceBuilder builder = new CorrespondenceBuilder();
+		builder.build(descriptors, ref_kp, tgt_kp);
 		
 		MatOfPoint2f[] results = new MatOfPoint2f[2];
-		results[0] = ref_pts;
-		results[1] = tgt_pts;
+		results[0] = builder.getReferenceMat();
+		results[1] = builder.getOtherMat();
 		return results;
 	}
 	
@@ -206,7 +278,7 @@ public class ComputerVision {
 	 */
 	private Mat computeDescriptors(Mat img,
 			MatOfKeyPoint kp) {
-		Mat desc = new Mat();
+		Mat desc = MatTracker.track(new Mat(), "descriptors");
 		// Feature extractor
 		DescriptorExtractor de = DescriptorExtractor
 				.create(DescriptorExtractor.ORB);
@@ -225,15 +297,18 @@ public class ComputerVision {
 	public Mat findHomography(Point[] referenceKeyPoints, Point[] otherKeyPoints, int method,
 								int ransac_treshold){
 		// Intermediate data structures expected by the findHomography function
-		// provided by the library
-		MatOfPoint2f matReference, matOther;
-		Mat result;
-		matReference = new MatOfPoint2f(referenceKeyPoints);
-		matOther = new MatOfPoint2f(otherKeyPoints);
-		
-		result = Calib3d.findHomography(matReference, matOther, method, ransac_treshold);
-		
-		return result;
+		// provided by the library, released as soon as the homography is found
+		MatScope scope = new MatScope("findHomography");
+		try {
+			MatOfPoint2f matReference, matOther;
+			matReference = scope.add(new MatOfPoint2f(referenceKeyPoints));
+			matOther = scope.add(new MatOfPoint2f(otherKeyPoints));
+			
+			return MatTracker.track(Calib3d.findHomography(matReference, matOther, 
+					method, ransac_treshold), "homography");
+		} finally {
+			scope.close();
+		}
 	}
 	
 	/**
@@ -247,12 +322,22 @@ public class ComputerVision {
 	 * @return transformed matrix
 	 */
 	public static Mat getWarpedImage(Mat refImage, Mat homography, boolean invert){
-		Mat result = new Mat(refImage.size(), refImage.type());
+		return getWarpedImage(refImage, homography, invert, 
+				MatTracker.track(new Mat(refImage.size(), refImage.type()), "warp"));
+	}
+
+	/**
+	 * Same as getWarpedImage but warps into a buffer of the caller, 
+	 * for example one of the MatPool
+	 * @param output buffer of the size and type of refImage, reallocated otherwise
+	 * @return output
+	 */
+	public static Mat getWarpedImage(Mat refImage, Mat homography, boolean invert, Mat output){
 		if (invert)
-			Imgproc.warpPerspective(refImage, result, homography, refImage.size(),Imgproc.WARP_INVERSE_MAP);
+			Imgproc.warpPerspective(refImage, output, homography, refImage.size(),Imgproc.WARP_INVERSE_MAP);
 		else
-			Imgproc.warpPerspective(refImage, result, homography, refImage.size());
-		return result;
+			Imgproc.warpPerspective(refImage, output, homography, refImage.size());
+		return output;
 	}
 	
 	// Logging function that propagates to the callback
@@ -0,0 +1,128 @@
+package edu.uw.homographyanalyzer.reusable;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDMatch;
+import org.opencv.core.MatOfPoint2f;
+
+import edu.uw.homographyanalyzer.reusable.features.KeyPointBuffer;
+
+/**
+ * Turns matches into the point sets the homography estimator works on
+ * without creating a DMatch or Point per match.
+ *
+ * Match indices are read from the MatOfDMatch with one bulk copy, the
+ * coordinates are gathered from the columnar key points into float buffers
+ * and written to the point matrices with one bulk copy each.  Buffers and
+ * matrices are kept between calls, they only grow when a call has more
+ * matches than any call before.
+ *
+ * Points returned are only valid until the next call to build.
+ *
+ * @author mhotan
+ */
+public class CorrespondenceBuilder {
+
+	// Floats per match in a MatOfDMatch, queryIdx trainIdx imgIdx distance
+	private static final int MAT_CHANNELS = 4;
+
+	private float[] mMatchData = new float[0];
+	// x y pairs, first 2 * mCount entries are valid
+	private float[] mReferencePoints = new float[0];
+	private float[] mOtherPoints = new float[0];
+	private final MatOfPoint2f mReferenceMat = new MatOfPoint2f();
+	private final MatOfPoint2f mOtherMat = new MatOfPoint2f();
+	private int mCount;
+
+	/**
+	 * Gathers the point pairs of matches
+	 * @param matches matches with the other image as query and the reference
+	 * 			image as train
+	 * @param reference key points of the reference image
+	 * @param other key points of the other image
+	 * @return number of point pairs
+	 */
+	public synchronized int build(MatOfDMatch matches, KeyPointBuffer reference,
+			KeyPointBuffer other){
+		int n = (int) matches.total();
+		if (mMatchData.length < n * MAT_CHANNELS){
+			mMatchData = new float[n * MAT_CHANNELS];
+			mReferencePoints = new float[n * 2];
+			mOtherPoints = new float[n * 2];
+		}
+		if (n > 0) matches.get(0, 0, mMatchData);
+
+		for (int i = 0, j = 0; i < n; ++i, j += MAT_CHANNELS){
+			int query = (int) mMatchData[j];
+			int train = (int) mMatchData[j + 1];
+			if (query < 0 || query >= other.size() || train < 0 || train >= reference.size())
+				throw new IllegalArgumentException("Match " + i + " out of range: "
+						+ query + " -> " + train);
+			mReferencePoints[2 * i] = reference.getX(train);
+			mReferencePoints[2 * i + 1] = reference.getY(train);
+			mOtherPoints[2 * i] = other.getX(query);
+			mOtherPoints[2 * i + 1] = other.getY(query);
+		}
+		mCount = n;
+
+		if (n > 0){
+			// Keeps the native buffer when n did not change
+			mReferenceMat.alloc(n);
+			mReferenceMat.put(0, 0, mReferencePoints);
+			mOtherMat.alloc(n);
+			mOtherMat.put(0, 0, mOtherPoints);
+		} else {
+			mReferenceMat.release();
+			mOtherMat.release();
+		}
+		return n;
+	}
+
+	/**
+	 * Builds the correspondences of matches and estimates the homography that
+	 * transforms the other image into the perspective of the reference
+	 * @param method Calib3d method, for example Calib3d.RANSAC
+	 * @param threshold maximum reprojection error of an inlier
+	 * @return homography
+	 */
+	public synchronized Mat findHomography(MatOfDMatch matches, KeyPointBuffer reference,
+			KeyPointBuffer other, int method, double threshold){
+		build(matches, reference, other);
+		return Calib3d.findHomography(mOtherMat, mReferenceMat, method, threshold);
+	}
+
+	/**
+	 * @return number of point pairs of the last build
+	 */
+	public synchronized int size(){
+		return mCount;
+	}
+
+	/**
+	 * @return x y pairs on the reference image, backing array with 2 * size() valid entries
+	 */
+	public synchronized float[] getReferencePoints(){
+		return mReferencePoints;
+	}
+
+	/**
+	 * @return x y pairs on the other image, backing array with 2 * size() valid entries
+	 */
+	public synchronized float[] getOtherPoints(){
+		return mOtherPoints;
+	}
+
+	/**
+	 * @return points on the reference image, overwritten by the next build
+	 */
+	public synchronized MatOfPoint2f getReferenceMat(){
+		return mReferenceMat;
+	}
+
+	/**
+	 * @return points on the other image, overwritten by the next build
+	 */
+	public synchronized MatOfPoint2f getOtherMat(){
+		return mOtherMat;
+	}
+}
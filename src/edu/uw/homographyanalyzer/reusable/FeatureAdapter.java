@@ -0,0 +1,190 @@
+package edu.uw.homographyanalyzer.reusable;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDMatch;
+import org.opencv.core.MatOfKeyPoint;
+
+import edu.uw.homographyanalyzer.reusable.features.BinaryDescriptors;
+import edu.uw.homographyanalyzer.reusable.features.FloatDescriptors;
+import edu.uw.homographyanalyzer.reusable.features.HammingMatcher;
+import edu.uw.homographyanalyzer.reusable.features.KdForest;
+import edu.uw.homographyanalyzer.reusable.features.KeyPointBuffer;
+import edu.uw.homographyanalyzer.reusable.features.PqCodes;
+import edu.uw.homographyanalyzer.reusable.features.ProductQuantizer;
+
+/**
+ * Conversions between the pure Java feature package and the OpenCV
+ * pipeline.  The features package knows nothing about OpenCV, everything
+ * that crosses over goes through here with one bulk copy per matrix and
+ * no KeyPoint or DMatch object per element.
+ *
+ * @author mhotan
+ */
+public final class FeatureAdapter {
+
+	// Floats per key point in a MatOfKeyPoint, x y size angle response octave class_id
+	private static final int KEYPOINT_CHANNELS = 7;
+	// Floats per match in a MatOfDMatch, queryIdx trainIdx imgIdx distance
+	private static final int MATCH_CHANNELS = 4;
+
+	private FeatureAdapter(){}
+
+	/**
+	 * Reads key points found by an OpenCV detector.  class_id is dropped.
+	 * @param keyPoints key points to copy
+	 * @return new buffer holding the same key points
+	 */
+	public static KeyPointBuffer toKeyPointBuffer(MatOfKeyPoint keyPoints){
+		int n = (int) keyPoints.total();
+		KeyPointBuffer buffer = new KeyPointBuffer(n);
+		if (n == 0) return buffer;
+		float[] data = new float[n * KEYPOINT_CHANNELS];
+		keyPoints.get(0, 0, data);
+		for (int j = 0; j < data.length; j += KEYPOINT_CHANNELS)
+			buffer.add(data[j], data[j + 1], data[j + 2], data[j + 3], data[j + 4],
+					(int) data[j + 5]);
+		return buffer;
+	}
+
+	/**
+	 * Converts key points so they can be used with the native
+	 * DescriptorExtractor and drawing functions.  class_id is -1.
+	 * @return new MatOfKeyPoint with the same key points
+	 */
+	public static MatOfKeyPoint toMatOfKeyPoint(KeyPointBuffer buffer){
+		MatOfKeyPoint keyPoints = new MatOfKeyPoint();
+		int n = buffer.size();
+		if (n == 0) return keyPoints;
+		float[] data = new float[n * KEYPOINT_CHANNELS];
+		for (int i = 0, j = 0; i < n; ++i, j += KEYPOINT_CHANNELS){
+			data[j] = buffer.getX(i);
+			data[j + 1] = buffer.getY(i);
+			data[j + 2] = buffer.getSize(i);
+			data[j + 3] = buffer.getAngle(i);
+			data[j + 4] = buffer.getResponse(i);
+			data[j + 5] = buffer.getOctave(i);
+			data[j + 6] = -1f;
+		}
+		keyPoints.alloc(n);
+		keyPoints.put(0, 0, data);
+		return keyPoints;
+	}
+
+	/**
+	 * Reads descriptors computed by OpenCV
+	 * @param descriptors CV_32FC1 matrix with one row per descriptor
+	 * @return new descriptors holding the same values
+	 */
+	public static FloatDescriptors toFloatDescriptors(Mat descriptors){
+		if (descriptors.type() != CvType.CV_32FC1)
+			throw new IllegalArgumentException("Descriptors must be CV_32FC1, type is "
+					+ descriptors.type());
+		int count = descriptors.rows();
+		int dims = Math.max(1, descriptors.cols());
+		float[] data = new float[count * dims];
+		if (count > 0) descriptors.get(0, 0, data);
+		return new FloatDescriptors(data, count, dims);
+	}
+
+	/**
+	 * Converts to the layout OpenCV uses for ORB, one CV_8U row of
+	 * BinaryDescriptors.BYTES bytes per descriptor
+	 * @return new Mat with one row per descriptor
+	 */
+	public static Mat toMat(BinaryDescriptors descriptors){
+		int n = descriptors.size();
+		Mat mat = new Mat(n, BinaryDescriptors.BYTES, CvType.CV_8UC1);
+		if (n == 0) return mat;
+		long[] words = descriptors.getWords();
+		byte[] bytes = new byte[n * BinaryDescriptors.BYTES];
+		for (int w = 0; w < n * BinaryDescriptors.WORDS; ++w){
+			long word = words[w];
+			int b = w * 8;
+			for (int k = 0; k < 8; ++k)
+				bytes[b + k] = (byte)(word >>> (k * 8));
+		}
+		mat.put(0, 0, bytes);
+		return mat;
+	}
+
+	/**
+	 * HammingMatcher.match with the result as a MatOfDMatch
+	 * @return one DMatch per query descriptor a match was found for
+	 */
+	public static MatOfDMatch match(BinaryDescriptors query, BinaryDescriptors train){
+		int n = query.size();
+		int[] trainIdx = new int[n];
+		int[] distances = new int[n];
+		HammingMatcher.match(query, train, trainIdx, distances);
+		float[] floatDistances = new float[n];
+		for (int q = 0; q < n; ++q)
+			floatDistances[q] = distances[q];
+		return toMatOfDMatch(trainIdx, floatDistances, n);
+	}
+
+	/**
+	 * KdForest.match with the result as a MatOfDMatch
+	 * @return one DMatch per query descriptor a match was found for
+	 */
+	public static MatOfDMatch match(KdForest index, FloatDescriptors query, int maxChecks){
+		int n = query.size();
+		int[] trainIdx = new int[n];
+		float[] distances = new float[n];
+		index.match(query, maxChecks, trainIdx, distances);
+		return toMatOfDMatch(trainIdx, distances, n);
+	}
+
+	/**
+	 * Matches compactly stored query descriptors.  Codes can only be searched,
+	 * so every train descriptor looks up its closest code and the result is
+	 * reported with the codes as query.
+	 * @param quantizer quantizer that encoded codes
+	 * @param codes product quantized query descriptors
+	 * @param train float descriptors to pair with the codes
+	 * @return one DMatch per train descriptor a code was found for, queryIdx 
+	 * 			indexes codes and trainIdx indexes train
+	 */
+	public static MatOfDMatch match(ProductQuantizer quantizer, PqCodes codes, 
+			FloatDescriptors train){
+		int n = train.size();
+		int[] codeIdx = new int[n];
+		float[] distances = new float[n];
+		quantizer.match(train, codes, codeIdx, distances);
+		return toMatOfDMatch(codeIdx, distances, n, true);
+	}
+
+	/**
+	 * Writes nearest neighbor results with a single bulk copy
+	 * @param trainIdx index of the closest train descriptor per query, -1 for none
+	 * @param distances distance to the closest train descriptor per query
+	 * @param count number of queries
+	 * @return one DMatch per query a train descriptor was found for
+	 */
+	public static MatOfDMatch toMatOfDMatch(int[] trainIdx, float[] distances, int count){
+		return toMatOfDMatch(trainIdx, distances, count, false);
+	}
+
+	/**
+	 * @param swapped true to write the searching side as train and the 
+	 * 			found side as query
+	 */
+	private static MatOfDMatch toMatOfDMatch(int[] found, float[] distances, int count, 
+			boolean swapped){
+		float[] data = new float[count * MATCH_CHANNELS];
+		int matched = 0;
+		for (int i = 0; i < count; ++i){
+			if (found[i] == -1) continue;
+			int j = matched++ * MATCH_CHANNELS;
+			data[j] = swapped ? found[i] : i;
+			data[j + 1] = swapped ? i : found[i];
+			data[j + 2] = 0;
+			data[j + 3] = distances[i];
+		}
+		MatOfDMatch matches = new MatOfDMatch();
+		if (matched == 0) return matches;
+		matches.alloc(matched);
+		matches.put(0, 0, data);
+		return matches;
+	}
+}
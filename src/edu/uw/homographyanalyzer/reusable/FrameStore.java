@@ -0,0 +1,371 @@
+package edu.uw.homographyanalyzer.reusable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import android.util.Log;
+import edu.uw.homographyanalyzer.tools.ImageLoader;
+
+/**
+ * Workspace side cache of decoded images.
+ *
+ * Every source image is stored once, at the working resolution of
+ * ImageLoader, as raw planes in a binary file next to the workspace:
+ *
+ * 	magic, version, width, height, flags		5 ints
+ * 	length and modification time of the source	2 longs
+ * 	grayscale plane								width * height bytes
+ * 	RGBA plane, if flags has COLOR				width * height * 4 bytes
+ *
+ * Frames are opened with FileChannel.map, revisiting an image while
+ * reprocessing or sweeping parameters reads pages instead of decoding the
+ * PNG or JPEG again.  A frame is stale once its source changes length or
+ * modification time and is then decoded and written again.
+ *
+ * Files are written to a temporary name and renamed, a reader never sees a
+ * partially written frame.
+ *
+ * The directory is kept within a byte budget, a frame at the default working
+ * resolution takes about 2.4 MB.  Whenever a frame is stored the oldest ones
+ * are deleted until the budget is met again.
+ *
+ * @author mhotan
+ */
+public class FrameStore {
+
+	private static final String TAG = "FrameStore";
+
+	private static final int MAGIC = 0x48414653; // "HAFS"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 5 * 4 + 2 * 8;
+	private static final String SUFFIX = ".frame";
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	// About six frames at the default working resolution
+	public static final long DEFAULT_MAX_BYTES = 16L * 1024 * 1024;
+
+	// Flags of the planes present
+	private static final int GRAY = 1;
+	private static final int COLOR = 2;
+
+	private final File mDirectory;
+	// Budget of all frames together
+	private final long mMaxBytes;
+
+	/**
+	 * A stored image, the planes are read only views of the mapped file
+	 */
+	public static class Frame {
+
+		private final int mWidth;
+		private final int mHeight;
+		private final ByteBuffer mGray;
+		private final ByteBuffer mColor;
+
+		private Frame(int width, int height, ByteBuffer gray, ByteBuffer color){
+			mWidth = width;
+			mHeight = height;
+			mGray = gray;
+			mColor = color;
+		}
+
+		public int getWidth(){
+			return mWidth;
+		}
+
+		public int getHeight(){
+			return mHeight;
+		}
+
+		/**
+		 * @return grayscale plane, row major, not copied
+		 */
+		public ByteBuffer getGray(){
+			return mGray.duplicate();
+		}
+
+		/**
+		 * @return RGBA plane, row major, not copied, or null if only the
+		 * 			grayscale plane was stored
+		 */
+		public ByteBuffer getColor(){
+			return mColor == null ? null : mColor.duplicate();
+		}
+
+		public boolean hasColor(){
+			return mColor != null;
+		}
+
+		/**
+		 * OpenCV can not wrap mapped memory, the plane is copied with one bulk put
+		 * @return new CV_8UC1 Mat of the grayscale plane
+		 */
+		public Mat toGrayMat(){
+			return toMat(mGray, CvType.CV_8UC1, 1);
+		}
+
+		/**
+		 * @return new CV_8UC4 Mat of the RGBA plane, null if it was not stored
+		 */
+		public Mat toColorMat(){
+			return mColor == null ? null : toMat(mColor, CvType.CV_8UC4, 4);
+		}
+
+		private Mat toMat(ByteBuffer plane, int type, int channels){
+			byte[] pixels = new byte[mWidth * mHeight * channels];
+			plane.duplicate().get(pixels);
+			Mat mat = new Mat(mHeight, mWidth, type);
+			mat.put(0, 0, pixels);
+			return mat;
+		}
+	}
+
+	/**
+	 * Creates store limited to DEFAULT_MAX_BYTES
+	 * @param directory directory frames are kept in, created if missing
+	 */
+	public FrameStore(File directory){
+		this(directory, DEFAULT_MAX_BYTES);
+	}
+
+	/**
+	 * @param directory directory frames are kept in, created if missing
+	 * @param maxBytes budget of all frames together, frames left by an 
+	 * 			earlier run are trimmed to it and its temporary files deleted
+	 */
+	public FrameStore(File directory, long maxBytes){
+		if (directory == null)
+			throw new IllegalArgumentException("NULL directory");
+		if (maxBytes <= 0)
+			throw new IllegalArgumentException("Illegal budget " + maxBytes);
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IllegalArgumentException("Can not create " + directory);
+		mDirectory = directory;
+		mMaxBytes = maxBytes;
+		File[] files = directory.listFiles();
+		if (files != null){
+			for (File f : files)
+				if (f.getName().endsWith(TEMP_SUFFIX)) f.delete();
+		}
+		trim(0);
+	}
+
+	/**
+	 * @param source image file
+	 * @return the stored frame of source, or null if it is not stored or stale
+	 */
+	public Frame open(File source){
+		File file = frameFile(source);
+		if (!file.isFile()) return null;
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (map.capacity() < HEADER_SIZE || map.getInt() != MAGIC || map.getInt() != VERSION)
+				return stale(file, "bad header");
+			int width = map.getInt();
+			int height = map.getInt();
+			int flags = map.getInt();
+			long length = map.getLong();
+			long modified = map.getLong();
+			if (length != source.length() || modified != source.lastModified())
+				return stale(file, "source changed");
+			int planeSize = width * height;
+			int colorSize = (flags & COLOR) != 0 ? planeSize * 4 : 0;
+			if (width <= 0 || height <= 0 || (flags & GRAY) == 0
+					|| map.capacity() != HEADER_SIZE + planeSize + colorSize)
+				return stale(file, "bad size");
+			ByteBuffer gray = slice(map, HEADER_SIZE, planeSize);
+			ByteBuffer color = colorSize == 0 ? null : slice(map, HEADER_SIZE + planeSize, colorSize);
+			return new Frame(width, height, gray, color);
+		} catch (IOException e) {
+			Log.e(TAG, "Exception when opening " + file + ": " + e);
+			return null;
+		} finally {
+			close(raf, file);
+		}
+	}
+
+	/**
+	 * Stores the planes of source, replacing any stored frame
+	 * @param source image file the planes were decoded from
+	 * @param gray CV_8UC1 plane
+	 * @param color CV_8UC4 plane of the same size, null to store only gray
+	 * @return the stored frame, or null if it could not be written
+	 */
+	public Frame store(File source, Mat gray, Mat color){
+		if (gray == null || gray.type() != CvType.CV_8UC1)
+			throw new IllegalArgumentException("Gray plane must be CV_8UC1");
+		int width = gray.cols();
+		int height = gray.rows();
+		if (color != null && (color.type() != CvType.CV_8UC4
+				|| color.cols() != width || color.rows() != height))
+			throw new IllegalArgumentException("Color plane must be CV_8UC4 of "
+					+ width + "x" + height);
+
+		int planeSize = width * height;
+		int size = HEADER_SIZE + planeSize + (color == null ? 0 : planeSize * 4);
+		File file = frameFile(source);
+		// Room is made before the new frame is written
+		trim(size);
+		File temp = new File(file.getPath() + TEMP_SUFFIX);
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(temp, "rw");
+			raf.setLength(size);
+			MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			map.putInt(MAGIC);
+			map.putInt(VERSION);
+			map.putInt(width);
+			map.putInt(height);
+			map.putInt(color == null ? GRAY : GRAY | COLOR);
+			map.putLong(source.length());
+			map.putLong(source.lastModified());
+			map.put(pixels(gray, planeSize));
+			if (color != null)
+				map.put(pixels(color, planeSize * 4));
+			map.force();
+		} catch (IOException e) {
+			Log.e(TAG, "Exception when writing " + temp + ": " + e);
+			temp.delete();
+			return null;
+		} finally {
+			close(raf, temp);
+		}
+		if (!temp.renameTo(file)){
+			Log.e(TAG, "Unable to rename " + temp + " to " + file);
+			temp.delete();
+			return null;
+		}
+		return open(source);
+	}
+
+	/**
+	 * Loads source for the pipeline.  Stored frames are mapped, others are
+	 * decoded once and stored with both planes.  Color is copied from the
+	 * frame when stored, frames without it have it decoded on first use and
+	 * added.
+	 * @param path image file
+	 * @return preprocessed image, or null if path could not be decoded
+	 */
+	public PreprocessedImage load(final String path){
+		final File source = new File(path);
+		Frame frame = open(source);
+		if (frame == null){
+			Mat rgba = ImageLoader.loadRgba(path);
+			if (rgba == null) return null;
+			PreprocessedImage image = PreprocessedImage.fromRgba(rgba);
+			store(source, image.getGray(), rgba);
+			return image;
+		}
+		Log.i(TAG, "Mapped stored frame of " + path);
+		return PreprocessedImage.fromGray(frame.toGrayMat(), colorSource(source, frame));
+	}
+
+	/**
+	 * Removes every stored frame
+	 */
+	public void clear(){
+		File[] files = mDirectory.listFiles();
+		if (files == null) return;
+		for (File f : files)
+			if (f.getName().endsWith(SUFFIX)) f.delete();
+	}
+
+	/**
+	 * Deletes the oldest frames until they take at most mMaxBytes - reserve
+	 * @param reserve bytes about to be written
+	 */
+	private synchronized void trim(long reserve){
+		File[] files = mDirectory.listFiles();
+		if (files == null) return;
+		// Oldest first
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File lhs, File rhs) {
+				long l = lhs.lastModified(), r = rhs.lastModified();
+				return l < r ? -1 : (l == r ? 0 : 1);
+			}
+		});
+		long total = reserve;
+		for (File f : files){
+			if (f.getName().endsWith(SUFFIX)) total += f.length();
+		}
+		for (File f : files){
+			if (total <= mMaxBytes) break;
+			if (!f.getName().endsWith(SUFFIX)) continue;
+			long length = f.length();
+			if (f.delete()){
+				total -= length;
+				Log.i(TAG, "Deleted " + f.getName() + " to stay within " + mMaxBytes + " bytes");
+			}
+		}
+	}
+
+	private PreprocessedImage.ColorSource colorSource(final File source, final Frame frame){
+		return new PreprocessedImage.ColorSource() {
+			@Override
+			public Mat loadColor(int width, int height) {
+				if (frame != null && frame.hasColor())
+					return frame.toColorMat();
+				// Only color is decoded, the stored gray plane goes with it
+				Mat color = PreprocessedImage.toColor(ImageLoader.load(source.getPath()), 
+						width, height);
+				if (color != null && frame != null){
+					Mat gray = frame.toGrayMat();
+					store(source, gray, color);
+					gray.release();
+				}
+				return color;
+			}
+		};
+	}
+
+	/**
+	 * @return file the frame of source is stored in, the name includes a hash
+	 * 			of the full path so equally named images do not collide
+	 */
+	private File frameFile(File source){
+		String path = source.getAbsolutePath();
+		return new File(mDirectory, source.getName() + "-"
+				+ Integer.toHexString(path.hashCode()) + SUFFIX);
+	}
+
+	private static byte[] pixels(Mat mat, int length){
+		byte[] pixels = new byte[length];
+		mat.get(0, 0, pixels);
+		return pixels;
+	}
+
+	private static ByteBuffer slice(MappedByteBuffer map, int offset, int length){
+		ByteBuffer view = map.duplicate();
+		view.position(offset);
+		view.limit(offset + length);
+		return view.slice().asReadOnlyBuffer();
+	}
+
+	private static Frame stale(File file, String reason){
+		Log.i(TAG, "Discarding " + file + ", " + reason);
+		file.delete();
+		return null;
+	}
+
+	private static void close(RandomAccessFile raf, File file){
+		if (raf == null) return;
+		try {
+			raf.close();
+		} catch (IOException e) {
+			Log.e(TAG, "Exception when closing " + file + ": " + e);
+		}
+	}
+}
@@ -0,0 +1,285 @@
+package edu.uw.homographyanalyzer.reusable;
+
+import org.opencv.android.Utils;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.util.Log;
+import edu.uw.homographyanalyzer.reusable.features.GrayImage;
+import edu.uw.homographyanalyzer.reusable.features.ImagePyramid;
+import edu.uw.homographyanalyzer.tools.ImageLoader;
+import edu.uw.homographyanalyzer.tools.TiledImage;
+
+/**
+ * Output of the preprocessing stage of TransformationBuilder.
+ * 
+ * Holds the single grayscale plane that detection, description, pyramid 
+ * building and cropping work on.  The RGBA image is only needed for display 
+ * and warping, unless it was handed in it is produced on the first call to 
+ * getColor().  Images loaded from a file, URI or tiles are decoded once, 
+ * the grayscale plane is converted from the decoded color image which is
+ * kept for display, so no image is decoded a second time for color.
+ * 
+ * Everything returned is shared between stages and must be treated as read only.
+ * 
+ * Like ImagePyramid the image is reference counted: its creator holds the
+ * initial reference, consumers that may outlive the owner's use bracket
+ * theirs with acquire() and release().  The last release() frees the 
+ * grayscale plane, the color image and the pyramid.
+ * 
+ * @author mhotan
+ */
+public class PreprocessedImage {
+
+	private static final String TAG = "PreprocessedImage";
+
+	/**
+	 * Produces the RGBA version of an image on demand
+	 */
+	public interface ColorSource {
+
+		/**
+		 * @param width width of the grayscale plane
+		 * @param height height of the grayscale plane
+		 * @return RGBA image of width x height, or null if it can not be produced
+		 */
+		public Mat loadColor(int width, int height);
+	}
+
+	// RGBA as produced by Utils.bitmapToMat, null until first requested
+	private Mat mColor;
+	// Produces mColor, null if mColor was handed in
+	private final ColorSource mColorSource;
+	// 8 bit single channel plane all feature stages work on
+	private final Mat mGray;
+	// Java copy of mGray, extracted on first request
+	private GrayImage mGrayImage;
+	// Gaussian pyramid over mGrayImage, created on first request
+	private ImagePyramid mPyramid;
+	// Owner and consumers, the planes are released with the last one
+	private int mReferences = 1;
+
+	private PreprocessedImage(Mat color, ColorSource colorSource, Mat gray){
+		mColor = color;
+		mColorSource = colorSource;
+		mGray = gray;
+	}
+
+	/**
+	 * Runs the preprocessing stage on an RGBA image
+	 * @param rgba RGBA image, not copied
+	 * @return preprocessed image that owns rgba
+	 */
+	public static PreprocessedImage fromRgba(Mat rgba){
+		if (rgba == null || rgba.empty())
+			throw new IllegalArgumentException("Empty image");
+		Mat gray = new Mat();
+		Imgproc.cvtColor(rgba, gray, Imgproc.COLOR_RGBA2GRAY);
+		return new PreprocessedImage(rgba, null, gray);
+	}
+
+	/**
+	 * Runs the preprocessing stage on a Bitmap.  The RGBA copy made for the 
+	 * conversion is dropped, getColor() copies the Bitmap again when needed.
+	 * @param image ARGB_8888 Bitmap, must not be recycled while this image is used
+	 * @return preprocessed image
+	 */
+	public static PreprocessedImage fromBitmap(final Bitmap image){
+		Mat rgba = new Mat();
+		Utils.bitmapToMat(image, rgba);
+		Mat gray = new Mat();
+		Imgproc.cvtColor(rgba, gray, Imgproc.COLOR_RGBA2GRAY);
+		rgba.release();
+		return new PreprocessedImage(null, new ColorSource() {
+			@Override
+			public Mat loadColor(int width, int height) {
+				Mat color = new Mat();
+				Utils.bitmapToMat(image, color);
+				return color;
+			}
+		}, gray);
+	}
+
+	/**
+	 * Wraps an image that is already grayscale
+	 * @param gray CV_8UC1 image, not copied
+	 * @param colorSource produces the color version on demand, null if the 
+	 * 			image is only analysed
+	 * @return preprocessed image that owns gray
+	 */
+	public static PreprocessedImage fromGray(Mat gray, ColorSource colorSource){
+		if (gray == null || gray.empty())
+			throw new IllegalArgumentException("Empty image");
+		if (gray.channels() != 1)
+			throw new IllegalArgumentException("Image has " + gray.channels() + " channels");
+		return new PreprocessedImage(null, colorSource, gray);
+	}
+
+	/**
+	 * Decodes the image of a content URI once at the default working 
+	 * resolution, gray and color both come from that decode
+	 * @return preprocessed image, or null if uri could not be decoded
+	 */
+	public static PreprocessedImage fromUri(ContentResolver resolver, Uri uri){
+		Mat rgba = ImageLoader.loadRgba(resolver, uri);
+		return rgba == null ? null : fromRgba(rgba);
+	}
+
+	/**
+	 * Decodes an image file once at the default working resolution, gray
+	 * and color both come from that decode
+	 * @return preprocessed image, or null if path could not be decoded
+	 */
+	public static PreprocessedImage fromFile(String path){
+		Mat rgba = ImageLoader.loadRgba(path);
+		return rgba == null ? null : fromRgba(rgba);
+	}
+
+	/**
+	 * Reads all of a region decoded image subsampled to the default working 
+	 * resolution.  Color is kept, in tiled mode it is needed for display
+	 * anyway and the image is not decoded a second time for it.
+	 * @return preprocessed image, or null if tiles could not be decoded
+	 */
+	public static PreprocessedImage fromTiles(TiledImage tiles){
+		Size size = ImageLoader.getWorkingSize(tiles.getWidth(), tiles.getHeight(), 
+				ImageLoader.DEFAULT_TARGET_WIDTH, ImageLoader.DEFAULT_TARGET_HEIGHT);
+		Mat rgba = tiles.readColor((int) size.width, (int) size.height);
+		if (rgba == null) return null;
+		return fromRgba(rgba);
+	}
+
+	/**
+	 * Converts a freshly decoded Bitmap and recycles it
+	 * @return RGBA image of width x height, or null if image is null
+	 */
+	static Mat toColor(Bitmap image, int width, int height){
+		if (image == null) return null;
+		Mat color = new Mat();
+		Utils.bitmapToMat(image, color);
+		image.recycle();
+		if (color.cols() != width || color.rows() != height){
+			// Decoders may round the working size differently
+			Mat resized = new Mat();
+			Imgproc.resize(color, resized, new Size(width, height));
+			color.release();
+			color = resized;
+		}
+		return color;
+	}
+
+	/**
+	 * Decodes or converts the color version on first request
+	 * @return RGBA image for display and warping, null if it can not be produced
+	 */
+	public synchronized Mat getColor(){
+		if (mColor == null && mColorSource != null && mReferences > 0){
+			mColor = mColorSource.loadColor(getWidth(), getHeight());
+			if (mColor == null)
+				Log.e(TAG, "Unable to produce color image");
+		}
+		return mColor;
+	}
+
+	/**
+	 * @return single channel grayscale plane for OpenCV feature stages
+	 */
+	public Mat getGray(){
+		return mGray;
+	}
+
+	/**
+	 * @return grayscale plane for the Java feature stages
+	 */
+	public synchronized GrayImage getGrayImage(){
+		if (mGrayImage == null){
+			byte[] pixels = new byte[mGray.rows() * mGray.cols()];
+			mGray.get(0, 0, pixels);
+			mGrayImage = new GrayImage(pixels, mGray.cols(), mGray.rows());
+		}
+		return mGrayImage;
+	}
+
+	/**
+	 * Pyramid shared by every detector and descriptor run on this image, 
+	 * levels are built on first use.  Callers that keep using levels after
+	 * the image may be replaced should bracket that use with 
+	 * ImagePyramid.acquire() and release().
+	 * @return pyramid over the grayscale plane
+	 */
+	public synchronized ImagePyramid getPyramid(){
+		if (mPyramid == null)
+			mPyramid = new ImagePyramid(getGrayImage());
+		return mPyramid;
+	}
+
+	/**
+	 * Drops the reference this image holds on its pyramid, release() does 
+	 * so with the last reference.  Levels are recycled once the last 
+	 * consumer releases them.
+	 */
+	public synchronized void releasePyramid(){
+		if (mPyramid != null){
+			mPyramid.release();
+			mPyramid = null;
+		}
+	}
+
+	/**
+	 * Registers a consumer, the image is kept until every acquire is 
+	 * matched with a release
+	 * @return false if the image was already released, it must not be
+	 * 			used and not be released then
+	 */
+	public synchronized boolean acquire(){
+		if (mReferences == 0) return false;
+		mReferences++;
+		return true;
+	}
+
+	/**
+	 * Gives up a reference, the last one releases the grayscale plane, the
+	 * color image and the pyramid.  Nothing returned earlier may be used 
+	 * afterwards.
+	 */
+	public synchronized void release(){
+		if (mReferences == 0) return;
+		if (--mReferences > 0) return;
+		releasePyramid();
+		mGrayImage = null;
+		mGray.release();
+		if (mColor != null){
+			mColor.release();
+			mColor = null;
+		}
+	}
+
+	/**
+	 * Region of the grayscale plane, for example to crop text for OCR.
+	 * The region is clipped to the image.
+	 * @param region area to crop
+	 * @return view into the grayscale plane (not a copy), or null if region 
+	 * 			is outside the image
+	 */
+	public Mat cropGray(Rect region){
+		int x0 = Math.max(0, region.x);
+		int y0 = Math.max(0, region.y);
+		int x1 = Math.min(getWidth(), region.x + region.width);
+		int y1 = Math.min(getHeight(), region.y + region.height);
+		if (x1 <= x0 || y1 <= y0) return null;
+		return mGray.submat(new Rect(x0, y0, x1 - x0, y1 - y0));
+	}
+
+	public int getWidth(){
+		return mGray.cols();
+	}
+
+	public int getHeight(){
+		return mGray.rows();
+	}
+}
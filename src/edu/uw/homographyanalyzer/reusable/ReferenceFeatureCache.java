@@ -0,0 +1,128 @@
+package edu.uw.homographyanalyzer.reusable;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfKeyPoint;
+
+import android.util.Pair;
+import edu.uw.homographyanalyzer.reusable.features.PqCodes;
+import edu.uw.homographyanalyzer.reusable.features.ProductQuantizer;
+
+/**
+ * Process wide cache of the key points and descriptors found on the
+ * annotated regions of an appliance reference image.  A reference image
+ * of an appliance does not change, so it only has to be detected and
+ * described once per feature detector.
+ *
+ * Descriptors can be cached product quantized instead.  The codebooks are
+ * trained per appliance on the first reference image of the appliance and
+ * kept here as well, so later images of the same appliance are compressed
+ * without training again.
+ *
+ * Cached matrices are shared and must be treated as read only.
+ *
+ * @author mhotan
+ */
+public final class ReferenceFeatureCache {
+
+	private static final Map<String, Pair<MatOfKeyPoint, Mat>> sCache =
+			new HashMap<String, Pair<MatOfKeyPoint, Mat>>();
+	private static final Map<String, PqCodes> sCodes = new HashMap<String, PqCodes>();
+	private static final Map<String, ProductQuantizer> sQuantizers =
+			new HashMap<String, ProductQuantizer>();
+
+	private ReferenceFeatureCache(){}
+
+	/**
+	 * @param appliance name of the appliance
+	 * @param image uri or path of the reference image
+	 * @param detector name of the feature detector
+	 * @param width width of the reference image
+	 * @param height height of the reference image
+	 * @return key points and descriptors or null if not cached, the 
+	 * 			descriptors are null if they are cached as codes
+	 */
+	public static synchronized Pair<MatOfKeyPoint, Mat> get(String appliance,
+			String image, String detector, int width, int height){
+		return sCache.get(key(appliance, image, detector, width, height));
+	}
+
+	/**
+	 * @return product quantized descriptors of the features returned by get
+	 * 			or null if they are not cached as codes
+	 */
+	public static synchronized PqCodes getCodes(String appliance, String image, 
+			String detector, int width, int height){
+		return sCodes.get(key(appliance, image, detector, width, height));
+	}
+
+	/**
+	 * Caches the features of an appliance reference image
+	 * @param descriptors descriptors, null if codes are given instead
+	 * @param codes product quantized descriptors, null if descriptors are given
+	 */
+	public static synchronized void put(String appliance, String image, String detector,
+			int width, int height, MatOfKeyPoint keyPoints, Mat descriptors, PqCodes codes){
+		if (keyPoints == null || (descriptors == null) == (codes == null))
+			throw new IllegalArgumentException("Need key points and either descriptors or codes for " 
+					+ appliance);
+		String key = key(appliance, image, detector, width, height);
+		sCache.put(key, new Pair<MatOfKeyPoint, Mat>(keyPoints, descriptors));
+		if (codes != null) sCodes.put(key, codes);
+		else sCodes.remove(key);
+	}
+
+	/**
+	 * @param appliance name of the appliance
+	 * @param detector name of the feature detector
+	 * @return codebooks trained on the appliance or null if not cached
+	 */
+	public static synchronized ProductQuantizer getQuantizer(String appliance, String detector){
+		return sQuantizers.get(appliance + "|" + detector);
+	}
+
+	/**
+	 * Caches the codebooks trained on the descriptors of an appliance
+	 */
+	public static synchronized void putQuantizer(String appliance, String detector,
+			ProductQuantizer quantizer){
+		if (quantizer == null)
+			throw new IllegalArgumentException("Null quantizer for " + appliance);
+		sQuantizers.put(appliance + "|" + detector, quantizer);
+	}
+
+	/**
+	 * Drops all cached features and codebooks of an appliance, for example 
+	 * after its annotations changed
+	 * @param appliance name of the appliance
+	 */
+	public static synchronized void clear(String appliance){
+		String prefix = appliance + "|";
+		removePrefix(sCache.keySet().iterator(), prefix);
+		removePrefix(sCodes.keySet().iterator(), prefix);
+		removePrefix(sQuantizers.keySet().iterator(), prefix);
+	}
+
+	/**
+	 * Drops everything
+	 */
+	public static synchronized void clear(){
+		sCache.clear();
+		sCodes.clear();
+		sQuantizers.clear();
+	}
+
+	private static void removePrefix(Iterator<String> it, String prefix){
+		while (it.hasNext()){
+			if (it.next().startsWith(prefix)) it.remove();
+		}
+	}
+
+	private static String key(String appliance, String image, String detector, 
+			int width, int height){
+		return appliance + "|" + detector + "|" + width + "x" + height + "|" + image;
+	}
+}
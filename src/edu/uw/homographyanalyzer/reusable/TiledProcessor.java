@@ -0,0 +1,294 @@
+package edu.uw.homographyanalyzer.reusable;
+
+import java.util.List;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfKeyPoint;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.features2d.DescriptorExtractor;
+import org.opencv.features2d.FeatureDetector;
+import org.opencv.imgproc.Imgproc;
+
+import android.util.Log;
+import android.util.Pair;
+import edu.uw.homographyanalyzer.reusable.features.KeyPointBuffer;
+import edu.uw.homographyanalyzer.tools.MatScope;
+import edu.uw.homographyanalyzer.tools.MatTracker;
+import edu.uw.homographyanalyzer.tools.TiledImage;
+
+/**
+ * Feature detection and warping of full resolution images tile by tile.
+ *
+ * Detection decodes one tile at a time, grown by an overlap so descriptor
+ * patches at the tile border see their surroundings, and keeps the key
+ * points whose center lies inside the tile itself.  The overlap covers the
+ * border ORB leaves out on its coarsest pyramid level, so every scale is
+ * found near tile borders as well.  Key points are scaled
+ * into the coordinates of the working resolution image, the homography is
+ * still estimated there but from full resolution measurements.
+ *
+ * Warping projects every output tile back into the source, decodes only
+ * the covered source region and warps it with a homography local to the
+ * two regions.  Source regions that would be much larger than the tile,
+ * close to a vanishing line, are subsampled, they are minified anyway.
+ *
+ * Peak memory of either stage is a small multiple of the tile size.
+ *
+ * @author mhotan
+ */
+public class TiledProcessor {
+
+	private static final String TAG = "TiledProcessor";
+
+	public static final int DEFAULT_TILE_SIZE = TiledImage.DEFAULT_TILE_SIZE;
+	// Native ORB defaults, every level keeps ORB_EDGE_THRESHOLD of its own 
+	// pixels away from the border
+	private static final int ORB_EDGE_THRESHOLD = 31;
+	private static final double ORB_SCALE_FACTOR = 1.2;
+	private static final int ORB_NUM_LEVELS = 8;
+	// Border of the coarsest level in full resolution pixels, 112
+	public static final int TILE_OVERLAP = (int) Math.ceil(
+			ORB_EDGE_THRESHOLD * Math.pow(ORB_SCALE_FACTOR, ORB_NUM_LEVELS - 1));
+	// Source pixels decoded per output pixel before subsampling
+	private static final int MAX_SOURCE_RATIO = 4;
+	// Source pixels around the projected tile read for interpolation
+	private static final int INTERPOLATION_MARGIN = 2;
+
+	/**
+	 * Receives warped output tiles in order
+	 */
+	public interface TileSink {
+
+		/**
+		 * @param tile RGBA pixels of region, released after the call returns
+		 * @param region area of the output covered by tile
+		 */
+		public void onTile(Mat tile, Rect region);
+	}
+
+	/**
+	 * Detects and describes features on a full resolution image one tile at a time
+	 * @param image image to search
+	 * @param detector OpenCV detector
+	 * @param extractor OpenCV extractor
+	 * @param tileSize side of the tiles
+	 * @param maxKeyPoints key points kept in total, split among the tiles by
+	 * 			area, <= 0 keeps all of them
+	 * @param spread true to spread the kept key points over each tile
+	 * @param scale factor from full resolution to the returned coordinates,
+	 * 			working width / full width
+	 * @return key points in scaled coordinates and their descriptors, row i
+	 * 			describes key point i
+	 */
+	public static Pair<MatOfKeyPoint, Mat> detect(TiledImage image, FeatureDetector detector,
+			DescriptorExtractor extractor, int tileSize, int maxKeyPoints, boolean spread,
+			double scale){
+		if (image == null || detector == null || extractor == null)
+			throw new IllegalArgumentException("NULL argument");
+		List<Rect> tiles = image.getTiles(tileSize);
+		double area = (double) image.getWidth() * image.getHeight();
+		KeyPointBuffer keyPoints = new KeyPointBuffer();
+		Mat descriptors = MatTracker.track(new Mat(), "tiled descriptors");
+
+		for (Rect tile : tiles){
+			MatScope scope = new MatScope("tile");
+			try {
+				Rect region = image.grow(tile, TILE_OVERLAP);
+				Mat gray = scope.add(image.readGray(region, 1));
+				if (gray == null) continue;
+				MatOfKeyPoint found = scope.add(new MatOfKeyPoint());
+				detector.detect(gray, found);
+
+				// Key points of the overlap belong to the neighbours
+				KeyPointBuffer inside = FeatureAdapter.toKeyPointBuffer(found);
+				int n = 0;
+				for (int i = 0; i < inside.size(); i++){
+					float x = inside.getX(i) + region.x;
+					float y = inside.getY(i) + region.y;
+					if (x >= tile.x && x < tile.x + tile.width
+							&& y >= tile.y && y < tile.y + tile.height)
+						inside.copy(i, n++);
+				}
+				inside.truncate(n);
+				if (n == 0) continue;
+
+				int cap = maxKeyPoints <= 0 ? 0 : (int) Math.max(1,
+						Math.round(maxKeyPoints * tile.area() / area));
+				MatOfKeyPoint kept = scope.add(FeatureAdapter.toMatOfKeyPoint(inside));
+				MatOfKeyPoint capped = ComputerVision.capKeyPoints(kept, cap, spread);
+				if (capped != kept) scope.add(capped);
+				Mat described = scope.newMat();
+				// Drops key points it can not describe
+				extractor.compute(gray, capped, described);
+				if (described.rows() == 0) continue;
+
+				KeyPointBuffer tileKeyPoints = FeatureAdapter.toKeyPointBuffer(capped);
+				for (int i = 0; i < tileKeyPoints.size(); i++)
+					keyPoints.add((float) ((tileKeyPoints.getX(i) + region.x) * scale),
+							(float) ((tileKeyPoints.getY(i) + region.y) * scale),
+							(float) (tileKeyPoints.getSize(i) * scale),
+							tileKeyPoints.getAngle(i), tileKeyPoints.getResponse(i),
+							tileKeyPoints.getOctave(i));
+				descriptors.push_back(described);
+			} finally {
+				scope.close();
+			}
+		}
+		Log.i(TAG, "Found " + keyPoints.size() + " key points in " + tiles.size() + " tiles of "
+				+ image.getWidth() + "x" + image.getHeight());
+		return new Pair<MatOfKeyPoint, Mat>(
+				MatTracker.track(FeatureAdapter.toMatOfKeyPoint(keyPoints), "tiled keypoints"),
+				descriptors);
+	}
+
+	/**
+	 * Warps source at full resolution and hands the output to sink tile by
+	 * tile, the whole output never exists in memory
+	 * @param source full resolution image to warp
+	 * @param homography homography at the working resolution, as used by
+	 * 			ComputerVision.getWarpedImage
+	 * @param invert same as for ComputerVision.getWarpedImage
+	 * @param sourceScale full width / working width of the source
+	 * @param outputScale full width / working width of the output
+	 * @param outWidth full resolution width of the output
+	 * @param outHeight full resolution height of the output
+	 * @param tileSize side of the output tiles
+	 * @param sink receives every output tile
+	 */
+	public static void warp(TiledImage source, Mat homography, boolean invert,
+			double sourceScale, double outputScale, int outWidth, int outHeight,
+			int tileSize, TileSink sink){
+		double[] m = toFullResolution(homography, invert, sourceScale, outputScale);
+		for (Rect tile : TiledImage.getTiles(outWidth, outHeight, tileSize)){
+			Mat out = warpTile(source, m, tile);
+			try {
+				sink.onTile(out, tile);
+			} finally {
+				MatTracker.release(out);
+			}
+		}
+	}
+
+	/**
+	 * Warps one region of the output at full resolution, for example the
+	 * area OCR reads
+	 * @see #warp(TiledImage, Mat, boolean, double, double, int, int, int, TileSink)
+	 * @param region full resolution region of the output
+	 * @return RGBA pixels of region, owned by the caller
+	 */
+	public static Mat warpRegion(TiledImage source, Mat homography, boolean invert,
+			double sourceScale, double outputScale, Rect region){
+		return warpTile(source, toFullResolution(homography, invert, sourceScale, outputScale),
+				region);
+	}
+
+	/**
+	 * @return row major 3x3 map from full resolution output to full
+	 * 			resolution source coordinates
+	 */
+	private static double[] toFullResolution(Mat homography, boolean invert,
+			double sourceScale, double outputScale){
+		if (homography == null || homography.rows() != 3 || homography.cols() != 3)
+			throw new IllegalArgumentException("Homography must be 3x3");
+		if (sourceScale <= 0 || outputScale <= 0)
+			throw new IllegalArgumentException("Illegal scale " + sourceScale
+					+ ", " + outputScale);
+		double[] h = new double[9];
+		Mat h64 = homography;
+		if (homography.type() != CvType.CV_64FC1){
+			h64 = new Mat();
+			homography.convertTo(h64, CvType.CV_64FC1);
+		}
+		h64.get(0, 0, h);
+		if (h64 != homography) h64.release();
+		// WARP_INVERSE_MAP uses the homography as output to source map
+		double[] m = invert ? h : inverse(h);
+		return multiply(scale(sourceScale), multiply(m, scale(1 / outputScale)));
+	}
+
+	/**
+	 * Decodes the source region covered by tile and warps it
+	 */
+	private static Mat warpTile(TiledImage source, double[] m, Rect tile){
+		Mat out = MatTracker.track(Mat.zeros(tile.height, tile.width, CvType.CV_8UC4), "warp tile");
+		Rect covered = project(source, m, tile);
+		if (covered.width == 0 || covered.height == 0) return out;
+
+		int sampleSize = 1;
+		double limit = MAX_SOURCE_RATIO * Math.max(tile.area(),
+				(double) DEFAULT_TILE_SIZE * DEFAULT_TILE_SIZE);
+		while ((double) (covered.width / sampleSize) * (covered.height / sampleSize) > limit)
+			sampleSize *= 2;
+		Mat region = source.readColor(covered, sampleSize);
+		if (region == null) return out;
+
+		// Output tile coordinates to decoded region coordinates
+		double[] translateOut = {1, 0, tile.x, 0, 1, tile.y, 0, 0, 1};
+		double[] toRegion = {1.0 / sampleSize, 0, -covered.x / (double) sampleSize,
+				0, 1.0 / sampleSize, -covered.y / (double) sampleSize, 0, 0, 1};
+		Mat local = new Mat(3, 3, CvType.CV_64FC1);
+		local.put(0, 0, multiply(toRegion, multiply(m, translateOut)));
+		Imgproc.warpPerspective(region, out, local, new Size(tile.width, tile.height),
+				Imgproc.WARP_INVERSE_MAP);
+		local.release();
+		region.release();
+		return out;
+	}
+
+	/**
+	 * @return bounding box of tile mapped by m into the source, clipped to
+	 * 			the source, the whole source if a corner maps to infinity
+	 */
+	private static Rect project(TiledImage source, double[] m, Rect tile){
+		double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+		double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+		for (int corner = 0; corner < 4; corner++){
+			double x = tile.x + ((corner & 1) == 0 ? 0 : tile.width);
+			double y = tile.y + ((corner & 2) == 0 ? 0 : tile.height);
+			double w = m[6] * x + m[7] * y + m[8];
+			if (w <= 1e-9)
+				return new Rect(0, 0, source.getWidth(), source.getHeight());
+			double sx = (m[0] * x + m[1] * y + m[2]) / w;
+			double sy = (m[3] * x + m[4] * y + m[5]) / w;
+			minX = Math.min(minX, sx);
+			minY = Math.min(minY, sy);
+			maxX = Math.max(maxX, sx);
+			maxY = Math.max(maxY, sy);
+		}
+		if (maxX < 0 || maxY < 0 || minX >= source.getWidth() || minY >= source.getHeight())
+			return new Rect(0, 0, 0, 0);
+		int x = (int) Math.floor(Math.max(0, minX));
+		int y = (int) Math.floor(Math.max(0, minY));
+		int right = (int) Math.ceil(Math.min(source.getWidth(), maxX));
+		int bottom = (int) Math.ceil(Math.min(source.getHeight(), maxY));
+		return source.grow(new Rect(x, y, right - x, bottom - y), INTERPOLATION_MARGIN);
+	}
+
+	private static double[] scale(double s){
+		return new double[]{s, 0, 0, 0, s, 0, 0, 0, 1};
+	}
+
+	private static double[] multiply(double[] a, double[] b){
+		double[] c = new double[9];
+		for (int r = 0; r < 3; r++)
+			for (int col = 0; col < 3; col++)
+				c[3 * r + col] = a[3 * r] * b[col] + a[3 * r + 1] * b[3 + col]
+						+ a[3 * r + 2] * b[6 + col];
+		return c;
+	}
+
+	private static double[] inverse(double[] a){
+		double c0 = a[4] * a[8] - a[5] * a[7];
+		double c1 = a[5] * a[6] - a[3] * a[8];
+		double c2 = a[3] * a[7] - a[4] * a[6];
+		double det = a[0] * c0 + a[1] * c1 + a[2] * c2;
+		if (Math.abs(det) < 1e-12)
+			throw new IllegalArgumentException("Homography is singular");
+		return new double[]{
+				c0 / det, (a[2] * a[7] - a[1] * a[8]) / det, (a[1] * a[5] - a[2] * a[4]) / det,
+				c1 / det, (a[0] * a[8] - a[2] * a[6]) / det, (a[2] * a[3] - a[0] * a[5]) / det,
+				c2 / det, (a[1] * a[6] - a[0] * a[7]) / det, (a[0] * a[4] - a[1] * a[3]) / det};
+	}
+}
@@ -2,22 +2,50 @@ package edu.uw.homographyanalyzer.reusable;
 
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.Callable;
 
-import org.opencv.android.Utils;
 import org.opencv.calib3d.Calib3d;
+import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfDMatch;
 import org.opencv.core.MatOfKeyPoint;
-import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
 import org.opencv.features2d.DescriptorExtractor;
 import org.opencv.features2d.FeatureDetector;
 
+import android.content.ContentResolver;
 import android.graphics.Bitmap;
+import android.net.Uri;
 import android.os.AsyncTask;
 import android.util.Log;
 import android.util.Pair;
+import edu.uw.homographyanalyzer.api.ApplianceImageSet;
 import edu.uw.homographyanalyzer.quicktransform.TransformInfo;
+import edu.uw.homographyanalyzer.reusable.features.AdaptiveFastDetector;
+import edu.uw.homographyanalyzer.reusable.features.BinaryDescriptors;
+import edu.uw.homographyanalyzer.reusable.features.FastDetector;
+import edu.uw.homographyanalyzer.reusable.features.FeatureMask;
+import edu.uw.homographyanalyzer.reusable.features.FloatDescriptors;
+import edu.uw.homographyanalyzer.reusable.features.GrayImage;
+import edu.uw.homographyanalyzer.reusable.features.GridDetector;
+import edu.uw.homographyanalyzer.reusable.features.ImagePyramid;
+import edu.uw.homographyanalyzer.reusable.features.KdForest;
+import edu.uw.homographyanalyzer.reusable.features.KeyPointBuffer;
+import edu.uw.homographyanalyzer.reusable.features.KeyPointDetector;
+import edu.uw.homographyanalyzer.reusable.features.KeyPointSelector;
+import edu.uw.homographyanalyzer.reusable.features.OrbExtractor;
+import edu.uw.homographyanalyzer.reusable.features.PqCodes;
+import edu.uw.homographyanalyzer.reusable.features.ProductQuantizer;
+import edu.uw.homographyanalyzer.reusable.features.PyramidFastDetector;
+import edu.uw.homographyanalyzer.tools.BitmapPool;
+import edu.uw.homographyanalyzer.tools.MatPool;
+import edu.uw.homographyanalyzer.tools.MatScope;
+import edu.uw.homographyanalyzer.tools.MatTracker;
+import edu.uw.homographyanalyzer.tools.SharedMat;
+import edu.uw.homographyanalyzer.tools.TiledImage;
 
 /**
  * Class that is able to build a homography trasnformation between to images
@@ -32,9 +60,15 @@ public class TransformationBuilder {
 	private static final Pair<Integer, Integer> RANSAC_RANGE = 
 			new Pair<Integer, Integer>(1, RANSAC_THRESHHOLD_MAX);
 
+	// Float reference sets smaller than this are not indexed
+	private static final int MIN_INDEXED_DESCRIPTORS = 1000;
+
 	// Computer vision object to
 	private ComputerVision mCV;
 
+	// Match to point conversion, buffers are reused by every homography run
+	private final CorrespondenceBuilder mCorrespondences = new CorrespondenceBuilder();
+
 	// Asyncronous homography producer 
 	private AsyncHomographyProcessor homographyProcesser;
 	private AsyncFeatureDetector mRefFeatureDetector;
@@ -49,7 +83,16 @@ public class TransformationBuilder {
 	///////////////////////////////////////////////////////////////////
 	// Vairables for build process
 
-	private Bitmap mReferenceImage, mOtherImage;
+	// Bitmap, Uri or path each image was last set from
+	private Object mReferenceSource, mOtherSource;
+	// Decoded images of paths, null to decode every time
+	private FrameStore mFrameStore;
+
+	// Detect on full resolution tiles of images set by Uri or path
+	private boolean mTiledMode = false;
+	private int mTileSize = TiledProcessor.DEFAULT_TILE_SIZE;
+	// Full resolution sources of the images in storage, null unless tiled
+	private TiledImage mRefTiles, mOtherTiles;
 
 	//Name of feature detection type to use
 	private String mFeatureDetectorName = null;
@@ -61,6 +104,28 @@ public class TransformationBuilder {
 	// threshold for feature matching
 	private int mRansacThreshhold;
 
+	// Appliance whose annotations restrict detection on the reference image
+	private String mRegionApplianceName;
+	private ApplianceImageSet mRegionAppliance;
+
+	// Maximum number of key points per image, 0 for no limit
+	private int mMaxKeyPoints = 0;
+	// Select capped key points with adaptive non maximal suppression 
+	private boolean mSpreadKeyPoints = false;
+
+	// Float descriptor matching, trees of the reference index (0 for brute 
+	// force) and descriptors compared per query
+	private int mMatchTrees = KdForest.DEFAULT_TREES;
+	private int mMatchMaxChecks = KdForest.DEFAULT_MAX_CHECKS;
+
+	// Bytes per product quantized reference descriptor, 0 keeps float descriptors
+	private int mCompactCodeBytes = 0;
+
+	// Target and time budget of ADAPTIVE_FAST, threshold carried between images
+	private int mAdaptiveTargetCount = AdaptiveFastDetector.DEFAULT_TARGET_COUNT;
+	private long mAdaptiveBudgetMillis = AdaptiveFastDetector.DEFAULT_BUDGET_MILLIS;
+	private int mAdaptiveThreshold = FastDetector.DEFAULT_THRESHOLD;
+
 	///////////////////////////////////////////////////////////////////
 	// Constructor
 
@@ -91,30 +156,130 @@ public class TransformationBuilder {
 	 * Attempts to build transformation and returns in paor
 	 * pair.first = regular inversion
 	 * pair.secod = inverse ivnersion 
+	 * Both Bitmaps come from the BitmapPool and can be released to it
 	 * @return null if couldnt build or Data other wise
 	 */
 	public Pair<Bitmap, Bitmap> getWarpedImages(){
 		if (!storage.isComplete()) return null;
 
-		// Check if storage has a complete homography
-		Mat homography = storage.getHomographyMatrix() ;
+		// Check if storage has a complete homography, read in place
+		SharedMat homography = storage.getHomographyView();
 
 		// Do a transformation with non inverted map
-		Mat refMat = storage.getReferenceMatrix();
+		SharedMat refMat = storage.getReferenceView();
+		if (refMat == null){
+			homography.release();
+			return null;
+		}
 
-		Mat result = ComputerVision.getWarpedImage(refMat, homography, true);
-		Bitmap disp = Bitmap.createBitmap(result.cols(), result.rows(),
-				Bitmap.Config.ARGB_8888); // Android uses ARGB_8888
-		Utils.matToBitmap(result, disp);
+		// One pooled buffer serves both directions
+		Mat result = MatPool.obtain(refMat.rows(), refMat.cols(), refMat.type());
+		ComputerVision.getWarpedImage(refMat.view(), homography.view(), true, result);
+		Bitmap disp = BitmapPool.fromMat(result);
 
-		Mat resultInv = ComputerVision.getWarpedImage(refMat, homography, false);
-		Bitmap dispInv = Bitmap.createBitmap(resultInv.cols(), result.rows(),
-				Bitmap.Config.ARGB_8888); // Android uses ARGB_8888
-		Utils.matToBitmap(resultInv, dispInv);
+		ComputerVision.getWarpedImage(refMat.view(), homography.view(), false, result);
+		Bitmap dispInv = BitmapPool.fromMat(result);
+		MatPool.release(result);
+		refMat.release();
+		homography.release();
 
 		return new Pair<Bitmap, Bitmap>(disp, dispInv);
 	}
 
+	/**
+	 * @return true if the first image of getWarpedImages() can be produced at 
+	 * 			full resolution, only in tiled mode for images set by Uri or path
+	 */
+	public boolean hasFullResolution(){
+		return storage.isComplete() && mRefTiles != null;
+	}
+
+	/**
+	 * @requires hasFullResolution()
+	 * @return full resolution size of the images of warpFullResolution
+	 */
+	public Size getFullResolutionSize(){
+		PreprocessedImage ref = storage.getPreprocessedReference();
+		double scale = getOutputScale();
+		return new Size(Math.round(ref.getWidth() * scale), Math.round(ref.getHeight() * scale));
+	}
+
+	/**
+	 * Produces the first image of getWarpedImages() at full resolution one
+	 * tile at a time, neither image is decoded as a whole
+	 * @requires hasFullResolution()
+	 * @param sink receives the warped tiles
+	 */
+	public void warpFullResolution(TiledProcessor.TileSink sink){
+		if (!hasFullResolution())
+			throw new IllegalStateException("No full resolution source");
+		Size size = getFullResolutionSize();
+		SharedMat homography = storage.getHomographyView();
+		try {
+			TiledProcessor.warp(mRefTiles, homography.view(), true, getSourceScale(), 
+					getOutputScale(), (int) size.width, (int) size.height, mTileSize, sink);
+		} finally {
+			homography.release();
+		}
+	}
+
+	/**
+	 * Warps one region of the first image of getWarpedImages() at full 
+	 * resolution, for example the area OCR reads
+	 * @requires hasFullResolution()
+	 * @param region full resolution region, see getFullResolutionSize()
+	 * @return RGBA pixels of region, owned by the caller
+	 */
+	public Mat getFullResolutionWarp(Rect region){
+		if (!hasFullResolution())
+			throw new IllegalStateException("No full resolution source");
+		SharedMat homography = storage.getHomographyView();
+		try {
+			return TiledProcessor.warpRegion(mRefTiles, homography.view(), true, 
+					getSourceScale(), getOutputScale(), region);
+		} finally {
+			homography.release();
+		}
+	}
+
+	// Full over working resolution of the warped image
+	private double getSourceScale(){
+		return (double) mRefTiles.getWidth() / storage.getPreprocessedReference().getWidth();
+	}
+
+	// Full over working resolution of the frame warped into, the source 
+	// scale if the other image has no full resolution source
+	private double getOutputScale(){
+		if (mOtherTiles == null) return getSourceScale();
+		return (double) mOtherTiles.getWidth() / storage.getPreprocessedOther().getWidth();
+	}
+
+	/**
+	 * Images set by Uri or path after this call are analysed at full 
+	 * resolution: features are detected on tiles decoded region by region 
+	 * and warps can be produced at full resolution.  Only OpenCV detectors
+	 * run tiled, the others and annotated reference regions keep the 
+	 * working resolution.
+	 * @param tiled true to enable tiled mode
+	 */
+	public void setTiledMode(boolean tiled){
+		mTiledMode = tiled;
+	}
+
+	public boolean isTiledMode(){
+		return mTiledMode;
+	}
+
+	/**
+	 * @param tileSize side of the square tiles of tiled mode
+	 */
+	public void setTileSize(int tileSize){
+		if (tileSize <= TiledProcessor.TILE_OVERLAP)
+			throw new IllegalArgumentException("Tile size must exceed the overlap of " 
+					+ TiledProcessor.TILE_OVERLAP);
+		mTileSize = tileSize;
+	}
+
 	///////////////////////////////////////////////////////////////////
 	// Homography 
 
@@ -158,6 +323,85 @@ public class TransformationBuilder {
 		attemptToBuild();
 	}
 
+	/**
+	 * Caps the number of key points found per image, so matching and 
+	 * homography estimation cost stay predictable.  Images already set are
+	 * detected again.
+	 * @param maxKeyPoints maximum number of key points, 0 for no limit
+	 * @param spread true to select key points spread over the image with 
+	 * 			adaptive non maximal suppression, false to keep the strongest
+	 */
+	public void setMaxKeyPoints(int maxKeyPoints, boolean spread){
+		if (maxKeyPoints < 0)
+			throw new IllegalArgumentException("Illegal maximum number of key points " 
+					+ maxKeyPoints);
+		if (maxKeyPoints == mMaxKeyPoints && spread == mSpreadKeyPoints) return;
+		mMaxKeyPoints = maxKeyPoints;
+		mSpreadKeyPoints = spread;
+		Log.i(TAG, "Maximum key points set: " + maxKeyPoints + (spread ? " spread" : ""));
+		redetect();
+	}
+
+	public int getMaxKeyPoints(){
+		return mMaxKeyPoints;
+	}
+
+	/**
+	 * Sets how ADAPTIVE_FAST trades key point count against latency.  
+	 * Takes effect with the next image.
+	 * @param targetCount number of key points to aim for
+	 * @param budgetMillis wall clock time per image spent tuning the threshold
+	 */
+	public void setAdaptiveDetection(int targetCount, long budgetMillis){
+		if (targetCount <= 0 || budgetMillis < 0)
+			throw new IllegalArgumentException("Illegal adaptive detection target " 
+					+ targetCount + " or budget " + budgetMillis);
+		mAdaptiveTargetCount = targetCount;
+		mAdaptiveBudgetMillis = budgetMillis;
+		Log.i(TAG, "Adaptive detection set: " + targetCount + " key points in " 
+				+ budgetMillis + " ms");
+	}
+
+	/**
+	 * Sets how float descriptors (SIFT, SURF) are matched against large 
+	 * reference sets.  The reference descriptors are indexed by a forest of 
+	 * randomized KD trees that is reused for every other image.  Takes effect
+	 * with the next homography.  No detector in 
+	 * getSupportedFeatureDetectorNames() produces float descriptors yet, so 
+	 * the index is unused until SIFT or SURF are enabled there.
+	 * @param numTrees number of trees, 0 to always match by brute force
+	 * @param maxChecks descriptors compared per query, higher gives better
+	 * 			recall at more cost, 0 for exact search
+	 */
+	public void setApproximateMatching(int numTrees, int maxChecks){
+		if (numTrees < 0 || maxChecks < 0)
+			throw new IllegalArgumentException("Illegal approximate matching trees " 
+					+ numTrees + " or checks " + maxChecks);
+		mMatchTrees = numTrees;
+		mMatchMaxChecks = maxChecks;
+		Log.i(TAG, "Approximate matching set: " + numTrees + " trees, " 
+				+ maxChecks + " checks");
+	}
+
+	/**
+	 * Stores float reference descriptors (SIFT, SURF) as product quantized
+	 * codes of a few bytes instead of 4 bytes per dimension and matches them
+	 * by asymmetric distance.  Codebooks are trained once per appliance on 
+	 * the annotated regions of its reference image (see setReferenceRegions), 
+	 * without an appliance on every reference image alone.  Takes effect with 
+	 * the next reference image.  Binary descriptors are always kept, and no 
+	 * detector in getSupportedFeatureDetectorNames() produces float 
+	 * descriptors yet, so this is unused until SIFT or SURF are enabled there.
+	 * @param codeBytes bytes per descriptor, for example 8 or 16, 0 to keep 
+	 * 			the float descriptors
+	 */
+	public void setCompactReferenceDescriptors(int codeBytes){
+		if (codeBytes < 0)
+			throw new IllegalArgumentException("Illegal code size " + codeBytes);
+		mCompactCodeBytes = codeBytes;
+		Log.i(TAG, "Compact reference descriptors set: " + codeBytes + " bytes");
+	}
+
 	/**
 	 * @return set of all available method of homographies
 	 */
@@ -186,8 +430,38 @@ public class TransformationBuilder {
 	 * @param image Bitmap image to be reference
 	 */
 	public void setReferenceImage(Bitmap image){
-		if (image == mReferenceImage) return;
-		setImagePrivate(image, OTHER_IMG);
+		if (image == null)
+			throw new IllegalArgumentException("NULL image");
+		if (image == mReferenceSource) return;
+		mReferenceSource = image;
+		setImagePrivate(bitmapLoader(image), null, OTHER_IMG);
+	}
+
+	/**
+	 * Sets the reference image to the image of a content URI.  It is decoded 
+	 * once in the background, gray and color are taken from that decode.
+	 * @param resolver resolver to open uri with
+	 * @param uri image to be reference
+	 */
+	public void setReferenceImage(ContentResolver resolver, Uri uri){
+		if (uri == null)
+			throw new IllegalArgumentException("NULL image");
+		if (uri.equals(mReferenceSource)) return;
+		mReferenceSource = uri;
+		setImagePrivate(uriLoader(resolver, uri), uriTiles(resolver, uri), OTHER_IMG);
+	}
+
+	/**
+	 * Sets the reference image to an image file, decoded like 
+	 * setReferenceImage(ContentResolver, Uri)
+	 * @param path image to be reference
+	 */
+	public void setReferenceImage(String path){
+		if (path == null)
+			throw new IllegalArgumentException("NULL image");
+		if (path.equals(mReferenceSource)) return;
+		mReferenceSource = path;
+		setImagePrivate(fileLoader(path), fileTiles(path), OTHER_IMG);
 	}
 
 	/**
@@ -195,12 +469,128 @@ public class TransformationBuilder {
 	 * @param image Bitmap image to be other
 	 */
 	public void setOtherImage(Bitmap image){
-		if (image == mOtherImage) return;
-		setImagePrivate(image, REF_IMG);
+		if (image == null)
+			throw new IllegalArgumentException("NULL image");
+		if (image == mOtherSource) return;
+		mOtherSource = image;
+		setImagePrivate(bitmapLoader(image), null, REF_IMG);
+	}
+
+	/**
+	 * Sets the other image to the image of a content URI.  It is decoded 
+	 * once in the background, gray and color are taken from that decode.
+	 * @param resolver resolver to open uri with
+	 * @param uri image to be other
+	 */
+	public void setOtherImage(ContentResolver resolver, Uri uri){
+		if (uri == null)
+			throw new IllegalArgumentException("NULL image");
+		if (uri.equals(mOtherSource)) return;
+		mOtherSource = uri;
+		setImagePrivate(uriLoader(resolver, uri), uriTiles(resolver, uri), REF_IMG);
+	}
+
+	/**
+	 * Sets the other image to an image file, decoded like 
+	 * setOtherImage(ContentResolver, Uri)
+	 * @param path image to be other
+	 */
+	public void setOtherImage(String path){
+		if (path == null)
+			throw new IllegalArgumentException("NULL image");
+		if (path.equals(mOtherSource)) return;
+		mOtherSource = path;
+		setImagePrivate(fileLoader(path), fileTiles(path), REF_IMG);
+	}
+
+	// Loaders run the preprocessing stage in the background task
+
+	private static Callable<PreprocessedImage> bitmapLoader(final Bitmap image){
+		return new Callable<PreprocessedImage>() {
+			@Override
+			public PreprocessedImage call() {
+				return PreprocessedImage.fromBitmap(image);
+			}
+		};
+	}
+
+	private static Callable<PreprocessedImage> uriLoader(final ContentResolver resolver, 
+			final Uri uri){
+		return new Callable<PreprocessedImage>() {
+			@Override
+			public PreprocessedImage call() {
+				return PreprocessedImage.fromUri(resolver, uri);
+			}
+		};
+	}
+
+	private Callable<PreprocessedImage> fileLoader(final String path){
+		final FrameStore frames = mFrameStore;
+		return new Callable<PreprocessedImage>() {
+			@Override
+			public PreprocessedImage call() {
+				if (frames != null) return frames.load(path);
+				return PreprocessedImage.fromFile(path);
+			}
+		};
+	}
+
+	// Tile openers run in the background task in tiled mode, null otherwise
+
+	private Callable<TiledImage> uriTiles(final ContentResolver resolver, final Uri uri){
+		if (!mTiledMode) return null;
+		return new Callable<TiledImage>() {
+			@Override
+			public TiledImage call() {
+				return TiledImage.open(resolver, uri);
+			}
+		};
+	}
+
+	private Callable<TiledImage> fileTiles(final String path){
+		if (!mTiledMode) return null;
+		return new Callable<TiledImage>() {
+			@Override
+			public TiledImage call() {
+				return TiledImage.open(path);
+			}
+		};
+	}
+
+	/**
+	 * Keeps decoded images set by path in a frame store, images set again 
+	 * later, also by other builders, are mapped instead of decoded
+	 * @param frames store to use, null to always decode
+	 */
+	public void setFrameStore(FrameStore frames){
+		mFrameStore = frames;
 	}
 
 	private static final int REF_IMG = 0;
 	private static final int OTHER_IMG = 1;
+	// Slot setReferenceImage stores its image in, annotated regions apply to it
+	private static final int REGION_IMG = OTHER_IMG;
+	// Slot whose float descriptors are stored compactly, the reference that
+	// is matched against every other image
+	private static final int COMPACT_IMG = REGION_IMG;
+
+	// Pixels annotated regions are grown by, covers the ORB patch radius
+	public static final int REGION_DILATION = 16;
+
+	/**
+	 * Restricts detection on reference images set after this call to the 
+	 * annotated features of an appliance.  Features found that way are cached 
+	 * per appliance and detector, so the same reference is only processed once.
+	 * @param applianceName unique name of the appliance
+	 * @param appliance annotated appliance, null to search the whole reference image
+	 */
+	public void setReferenceRegions(String applianceName, ApplianceImageSet appliance){
+		if (appliance != null && applianceName == null)
+			throw new IllegalArgumentException("Appliance needs a name");
+		mRegionApplianceName = appliance == null ? null : applianceName;
+		mRegionAppliance = appliance;
+		Log.i(TAG, "Reference regions set: " + mRegionApplianceName);
+	}
 
 	/**
 	 * Note that Large BitMap will cause out of memory errors
@@ -208,35 +598,26 @@ public class TransformationBuilder {
 	 * @param image 
 	 * @param which
 	 */
-	private void setImagePrivate(Bitmap image, int which){
-		if (image == null)
-			throw new IllegalArgumentException("NULL image");
-
-		Mat imgMat = new Mat();
+	private void setImagePrivate(Callable<PreprocessedImage> loader, 
+			Callable<TiledImage> tiles, int which){
 		// cancel any asynchronous process before we starrt a new one
 		switch (which){
 		case REF_IMG:
-			mReferenceImage = image;
-			Utils.bitmapToMat(mReferenceImage, imgMat);
-
 			// Cancel any feature finding thread
 			if (mRefFeatureDetector != null){
 				mRefFeatureDetector.cancel(true);
 				mRefFeatureDetector = null;
 			} // Start new feature detector
-			mRefFeatureDetector = new AsyncFeatureDetector(imgMat, REF_IMG);
+			mRefFeatureDetector = new AsyncFeatureDetector(loader, tiles, REF_IMG);
 			mRefFeatureDetector.execute();
 			break;
 		case OTHER_IMG:
-			mOtherImage = image;
-			Utils.bitmapToMat(mOtherImage, imgMat);
-
 			// Cancel any feature finding thread
 			if (mOtherFeatureDetector != null){
 				mOtherFeatureDetector.cancel(true);
 				mOtherFeatureDetector = null;
 			} // Start new feature detector
-			mOtherFeatureDetector = new AsyncFeatureDetector(imgMat, OTHER_IMG);
+			mOtherFeatureDetector = new AsyncFeatureDetector(loader, tiles, OTHER_IMG);
 			mOtherFeatureDetector.execute();
 			break;			
 		}
@@ -264,52 +645,440 @@ public class TransformationBuilder {
 	///////////////////////////////////////////////////////////////////
 	// Image Processing
 
+	/**
+	 * Background task that lets go of what it holds if it is cancelled.  
+	 * API 10 only has onCancelled() and calls it as soon as the task is 
+	 * cancelled, possibly while doInBackground() still runs, so the result is
+	 * kept in a field and whichever of the two finishes last disposes of it.
+	 */
+	private static abstract class DisposingTask<Result> extends AsyncTask<Void, Void, Result>{
+
+		private boolean mStarted, mFinished, mCancelled;
+		private Result mResult;
+
+		/**
+		 * Work of doInBackground()
+		 */
+		protected abstract Result run();
+
+		/**
+		 * Releases everything the cancelled task holds, called once on 
+		 * either thread
+		 * @param result result of run(), null if it did not run
+		 */
+		protected abstract void dispose(Result result);
+
+		@Override
+		protected final Result doInBackground(Void... params){
+			synchronized (this){
+				if (mCancelled) return null;
+				mStarted = true;
+			}
+			Result result = run();
+			synchronized (this){
+				mFinished = true;
+				mResult = result;
+				if (!mCancelled) return result;
+			}
+			// onCancelled() already ran while this was running
+			dispose(result);
+			return null;
+		}
+
+		@Override
+		protected final void onCancelled(){
+			Result result;
+			synchronized (this){
+				mCancelled = true;
+				// doInBackground() disposes once it is done
+				if (mStarted && !mFinished) return;
+				result = mResult;
+			}
+			dispose(result);
+		}
+	}
+
 	/**
 	 * Runs feature detection in the background for specific image
 	 * @author mhotan
 	 */
-	private class AsyncFeatureDetector extends AsyncTask<Void, Void, Pair<MatOfKeyPoint, Mat>>{
+	private class AsyncFeatureDetector extends DisposingTask<Pair<MatOfKeyPoint, Mat>>{
 
 		private FeatureDetector mFd;
+		private KeyPointDetector mJavaFd;
+		private boolean mJavaPipeline;
+		private boolean mPyramidPipeline;
+		private String mDetectorName;
+		private int mMaxKeyPoints;
+		private boolean mSpread;
 		private int mWhichImg;
-		private Mat mImg;
+		// Produces mPreprocessed in the background, null if it was handed in
+		private Callable<PreprocessedImage> mLoader;
+		// Opens the full resolution source in tiled mode, null otherwise
+		private Callable<TiledImage> mTilesOpener;
+		// Full resolution source, owned by this task only if it opened it
+		private TiledImage mTiles;
+		private int mTileSize;
+		// Annotated appliance restricting detection, null to search everywhere
+		private String mApplianceName;
+		private ApplianceImageSet mAppliance;
+		// Uri or path features of the annotated regions are cached for, 
+		// null for Bitmaps which are never cached
+		private String mApplianceImage;
+		private FeatureMask mMask;
+		// Output of the preprocessing stage, shared by all feature stages, 
+		// this task holds a reference on it until storage takes it over
+		private PreprocessedImage mPreprocessed;
+		// Pyramid of mPreprocessed held for the duration of the task
+		private ImagePyramid mPyramid;
+		// Bytes per compact descriptor, 0 unless this is the COMPACT_IMG slot 
+		// and compact storage is enabled
+		private int mCodeBytes;
+		// Compact reference descriptors, null if the float descriptors are kept
+		private ProductQuantizer mQuantizer;
+		private PqCodes mCodes;
+		// True if the features found belong to the ReferenceFeatureCache
+		private boolean mCached;
+
+		/**
+		 * Preprocesses a new image and finds its features, the loader runs in 
+		 * the background and its result is owned by this task
+		 */
+		public AsyncFeatureDetector(Callable<PreprocessedImage> loader, 
+				Callable<TiledImage> tiles, int whichImg){
+			this(whichImg);
+			mLoader = loader;
+			mTilesOpener = tiles;
+		}
 
-		public AsyncFeatureDetector(Mat img, int whichImg){
+		/**
+		 * Runs the current detector again on an image that was already 
+		 * preprocessed, its pyramid levels are reused 
+		 * @param image image of the storage, acquired by this task
+		 * @param tiles full resolution source of image in tiled mode, stays 
+		 * 			with the builder, null otherwise
+		 */
+		public AsyncFeatureDetector(PreprocessedImage image, TiledImage tiles, int whichImg){
+			this(whichImg);
+			image.acquire();
+			mPreprocessed = image;
+			mTiles = tiles;
+			if (mPyramidPipeline){
+				mPyramid = image.getPyramid();
+				mPyramid.acquire();
+			}
+		}
+
+		private AsyncFeatureDetector(int whichImg){
 			// Create new instances of thesse object to be run in background thread
 			mFd = getCurrentFeatureDetector();
-			mImg = img.clone();
+			mJavaFd = getCurrentJavaFeatureDetector();
+			mJavaPipeline = mJavaFeatureDetectorNames.contains(mFeatureDetectorName);
+			mPyramidPipeline = PYRAMID_FAST.equals(mFeatureDetectorName) 
+					|| PYRAMID_ORB.equals(mFeatureDetectorName)
+					|| JAVA_ORB.equals(mFeatureDetectorName);
+			mDetectorName = mFeatureDetectorName;
+			mMaxKeyPoints = TransformationBuilder.this.mMaxKeyPoints;
+			mSpread = mSpreadKeyPoints;
 			mWhichImg = whichImg;
+			mTileSize = TransformationBuilder.this.mTileSize;
+			mCodeBytes = whichImg == COMPACT_IMG ? mCompactCodeBytes : 0;
+			if (whichImg == REGION_IMG){
+				mApplianceName = mRegionApplianceName;
+				mAppliance = mRegionAppliance;
+				if (!(mReferenceSource instanceof Bitmap))
+					mApplianceImage = String.valueOf(mReferenceSource);
+			}
 		}
 
 		/**
 		 * Finds Key Points in new image
 		 */
 		@Override
-		protected Pair<MatOfKeyPoint, Mat> doInBackground(Void... params) {
-			MatOfKeyPoint matKeyPoints = mCV.findKeyPoints(mFd, mImg);
-			// Compute the feature 
-			Mat descriptors = new Mat();
-			getCurrentDescriptorExtractor().compute(mImg, matKeyPoints, descriptors);
-			return new Pair<MatOfKeyPoint, Mat>(matKeyPoints, descriptors);
+		protected Pair<MatOfKeyPoint, Mat> run() {
+			// Tiles are opened first, the working image is read from them
+			if (mTilesOpener != null){
+				try {
+					mTiles = mTilesOpener.call();
+				} catch (Exception e) {
+					Log.e(TAG, "Exception when opening tiles: " + e);
+				}
+			}
+			// Preprocessing stage, images that are not Bitmaps or tiles never go through color
+			if (mPreprocessed == null && mTiles != null)
+				mPreprocessed = PreprocessedImage.fromTiles(mTiles);
+			if (mPreprocessed == null){
+				try {
+					mPreprocessed = mLoader.call();
+				} catch (Exception e) {
+					Log.e(TAG, "Exception when loading image: " + e);
+				}
+				if (mPreprocessed == null) return null;
+			}
+			if (mAppliance == null){
+				Pair<MatOfKeyPoint, Mat> result = mTiles != null && mFd != null 
+						? detectAndDescribeTiled() : detectAndDescribe();
+				return result == null ? null : compact(result);
+			}
+
+			// Annotated regions of a reference image never change
+			int width = mPreprocessed.getWidth();
+			int height = mPreprocessed.getHeight();
+			// Cap and code size are part of the key, they change the cached set
+			String detector = mDetectorName + " " + mMaxKeyPoints + (mSpread ? " spread" : "")
+					+ (mCodeBytes > 0 ? " pq" + mCodeBytes : "");
+			Pair<MatOfKeyPoint, Mat> result = mApplianceImage == null ? null 
+					: ReferenceFeatureCache.get(mApplianceName, mApplianceImage, 
+							detector, width, height);
+			if (result != null && result.second == null){
+				// Cached as codes, they go with the codebook that encoded them
+				mQuantizer = ReferenceFeatureCache.getQuantizer(mApplianceName, getCodebookName());
+				mCodes = ReferenceFeatureCache.getCodes(mApplianceName, mApplianceImage, 
+						detector, width, height);
+			}
+			if (result != null){
+				mCached = true;
+				return result;
+			}
+			mMask = mAppliance.getFeatureMask(width, height, REGION_DILATION);
+			// Codebook is trained on the annotated regions
+			result = compact(detectAndDescribe());
+			if (mApplianceImage == null) return result;
+			ReferenceFeatureCache.put(mApplianceName, mApplianceImage, detector, width, height, 
+					result.first, result.second, mCodes);
+			mCached = true;
+			Log.i(TAG, "Cached " + result.first.rows() + " reference features of " 
+					+ mApplianceName + " covering " + mMask.getCoverage() + " of the image");
+			return result;
+		}
+
+		private Pair<MatOfKeyPoint, Mat> detectAndDescribe(){
+			if (mPyramidPipeline)
+				return detectAndDescribeOnPyramid();
+			if (mJavaPipeline)
+				return detectAndDescribeInJava();
+
+			// Mask and uncapped key points do not outlive detection
+			MatScope scope = new MatScope("detect");
+			try {
+				Mat gray = mPreprocessed.getGray();
+				MatOfKeyPoint matKeyPoints;
+				if (mMask == null)
+					matKeyPoints = scope.add(mCV.findKeyPoints(mFd, gray));
+				else {
+					Mat mask = scope.newMat(mMask.getHeight(), mMask.getWidth(), CvType.CV_8UC1);
+					mask.put(0, 0, mMask.getBits());
+					matKeyPoints = scope.add(mCV.findKeyPoints(mFd, gray, mask));
+				}
+				matKeyPoints = scope.keep(ComputerVision.capKeyPoints(
+						matKeyPoints, mMaxKeyPoints, mSpread));
+				// Compute the feature 
+				Mat descriptors = MatTracker.track(new Mat(), "descriptors");
+				getCurrentDescriptorExtractor().compute(gray, matKeyPoints, descriptors);
+				return new Pair<MatOfKeyPoint, Mat>(matKeyPoints, descriptors);
+			} finally {
+				scope.close();
+			}
+		}
+
+		/**
+		 * Detects and describes key points on full resolution tiles, key points 
+		 * are scaled to the working resolution of mPreprocessed
+		 */
+		private Pair<MatOfKeyPoint, Mat> detectAndDescribeTiled(){
+			double scale = (double) mPreprocessed.getWidth() / mTiles.getWidth();
+			try {
+				return TiledProcessor.detect(mTiles, mFd, getCurrentDescriptorExtractor(), 
+						mTileSize, mMaxKeyPoints, mSpread, scale);
+			} catch (IllegalStateException e){
+				// Tiles of the builder are closed once a new image replaced them
+				if (!isCancelled()) throw e;
+				Log.i(TAG, "Tiles closed under a cancelled detection: " + e.getMessage());
+				return null;
+			}
+		}
+
+		/**
+		 * Detects and describes key points with the Java implementations, 
+		 * descriptors are always ORB
+		 */
+		private Pair<MatOfKeyPoint, Mat> detectAndDescribeInJava(){
+			GrayImage gray = mPreprocessed.getGrayImage();
+			KeyPointBuffer keyPoints = new KeyPointBuffer();
+			BinaryDescriptors descriptors = new BinaryDescriptors();
+			OrbExtractor orb = newOrbExtractor();
+			orb.setMask(mMask);
+			if (mJavaFd == null) 
+				orb.detectAndCompute(gray, keyPoints, descriptors);
+			else {
+				// Detectors that know masks skip the pixels outside
+				if (mJavaFd instanceof FastDetector)
+					((FastDetector) mJavaFd).setMask(mMask, 1);
+				else if (mJavaFd instanceof AdaptiveFastDetector)
+					((AdaptiveFastDetector) mJavaFd).setMask(mMask);
+				mJavaFd.detect(gray, keyPoints);
+				if (mMask != null) mMask.filter(keyPoints);
+				cap(keyPoints);
+				orb.compute(gray, keyPoints, descriptors);
+			}
+			return new Pair<MatOfKeyPoint, Mat>(FeatureAdapter.toMatOfKeyPoint(keyPoints), 
+					FeatureAdapter.toMat(descriptors));
+		}
+
+		/**
+		 * Detects and describes key points on the pyramid shared by the image,
+		 * levels built by an earlier detector are reused
+		 */
+		private Pair<MatOfKeyPoint, Mat> detectAndDescribeOnPyramid(){
+			if (mPyramid == null){
+				mPyramid = mPreprocessed.getPyramid();
+				mPyramid.acquire();
+			}
+			try {
+				KeyPointBuffer keyPoints = new KeyPointBuffer();
+				BinaryDescriptors descriptors = new BinaryDescriptors();
+				OrbExtractor orb = newOrbExtractor();
+				orb.setMask(mMask);
+				if (PYRAMID_FAST.equals(mDetectorName)){
+					PyramidFastDetector fast = new PyramidFastDetector();
+					fast.setMask(mMask);
+					fast.detect(mPyramid, keyPoints);
+					cap(keyPoints);
+					orb.compute(mPyramid, keyPoints, descriptors);
+				} else
+					orb.detectAndCompute(mPyramid, keyPoints, descriptors);
+				return new Pair<MatOfKeyPoint, Mat>(FeatureAdapter.toMatOfKeyPoint(keyPoints), 
+						FeatureAdapter.toMat(descriptors));
+			} finally {
+				releasePyramid();
+			}
+		}
+
+		/**
+		 * Replaces float descriptors by product quantized codes if compact 
+		 * reference descriptors are enabled.  The codebook of the appliance is
+		 * used, or trained on these descriptors if there is none yet.  Binary
+		 * descriptors of the supported detectors are returned unchanged.
+		 * @param result features this task found and owns
+		 * @return result without descriptors if they were compacted, 
+		 * 			otherwise result unchanged
+		 */
+		private Pair<MatOfKeyPoint, Mat> compact(Pair<MatOfKeyPoint, Mat> result){
+			Mat descriptors = result.second;
+			if (mCodeBytes <= 0 || descriptors.rows() == 0 
+					|| descriptors.type() != CvType.CV_32FC1) 
+				return result;
+			if (descriptors.cols() % mCodeBytes != 0){
+				Log.e(TAG, mCodeBytes + " byte codes do not divide " + descriptors.cols() 
+						+ " dimensional descriptors, keeping float descriptors");
+				return result;
+			}
+			FloatDescriptors floats = FeatureAdapter.toFloatDescriptors(descriptors);
+			ProductQuantizer quantizer = mApplianceName == null ? null 
+					: ReferenceFeatureCache.getQuantizer(mApplianceName, getCodebookName());
+			if (quantizer == null){
+				quantizer = ProductQuantizer.train(floats, mCodeBytes);
+				if (mApplianceName != null)
+					ReferenceFeatureCache.putQuantizer(mApplianceName, getCodebookName(), quantizer);
+			}
+			mQuantizer = quantizer;
+			mCodes = quantizer.encode(floats);
+			// Native descriptors are not needed anymore
+			MatTracker.release(descriptors);
+			return new Pair<MatOfKeyPoint, Mat>(result.first, null);
+		}
+
+		/**
+		 * @return name the codebook of the appliance is cached under
+		 */
+		private String getCodebookName(){
+			return mDetectorName + " " + mCodeBytes;
+		}
+
+		/**
+		 * @return ORB that retains at most the key point cap when detecting
+		 */
+		private OrbExtractor newOrbExtractor(){
+			if (mMaxKeyPoints <= 0) return new OrbExtractor();
+			return new OrbExtractor(mMaxKeyPoints, OrbExtractor.DEFAULT_NUM_LEVELS);
+		}
+
+		private void cap(KeyPointBuffer keyPoints){
+			if (mMaxKeyPoints <= 0) return;
+			if (mSpread)
+				KeyPointSelector.retainSpread(keyPoints, mMaxKeyPoints, 
+						KeyPointSelector.DEFAULT_ROBUSTNESS);
+			else 
+				KeyPointSelector.retainBest(keyPoints, mMaxKeyPoints);
+		}
+
+		private synchronized void releasePyramid(){
+			if (mPyramid != null){
+				mPyramid.release();
+				mPyramid = null;
+			}
+		}
+
+		/**
+		 * Closes the tiles unless they were handed in by the builder
+		 */
+		private void closeOpenedTiles(){
+			if (mTilesOpener != null && mTiles != null) mTiles.close();
+		}
+
+		@Override
+		protected void dispose(Pair<MatOfKeyPoint, Mat> result){
+			releasePyramid();
+			closeOpenedTiles();
+			if (mPreprocessed != null) mPreprocessed.release();
+			// Features the cache holds stay with it
+			if (result == null || mCached) return;
+			MatTracker.release(result.first);
+			MatTracker.release(result.second);
 		}
 		
 		//Runs on main thread
 		@Override
 		protected void onPostExecute(Pair<MatOfKeyPoint, Mat> result){
+			if (result == null){
+				Log.e(TAG, "Image could not be loaded, keeping the previous one");
+				closeOpenedTiles();
+				if (mPreprocessed != null) mPreprocessed.release();
+				return;
+			}
+			// Next image starts from the threshold that worked for this one
+			if (mJavaFd instanceof AdaptiveFastDetector){
+				AdaptiveFastDetector adaptive = (AdaptiveFastDetector) mJavaFd;
+				mAdaptiveThreshold = adaptive.getThreshold();
+				Log.i(TAG, "Adaptive FAST threshold " + mAdaptiveThreshold + " after " 
+						+ adaptive.getLastPassCount() + " passes in " 
+						+ adaptive.getLastMillis() + " ms");
+			}
 
 			if (mWhichImg == REF_IMG){
-				storage.setReferenceImage(mImg, result.first, result.second);
-				mlistener.OnKeypointsFoundForReference(storage.getRefKeyPointImage());
+				// Detecting again keeps the tiles of the image
+				if (mLoader != null){
+					if (mRefTiles != null) mRefTiles.close();
+					mRefTiles = mTiles;
+				}
+				// Storage takes over the reference of this task and releases the old image
+				storage.setReferenceImage(mPreprocessed, result.first, result.second, mCached);
+				mlistener.OnKeypointsFoundForReference(storage);
 				// because image changed must attempt to build again
 				attemptToBuild();
 			} else if (mWhichImg == OTHER_IMG) {
-				storage.setOtherImage(mImg, result.first, result.second);
-				mlistener.OnKeypointsFoundForOther(storage.getOtherKeyPointImage());
+				if (mLoader != null){
+					if (mOtherTiles != null) mOtherTiles.close();
+					mOtherTiles = mTiles;
+				}
+				storage.setOtherImage(mPreprocessed, result.first, result.second, mCached);
+				// COMPACT_IMG slot
+				if (mCodes != null) storage.setOtherCodes(mQuantizer, mCodes);
+				mlistener.OnKeypointsFoundForOther(storage);
 				// because image changed must attempt to build again
 				attemptToBuild();
 			}
 		}
-
 	}
 
 
@@ -319,11 +1088,12 @@ public class TransformationBuilder {
 	 * 
 	 * @author mhotan
 	 */
-	private class AsyncHomographyProcessor extends AsyncTask<Void, Void,Boolean>{
+	private class AsyncHomographyProcessor extends DisposingTask<Boolean>{
 
 		private final TransformInfo tempStorage;
 		private final FeatureDetector detector;
 		private final int tranformMethod, threshhold;
+		private final int matchTrees, matchMaxChecks;
 
 		/**
 		 * Creates a new task to run
@@ -335,33 +1105,60 @@ public class TransformationBuilder {
 			detector = getCurrentFeatureDetector();
 			tranformMethod = mHomographyMethods.get(mHomographyMethod);
 			threshhold = mRansacThreshhold;
+			matchTrees = mMatchTrees;
+			matchMaxChecks = mMatchMaxChecks;
 		}
 
 		@Override
-		protected Boolean doInBackground(Void... params) {
+		protected Boolean run() {
 			publishProgress();
 			// Process Homography
-			Mat[] descriptors = tempStorage.getDescriptors();
-			// TODO Dohandle error case where list is empty
-			if (descriptors.length == 0) {
-				// Do something
+			MatOfDMatch matches;
+			PqCodes codes = tempStorage.getOtherCodes();
+			if (codes != null){
+				// Compact descriptors of the annotated reference are scored by lookup tables
+				SharedMat reference = tempStorage.getReferenceDescriptorsView();
+				if (reference == null || reference.type() != CvType.CV_32FC1) {
+					SharedMat.release(reference);
+					return Boolean.FALSE;
+				}
+				matches = FeatureAdapter.match(tempStorage.getOtherQuantizer(), codes,
+						FeatureAdapter.toFloatDescriptors(reference.view()));
+				reference.release();
+			} else {
+				// Matched in place, the descriptors are not copied
+				SharedMat reference = tempStorage.getReferenceDescriptorsView();
+				SharedMat other = tempStorage.getOtherDescriptorsView();
+				// Nothing to match until both images have descriptors
+				if (reference == null || other == null) {
+					SharedMat.release(reference);
+					SharedMat.release(other);
+					return Boolean.FALSE;
+				}
+
+				// Large float reference sets are searched through the reused index
+				KdForest index = null;
+				if (matchTrees > 0 && reference.rows() >= MIN_INDEXED_DESCRIPTORS)
+					index = tempStorage.getReferenceDescriptorIndex(matchTrees);
+				if (index != null && other.type() == CvType.CV_32FC1)
+					matches = FeatureAdapter.match(index,
+							FeatureAdapter.toFloatDescriptors(other.view()), matchMaxChecks);
+				else
+					matches = mCV.getMatchingCorrespondences(
+							other.view(), reference.view());
+				reference.release();
+				other.release();
 			}
 			
-			// 
-			MatOfDMatch matches = mCV.getMatchingCorrespondences(
-					descriptors[1], descriptors[0]);
-			
-			MatOfPoint2f[] matchedPnts = mCV.getCorrespondences(matches,
-					tempStorage.getReferenceKeyPoints(), tempStorage.getOtherKeyPoints());
-			
 			// Calculate the matched points
 			// Store Corresponding matched points
 			tempStorage.setPutativeMatches(matches);
 
-			// Convert points to MAt for calculation
+			// Gather matched points into reused buffers 
 			// Find homography 
-			Mat homography = mCV.findHomography(matchedPnts[0], 
-					matchedPnts[1], tranformMethod, threshhold);
+			Mat homography = mCorrespondences.findHomography(matches, 
+					tempStorage.getReferenceKeyPointBuffer(), tempStorage.getOtherKeyPointBuffer(),
+					tranformMethod, threshhold);
 
 			// Store Homography
 			tempStorage.setHomographyMatrix(homography);
@@ -379,9 +1176,18 @@ public class TransformationBuilder {
 			// Store the new tranformation data into storage
 			// update the listener
 			if (result.booleanValue()){
+				// Matrices the replaced storage still shares stay with the new one
+				storage.release();
 				storage = tempStorage;
 				updateListeners(storage);
-			}
+			} else 
+				tempStorage.release();
+		}
+
+		@Override
+		protected void dispose(Boolean result){
+			// Superseded, only this task holds the matches and homography
+			tempStorage.release();
 		}
 
 	}
@@ -395,7 +1201,8 @@ public class TransformationBuilder {
 	 */
 	public void setFeatureDetector(String detectorType){
 		// Input cant be null and library must contain type
-		if (detectorType == null || !mFeatureDetectorNames.containsKey(detectorType)) {
+		if (detectorType == null || (!mFeatureDetectorNames.containsKey(detectorType)
+				&& !mJavaFeatureDetectorNames.contains(detectorType))) {
 			Log.e(TAG, "Illegal feature detector inputted: " + detectorType);
 			return;
 		}
@@ -406,17 +1213,40 @@ public class TransformationBuilder {
 				!mFeatureDetectorName.equals(detectorType)){
 			mFeatureDetectorName = detectorType;
 			Log.i(TAG, "Feature Detector set: " + mFeatureDetectorName);
-			attemptToBuild();
+			redetect();
 		}	
 	}
 
+	/**
+	 * Runs the current detector on the images already preprocessed, 
+	 * the images, their pyramids and full resolution tiles are reused
+	 */
+	private void redetect(){
+		PreprocessedImage ref = storage.getPreprocessedReference();
+		PreprocessedImage other = storage.getPreprocessedOther();
+		if (ref != null){
+			if (mRefFeatureDetector != null) mRefFeatureDetector.cancel(true);
+			mRefFeatureDetector = new AsyncFeatureDetector(ref, mRefTiles, REF_IMG);
+			mRefFeatureDetector.execute();
+		}
+		if (other != null){
+			if (mOtherFeatureDetector != null) mOtherFeatureDetector.cancel(true);
+			mOtherFeatureDetector = new AsyncFeatureDetector(other, mOtherTiles, OTHER_IMG);
+			mOtherFeatureDetector.execute();
+		}
+		if (ref == null && other == null)
+			attemptToBuild();
+	}
+
 	/**
 	 * NOTE: The given names for the supported feature detector provided  
 	 * 
 	 * @return the set of all supported Feature Detector Names
 	 */
 	public static Set<String> getSupportedFeatureDetectorNames(){
-		return Collections.unmodifiableSet(mFeatureDetectorNames.keySet());
+		Set<String> names = new HashSet<String>(mFeatureDetectorNames.keySet());
+		names.addAll(mJavaFeatureDetectorNames);
+		return Collections.unmodifiableSet(names);
 	}
 
 	/**
@@ -427,18 +1257,49 @@ public class TransformationBuilder {
 	}
 
 	/**
-	 * @return name of current feature detector
+	 * @return current feature detector, or null if the current detector is 
+	 * implemented in Java (see getCurrentJavaFeatureDetector())
 	 */
 	public FeatureDetector getCurrentFeatureDetector(){
+		if (!mFeatureDetectorNames.containsKey(mFeatureDetectorName))
+			return null;
 		return FeatureDetector.create(
 				mFeatureDetectorNames.get(mFeatureDetectorName));
 	}
+
+	/**
+	 * @return new instance of the current Java feature detector, or null
+	 * if the current detector is an OpenCV detector or runs on the image 
+	 * pyramid (JAVA_ORB and the PYRAMID detectors)
+	 */
+	public KeyPointDetector getCurrentJavaFeatureDetector(){
+		if (JAVA_FAST.equals(mFeatureDetectorName))
+			return new FastDetector();
+		if (ADAPTIVE_FAST.equals(mFeatureDetectorName)){
+			AdaptiveFastDetector adaptive = new AdaptiveFastDetector(
+					mAdaptiveTargetCount, mAdaptiveBudgetMillis);
+			adaptive.setThreshold(mAdaptiveThreshold);
+			return adaptive;
+		}
+		if (GRID_FAST.equals(mFeatureDetectorName))
+			return new GridDetector();
+		if (GRID_ORB.equals(mFeatureDetectorName)){
+			// Same total as ORB, ranked by Harris response like ORB
+			int tiles = GridDetector.DEFAULT_GRID_ROWS * GridDetector.DEFAULT_GRID_COLS;
+			return new GridDetector(GridDetector.DEFAULT_GRID_ROWS, GridDetector.DEFAULT_GRID_COLS,
+					OrbExtractor.DEFAULT_NUM_FEATURES / tiles, OrbExtractor.DEFAULT_FAST_THRESHOLD, true);
+		}
+		return null;
+	}
 	
 	/**
 	 * Obtains the current descriptor extractor that pertains to the descriptor
 	 * @return current associated DescriptorExtractor 
 	 */
 	public DescriptorExtractor getCurrentDescriptorExtractor(){
+		if (mJavaFeatureDescriptors.containsKey(mFeatureDetectorName))
+			return DescriptorExtractor.create(
+					mJavaFeatureDescriptors.get(mFeatureDetectorName));
 		return DescriptorExtractor
 				.create(mFeatureDescriptors.get(
 						// Obtain associated Integer ID with feature detection scheme
@@ -465,6 +1326,12 @@ public class TransformationBuilder {
 	public static final String PYRAMID_SURF = PYRAMID_PREFIX+SURF;
 	public static final String PYRAMID_FAST = PYRAMID_PREFIX+FAST;
 	public static final String PYRAMID_ORB = PYRAMID_PREFIX+ORB;
+	private static final String JAVA_PREFIX = "JAVA ";
+	public static final String JAVA_FAST = JAVA_PREFIX+FAST;
+	public static final String JAVA_ORB = JAVA_PREFIX+ORB;
+	// FAST tuned to a target count within a time budget, see setAdaptiveDetection
+	private static final String ADAPTIVE_PREFIX = "ADAPTIVE ";
+	public static final String ADAPTIVE_FAST = ADAPTIVE_PREFIX+FAST;
 	// Add sift names
 
 	private static final HashMap<String, Integer> mFeatureDetectorNames = new HashMap<String, Integer>();
@@ -479,12 +1346,10 @@ public class TransformationBuilder {
 		mFeatureDetectorNames.put(DYNAMIC_ORB, FeatureDetector.DYNAMIC_ORB);
 //		mFeatureDetectorNames.put(GRID_SIFT, FeatureDetector.GRID_SIFT);
 //		mFeatureDetectorNames.put(GRID_SURF, FeatureDetector.GRID_SURF);
-		mFeatureDetectorNames.put(GRID_FAST, FeatureDetector.GRID_FAST);
-		mFeatureDetectorNames.put(GRID_ORB, FeatureDetector.GRID_ORB);
+		// GRID_FAST and GRID_ORB run in Java with tiles processed concurrently
 //		mFeatureDetectorNames.put(PYRAMID_SIFT, FeatureDetector.PYRAMID_SIFT);
 //		mFeatureDetectorNames.put(PYRAMID_SURF, FeatureDetector.PYRAMID_SURF);
-		mFeatureDetectorNames.put(PYRAMID_FAST,FeatureDetector.PYRAMID_FAST);
-		mFeatureDetectorNames.put(PYRAMID_ORB,FeatureDetector.PYRAMID_ORB);
+		// PYRAMID_FAST and PYRAMID_ORB run in Java on the shared image pyramid
 		// Add sift names
 	}
 	
@@ -514,6 +1379,30 @@ public class TransformationBuilder {
 		mFeatureDescriptors.put(FeatureDetector.GRID_SURF, DescriptorExtractor.SURF);
 	}
 
+	// Detectors implemented in pure Java, see getCurrentJavaFeatureDetector()
+	private static final Set<String> mJavaFeatureDetectorNames = new HashSet<String>();
+	static {
+		mJavaFeatureDetectorNames.add(JAVA_FAST);
+		mJavaFeatureDetectorNames.add(JAVA_ORB);
+		mJavaFeatureDetectorNames.add(ADAPTIVE_FAST);
+		mJavaFeatureDetectorNames.add(GRID_FAST);
+		mJavaFeatureDetectorNames.add(GRID_ORB);
+		mJavaFeatureDetectorNames.add(PYRAMID_FAST);
+		mJavaFeatureDetectorNames.add(PYRAMID_ORB);
+	}
+
+	// OpenCV equivalent of the Java descriptor, the Java pipeline always uses OrbExtractor
+	private static final HashMap<String, Integer> mJavaFeatureDescriptors = new HashMap<String, Integer>();
+	static {
+		mJavaFeatureDescriptors.put(JAVA_FAST, DescriptorExtractor.ORB);
+		mJavaFeatureDescriptors.put(JAVA_ORB, DescriptorExtractor.ORB);
+		mJavaFeatureDescriptors.put(ADAPTIVE_FAST, DescriptorExtractor.ORB);
+		mJavaFeatureDescriptors.put(GRID_FAST, DescriptorExtractor.ORB);
+		mJavaFeatureDescriptors.put(GRID_ORB, DescriptorExtractor.ORB);
+		mJavaFeatureDescriptors.put(PYRAMID_FAST, DescriptorExtractor.ORB);
+		mJavaFeatureDescriptors.put(PYRAMID_ORB, DescriptorExtractor.ORB);
+	}
+
 	/**
 	 * Update the listener when the Homography is ready to be used
 	 * @param storage
@@ -530,8 +1419,16 @@ public class TransformationBuilder {
 	public interface TransformationStateListener {
 		public void OnHomographyStored(TransformInfo storage);
 		public void OnNoHomographyFound();
-		public void OnKeypointsFoundForReference(Mat image);
-		public void OnKeypointsFoundForOther(Mat image);
+		/**
+		 * Key points of the reference image are stored, the overlay is only 
+		 * rendered if requested with storage.getRefKeyPointImage(width, height)
+		 */
+		public void OnKeypointsFoundForReference(TransformInfo storage);
+		/**
+		 * Key points of the other image are stored, the overlay is only 
+		 * rendered if requested with storage.getOtherKeyPointImage(width, height)
+		 */
+		public void OnKeypointsFoundForOther(TransformInfo storage);
 	}
 
 
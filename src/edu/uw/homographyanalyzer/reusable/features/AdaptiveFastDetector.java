@@ -0,0 +1,186 @@
+package edu.uw.homographyanalyzer.reusable.features;
+
+/**
+ * FAST detector that tunes its threshold to find about a target number of
+ * key points within a wall clock budget.
+ *
+ * Detection starts at the threshold that worked for the previous image, so
+ * a sequence of similar images usually needs a single pass.  Every further
+ * pass moves the threshold towards the target, bisecting once the target is
+ * bracketed.  Refinement stops when the count is within the tolerance, when
+ * the threshold can not move any more, or when another pass would not fit
+ * into the budget.  The pass closest to the target is reported.  When the 
+ * budget cuts refinement short the next image starts from the threshold 
+ * the next pass would have used, so a sequence still converges.
+ *
+ * Not thread safe, use one instance per thread.  To carry the threshold
+ * between threads pass getThreshold() to a new instance.
+ */
+public class AdaptiveFastDetector implements KeyPointDetector {
+
+	public static final int DEFAULT_TARGET_COUNT = 500;
+	public static final long DEFAULT_BUDGET_MILLIS = 150;
+	// Accepted relative deviation from the target
+	public static final float DEFAULT_TOLERANCE = 0.25f;
+
+	private final FastDetector mFast;
+	private final KeyPointBuffer mTrial;
+	private int mTargetCount;
+	private long mBudgetNanos;
+	private float mTolerance;
+
+	// Statistics of the last call
+	private int mLastPasses;
+	private long mLastNanos;
+
+	public AdaptiveFastDetector(){
+		this(DEFAULT_TARGET_COUNT, DEFAULT_BUDGET_MILLIS);
+	}
+
+	/**
+	 * @param targetCount number of key points to aim for
+	 * @param budgetMillis wall clock time detect() may spend on refinement
+	 */
+	public AdaptiveFastDetector(int targetCount, long budgetMillis){
+		mFast = new FastDetector();
+		mTrial = new KeyPointBuffer();
+		mTolerance = DEFAULT_TOLERANCE;
+		setTargetCount(targetCount);
+		setBudgetMillis(budgetMillis);
+	}
+
+	public void setTargetCount(int targetCount){
+		if (targetCount <= 0)
+			throw new IllegalArgumentException("Target count must be positive: " + targetCount);
+		mTargetCount = targetCount;
+	}
+
+	public int getTargetCount(){
+		return mTargetCount;
+	}
+
+	/**
+	 * @param budgetMillis wall clock time detect() may spend, the first pass
+	 * 			always runs to completion
+	 */
+	public void setBudgetMillis(long budgetMillis){
+		if (budgetMillis < 0)
+			throw new IllegalArgumentException("Negative budget: " + budgetMillis);
+		mBudgetNanos = budgetMillis * 1000000L;
+	}
+
+	public long getBudgetMillis(){
+		return mBudgetNanos / 1000000L;
+	}
+
+	/**
+	 * @param tolerance relative deviation from the target count that stops refinement
+	 */
+	public void setTolerance(float tolerance){
+		mTolerance = Math.max(0f, tolerance);
+	}
+
+	/**
+	 * Restricts detection to a region of interest
+	 * @param mask mask of the image, null to search the whole image
+	 */
+	public void setMask(FeatureMask mask){
+		mFast.setMask(mask, 1);
+	}
+
+	/**
+	 * @param threshold threshold the next detection starts with
+	 */
+	public void setThreshold(int threshold){
+		mFast.setThreshold(threshold);
+	}
+
+	/**
+	 * @return start threshold of the next detection, the threshold of the 
+	 * 			last result unless the budget ran out
+	 */
+	public int getThreshold(){
+		return mFast.getThreshold();
+	}
+
+	/**
+	 * @return number of FAST passes of the last call to detect
+	 */
+	public int getLastPassCount(){
+		return mLastPasses;
+	}
+
+	/**
+	 * @return wall clock time of the last call to detect in milliseconds
+	 */
+	public float getLastMillis(){
+		return mLastNanos / 1000000f;
+	}
+
+	@Override
+	public void detect(GrayImage image, KeyPointBuffer keyPoints) {
+		long start = System.nanoTime();
+		long deadline = start + mBudgetNanos;
+		int low = FastDetector.MIN_THRESHOLD - 1;	// threshold known to give too many
+		int high = FastDetector.MAX_THRESHOLD + 1;	// threshold known to give too few
+		int threshold = mFast.getThreshold();
+		int bestThreshold = threshold;
+		int carried = -1;
+		double bestError = Double.MAX_VALUE;
+		int minCount = (int)(mTargetCount * (1 - mTolerance));
+		int maxCount = (int)Math.ceil(mTargetCount * (1 + mTolerance));
+
+		keyPoints.clear();
+		mLastPasses = 0;
+		while (true){
+			long passStart = System.nanoTime();
+			mFast.setThreshold(threshold);
+			mFast.detect(image, mTrial);
+			long passEnd = System.nanoTime();
+			mLastPasses++;
+
+			int count = mTrial.size();
+			double error = count == 0 ? Double.MAX_VALUE
+					: Math.abs(Math.log((double)count / mTargetCount));
+			if (error < bestError || mLastPasses == 1){
+				bestError = error;
+				bestThreshold = threshold;
+				keyPoints.clear();
+				keyPoints.addAll(mTrial);
+			}
+			if (count >= minCount && count <= maxCount) break;
+
+			if (count > maxCount) low = threshold;
+			else high = threshold;
+			int next = nextThreshold(threshold, count, low, high);
+			if (next <= low || next >= high) break;
+
+			// Assume the next pass costs as much as this one
+			if (passEnd + (passEnd - passStart) > deadline){
+				carried = next;
+				break;
+			}
+			threshold = next;
+		}
+		mFast.setThreshold(carried < 0 ? bestThreshold : carried);
+		mLastNanos = System.nanoTime() - start;
+	}
+
+	/**
+	 * Guesses the threshold giving the target count.  Corner counts fall
+	 * roughly with the square of the threshold, bisect when that guess
+	 * leaves the bracket.
+	 */
+	private int nextThreshold(int threshold, int count, int low, int high){
+		int guess;
+		if (count == 0)
+			guess = threshold / 2;
+		else
+			guess = (int)Math.round(threshold * Math.sqrt((double)count / mTargetCount));
+		if (guess == threshold)
+			guess += count > mTargetCount ? 1 : -1;
+		if (guess <= low || guess >= high)
+			guess = (low + high) / 2;
+		return guess;
+	}
+}
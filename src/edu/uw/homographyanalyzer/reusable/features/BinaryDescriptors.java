@@ -0,0 +1,68 @@
+package edu.uw.homographyanalyzer.reusable.features;
+
+import java.util.Arrays;
+
+/**
+ * Matrix of 256 bit binary descriptors packed into a single long array.
+ * Descriptor i occupies words [i * WORDS, (i + 1) * WORDS), bit t of a 
+ * descriptor is bit (t & 63) of word (t >> 6).
+ */
+public class BinaryDescriptors {
+
+	public static final int BITS = 256;
+	public static final int WORDS = BITS / 64;
+	public static final int BYTES = BITS / 8;
+
+	private long[] mWords;
+	private int mCount;
+
+	public BinaryDescriptors(){
+		this(0);
+	}
+
+	/**
+	 * @param capacity number of descriptors that fit without growing
+	 */
+	public BinaryDescriptors(int capacity){
+		mWords = new long[Math.max(1, capacity) * WORDS];
+		mCount = 0;
+	}
+
+	/**
+	 * @return number of descriptors
+	 */
+	public int size(){
+		return mCount;
+	}
+
+	/**
+	 * Resizes this to count descriptors, contents of new descriptors are undefined
+	 * @param count new number of descriptors
+	 */
+	public void resize(int count){
+		if (count * WORDS > mWords.length)
+			mWords = Arrays.copyOf(mWords, Math.max(count * WORDS, mWords.length * 2));
+		mCount = count;
+	}
+
+	/**
+	 * @return backing array, descriptor i starts at i * WORDS
+	 */
+	public long[] getWords(){
+		return mWords;
+	}
+
+	/**
+	 * @return Hamming distance between descriptor i of this and descriptor j of other
+	 */
+	public int distance(int i, BinaryDescriptors other, int j){
+		long[] a = mWords;
+		long[] b = other.mWords;
+		int ai = i * WORDS;
+		int bj = j * WORDS;
+		return Long.bitCount(a[ai] ^ b[bj]) 
+				+ Long.bitCount(a[ai + 1] ^ b[bj + 1])
+				+ Long.bitCount(a[ai + 2] ^ b[bj + 2]) 
+				+ Long.bitCount(a[ai + 3] ^ b[bj + 3]);
+	}
+}
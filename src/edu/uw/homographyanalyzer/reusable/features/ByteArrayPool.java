@@ -0,0 +1,72 @@
+package edu.uw.homographyanalyzer.reusable.features;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * Process wide pool of byte arrays keyed by exact length.  Used for image 
+ * planes that are rebuilt often at the same resolution (pyramid levels, 
+ * smoothed copies) so steady state processing does not allocate.
+ * 
+ * Thread safe.
+ */
+public final class ByteArrayPool {
+
+	// Upper bound of bytes kept for reuse
+	public static final int DEFAULT_MAX_POOLED_BYTES = 16 * 1024 * 1024;
+
+	private static final HashMap<Integer, ArrayDeque<byte[]>> sFree = 
+			new HashMap<Integer, ArrayDeque<byte[]>>();
+	private static int sPooledBytes = 0;
+	private static int sMaxPooledBytes = DEFAULT_MAX_POOLED_BYTES;
+
+	private ByteArrayPool(){}
+
+	/**
+	 * @param length exact length of the array
+	 * @return pooled array if one is available, new array otherwise.
+	 * Contents are undefined.
+	 */
+	public static synchronized byte[] acquire(int length){
+		ArrayDeque<byte[]> free = sFree.get(length);
+		if (free == null || free.isEmpty())
+			return new byte[length];
+		sPooledBytes -= length;
+		return free.pop();
+	}
+
+	/**
+	 * Hands array back to the pool.  The caller must not use it afterwards.
+	 * Arrays that do not fit into the budget are left to the garbage collector.
+	 * @param array array to give back, may be null
+	 */
+	public static synchronized void release(byte[] array){
+		if (array == null || sPooledBytes + array.length > sMaxPooledBytes)
+			return;
+		ArrayDeque<byte[]> free = sFree.get(array.length);
+		if (free == null){
+			free = new ArrayDeque<byte[]>();
+			sFree.put(array.length, free);
+		}
+		free.push(array);
+		sPooledBytes += array.length;
+	}
+
+	/**
+	 * Sets how many bytes are kept for reuse, drops everything pooled if lowered
+	 * @param maxBytes new budget
+	 */
+	public static synchronized void setMaxPooledBytes(int maxBytes){
+		sMaxPooledBytes = Math.max(0, maxBytes);
+		if (sPooledBytes > sMaxPooledBytes)
+			clear();
+	}
+
+	/**
+	 * Drops all pooled arrays
+	 */
+	public static synchronized void clear(){
+		sFree.clear();
+		sPooledBytes = 0;
+	}
+}
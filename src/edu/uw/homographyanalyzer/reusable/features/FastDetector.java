@@ -0,0 +1,257 @@
+package edu.uw.homographyanalyzer.reusable.features;
+
+import java.util.Arrays;
+
+/**
+ * Pure Java FAST-9 corner detector.
+ * 
+ * A pixel p is a corner when 9 contiguous pixels of the 16 pixel Bresenham
+ * circle of radius 3 around p are all brighter then p + threshold or all
+ * darker then p - threshold.  Rows are split into bands that are scanned
+ * concurrently on the FeatureThreadPool.
+ * 
+ * Not thread safe, the score map is reused between calls.  Use one
+ * instance per thread.
+ */
+public class FastDetector implements KeyPointDetector {
+
+	public static final int DEFAULT_THRESHOLD = 20;
+	public static final int MIN_THRESHOLD = 1;
+	public static final int MAX_THRESHOLD = 254;
+
+	// Diameter given to every key point, same as OpenCV FAST
+	public static final float KEYPOINT_SIZE = 7f;
+
+	private static final int CIRCLE_SIZE = 16;
+	private static final int ARC_LENGTH = 9;
+	// Radius of the circle, no candidate is closer to the border
+	static final int BORDER = 3;
+
+	// Bresenham circle of radius 3 clockwise starting at 12 o'clock
+	private static final int[] CIRCLE_X = 
+		{ 0, 1, 2, 3, 3, 3, 2, 1, 0, -1, -2, -3, -3, -3, -2, -1 };
+	private static final int[] CIRCLE_Y = 
+		{ -3, -3, -2, -1, 0, 1, 2, 3, 3, 3, 2, 1, 0, -1, -2, -3 };
+
+	// Classification bits of a circle pixel relative to the center
+	private static final int DARKER = 1;
+	private static final int BRIGHTER = 2;
+
+	private int mThreshold;
+	private boolean mNonMaxSuppression;
+
+	// Corner score per pixel, 0 where there is no corner 
+	private int[] mScores;
+
+	// Optional region of interest, image pixel x, y maps to mask pixel x * scale, y * scale
+	private FeatureMask mMask;
+	private int mMaskScale = 1;
+
+	public FastDetector(){
+		this(DEFAULT_THRESHOLD, true);
+	}
+
+	/**
+	 * @param threshold intensity difference for a circle pixel to count as brighter or darker
+	 * @param nonMaxSuppression true if only local maxima in 3x3 neighborhood are kept
+	 */
+	public FastDetector(int threshold, boolean nonMaxSuppression){
+		setThreshold(threshold);
+		mNonMaxSuppression = nonMaxSuppression;
+		mScores = new int[0];
+	}
+
+	/**
+	 * Sets the threshold, automatically adjusted into range 
+	 * MIN_THRESHOLD and MAX_THRESHOLD
+	 * @param threshold new threshold
+	 */
+	public void setThreshold(int threshold){
+		mThreshold = Math.max(MIN_THRESHOLD, Math.min(MAX_THRESHOLD, threshold));
+	}
+
+	public int getThreshold(){
+		return mThreshold;
+	}
+
+	public void setNonMaxSuppression(boolean nonMaxSuppression){
+		mNonMaxSuppression = nonMaxSuppression;
+	}
+
+	/**
+	 * Restricts detection to a region of interest, pixels outside are not tested
+	 * @param mask region of interest or null to search the whole image
+	 * @param scale size of an image pixel in mask pixels, 2^level when 
+	 * 			detecting on a pyramid level with a mask of level 0
+	 */
+	public void setMask(FeatureMask mask, int scale){
+		if (scale <= 0)
+			throw new IllegalArgumentException("Illegal mask scale " + scale);
+		mMask = mask;
+		mMaskScale = scale;
+	}
+
+	@Override
+	public void detect(GrayImage image, KeyPointBuffer keyPoints) {
+		keyPoints.clear();
+		final int width = image.getWidth();
+		final int height = image.getHeight();
+		if (width <= 2 * BORDER || height <= 2 * BORDER) return;
+
+		final byte[] pixels = image.getPixels();
+		final int[] offsets = circleOffsets(width);
+		final int[] classes = classificationTable(mThreshold);
+		final int threshold = mThreshold;
+		final int[] scores = scoreMap(width * height);
+		final boolean nonMax = mNonMaxSuppression;
+		final FeatureMask mask = mMask;
+		final int maskScale = mMaskScale;
+
+		// Rows next to the border never hold a corner
+		Arrays.fill(scores, 0, BORDER * width, 0);
+		Arrays.fill(scores, (height - BORDER) * width, height * width, 0);
+
+		// Pass 1 score every candidate
+		FeatureThreadPool.runBands(BORDER, height - BORDER, new FeatureThreadPool.BandTask() {
+			@Override
+			public void run(int band, int rowStart, int rowEnd) {
+				for (int y = rowStart; y < rowEnd; ++y){
+					int row = y * width;
+					if (mask != null && !mask.isRowSet(y * maskScale)){
+						Arrays.fill(scores, row, row + width, 0);
+						continue;
+					}
+					Arrays.fill(scores, row, row + BORDER, 0);
+					for (int x = BORDER; x < width - BORDER; ++x){
+						if (mask != null && !mask.isSet(x * maskScale, y * maskScale))
+							scores[row + x] = 0;
+						else
+							scores[row + x] = cornerScore(pixels, row + x, offsets, classes, threshold);
+					}
+					Arrays.fill(scores, row + width - BORDER, row + width, 0);
+				}
+			}
+		});
+
+		// Pass 2 non maximum suppression, every band fills its own buffer
+		// and buffers are appended in row order so output is deterministic
+		int bands = FeatureThreadPool.bandCount(height - 2 * BORDER);
+		final KeyPointBuffer[] bandPoints = new KeyPointBuffer[bands];
+		FeatureThreadPool.runBands(BORDER, height - BORDER, new FeatureThreadPool.BandTask() {
+			@Override
+			public void run(int band, int rowStart, int rowEnd) {
+				KeyPointBuffer out = new KeyPointBuffer();
+				for (int y = rowStart; y < rowEnd; ++y){
+					int row = y * width;
+					for (int x = BORDER; x < width - BORDER; ++x){
+						int i = row + x;
+						int s = scores[i];
+						if (s == 0) continue;
+						if (nonMax && !isLocalMaximum(scores, i, width, s)) continue;
+						out.add(x, y, KEYPOINT_SIZE, -1f, s, 0);
+					}
+				}
+				bandPoints[band] = out;
+			}
+		});
+		for (KeyPointBuffer b: bandPoints){
+			if (b != null) keyPoints.addAll(b);
+		}
+	}
+
+	/**
+	 * Ties are broken in favor of the first pixel in scan order
+	 */
+	private static boolean isLocalMaximum(int[] scores, int i, int width, int s){
+		int above = i - width;
+		int below = i + width;
+		return s > scores[above - 1] && s > scores[above] && s > scores[above + 1]
+				&& s > scores[i - 1] && s >= scores[i + 1] 
+				&& s >= scores[below - 1] && s >= scores[below] && s >= scores[below + 1];
+	}
+
+	/**
+	 * Runs the segment test on one pixel
+	 * @return 0 if pixel is not a corner, positive score otherwise
+	 */
+	static int cornerScore(byte[] p, int idx, int[] off, int[] classes, int threshold){
+		int v = p[idx] & 0xFF;
+		// classes[q - v + 255] classifies circle pixel q
+		int base = 255 - v;
+
+		// High speed test, any 9 pixel arc contains at least one pixel
+		// of every pair of opposite circle pixels
+		int d = classes[base + (p[idx + off[0]] & 0xFF)] | classes[base + (p[idx + off[8]] & 0xFF)];
+		if (d == 0) return 0;
+		d &= classes[base + (p[idx + off[4]] & 0xFF)] | classes[base + (p[idx + off[12]] & 0xFF)];
+		if (d == 0) return 0;
+		d &= classes[base + (p[idx + off[2]] & 0xFF)] | classes[base + (p[idx + off[10]] & 0xFF)];
+		d &= classes[base + (p[idx + off[6]] & 0xFF)] | classes[base + (p[idx + off[14]] & 0xFF)];
+		if (d == 0) return 0;
+		d &= classes[base + (p[idx + off[1]] & 0xFF)] | classes[base + (p[idx + off[9]] & 0xFF)];
+		d &= classes[base + (p[idx + off[3]] & 0xFF)] | classes[base + (p[idx + off[11]] & 0xFF)];
+		d &= classes[base + (p[idx + off[5]] & 0xFF)] | classes[base + (p[idx + off[13]] & 0xFF)];
+		d &= classes[base + (p[idx + off[7]] & 0xFF)] | classes[base + (p[idx + off[15]] & 0xFF)];
+		if (d == 0) return 0;
+
+		int score = 0;
+		if ((d & DARKER) != 0)
+			score = arcScore(p, idx, off, v, threshold, false);
+		if ((d & BRIGHTER) != 0)
+			score = Math.max(score, arcScore(p, idx, off, v, threshold, true));
+		return score;
+	}
+
+	/**
+	 * Looks for 9 contiguous pixels of the given polarity
+	 * @return sum of the differences exceeding the threshold, 0 if there is no such arc
+	 */
+	private static int arcScore(byte[] p, int idx, int[] off, int v, int threshold, boolean brighter){
+		int run = 0;
+		int sum = 0;
+		boolean corner = false;
+		// Walk past the end of the circle to find arcs that wrap around
+		for (int k = 0; k < CIRCLE_SIZE + ARC_LENGTH - 1; ++k){
+			int q = p[idx + off[k & (CIRCLE_SIZE - 1)]] & 0xFF;
+			int diff = brighter ? q - v : v - q;
+			if (diff > threshold){
+				if (k < CIRCLE_SIZE) sum += diff - threshold;
+				if (++run >= ARC_LENGTH) corner = true;
+			} else {
+				if (k >= CIRCLE_SIZE && corner) break;
+				run = 0;
+			}
+		}
+		return corner ? sum : 0;
+	}
+
+	/**
+	 * @param stride row length of the image
+	 * @return offset of every circle pixel relative to the center
+	 */
+	static int[] circleOffsets(int stride){
+		int[] offsets = new int[CIRCLE_SIZE];
+		for (int i = 0; i < CIRCLE_SIZE; ++i)
+			offsets[i] = CIRCLE_Y[i] * stride + CIRCLE_X[i];
+		return offsets;
+	}
+
+	/**
+	 * @return table indexed by (pixel - center + 255) that classifies
+	 * a circle pixel as DARKER, BRIGHTER or neither
+	 */
+	static int[] classificationTable(int threshold){
+		int[] table = new int[511];
+		for (int i = 0; i < table.length; ++i){
+			int diff = i - 255;
+			table[i] = diff < -threshold ? DARKER : diff > threshold ? BRIGHTER : 0;
+		}
+		return table;
+	}
+
+	private int[] scoreMap(int size){
+		if (mScores.length < size)
+			mScores = new int[size];
+		return mScores;
+	}
+}
@@ -0,0 +1,196 @@
+package edu.uw.homographyanalyzer.reusable.features;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Key points and descriptors of several images in one columnar layout.
+ *
+ * Key points and descriptors of all images are concatenated, image i owns
+ * the rows [getOffset(i), getOffset(i) + getCount(i)).  Because the rows of
+ * all images are contiguous a single HammingMatcher.match call with the
+ * batch descriptors as query matches every image against a reference in
+ * one pass.
+ */
+public class FeatureBatch {
+
+	private final KeyPointBuffer mKeyPoints;
+	private final BinaryDescriptors mDescriptors;
+	// mOffsets[i] first row of image i, mOffsets[images] total rows
+	private final int[] mOffsets;
+
+	private FeatureBatch(KeyPointBuffer keyPoints, BinaryDescriptors descriptors, int[] offsets){
+		mKeyPoints = keyPoints;
+		mDescriptors = descriptors;
+		mOffsets = offsets;
+	}
+
+	/**
+	 * Detects and describes ORB features on every image, images are processed
+	 * concurrently on the FeatureThreadPool
+	 * @param pyramids pyramids of the images, levels are built if missing
+	 * @param numFeatures maximum number of features per image
+	 * @return features of all images in the order of pyramids
+	 */
+	public static FeatureBatch detectAndCompute(List<ImagePyramid> pyramids, final int numFeatures){
+		List<Callable<ImageFeatures>> jobs = new ArrayList<Callable<ImageFeatures>>(pyramids.size());
+		for (final ImagePyramid pyramid: pyramids){
+			jobs.add(new Callable<ImageFeatures>() {
+				@Override
+				public ImageFeatures call() {
+					ImageFeatures f = new ImageFeatures();
+					new OrbExtractor(numFeatures, OrbExtractor.DEFAULT_NUM_LEVELS)
+						.detectAndCompute(pyramid, f.keyPoints, f.descriptors);
+					return f;
+				}
+			});
+		}
+		return concat(FeatureThreadPool.invokeAll(jobs));
+	}
+
+	/**
+	 * Describes key points found by another detector on every image with ORB, 
+	 * images are processed concurrently on the FeatureThreadPool.  Key points
+	 * too close to the border are dropped.
+	 * @param pyramids pyramids of the images, levels are built if missing
+	 * @param keyPoints key points per image in coordinates of level 0, the 
+	 * 			octave selects the level they are described on, not modified
+	 * @return features of all images in the order of pyramids
+	 */
+	public static FeatureBatch compute(List<ImagePyramid> pyramids, List<KeyPointBuffer> keyPoints){
+		if (pyramids.size() != keyPoints.size())
+			throw new IllegalArgumentException(keyPoints.size() + " key point sets for " 
+					+ pyramids.size() + " images");
+		List<Callable<ImageFeatures>> jobs = new ArrayList<Callable<ImageFeatures>>(pyramids.size());
+		for (int i = 0; i < pyramids.size(); ++i){
+			final ImagePyramid pyramid = pyramids.get(i);
+			final KeyPointBuffer found = keyPoints.get(i);
+			jobs.add(new Callable<ImageFeatures>() {
+				@Override
+				public ImageFeatures call() {
+					ImageFeatures f = new ImageFeatures();
+					f.keyPoints.addAll(found);
+					new OrbExtractor().compute(pyramid, f.keyPoints, f.descriptors);
+					return f;
+				}
+			});
+		}
+		return concat(FeatureThreadPool.invokeAll(jobs));
+	}
+
+	/**
+	 * Concatenates the features of single images
+	 */
+	private static FeatureBatch concat(List<ImageFeatures> results){
+		int[] offsets = new int[results.size() + 1];
+		for (int i = 0; i < results.size(); ++i)
+			offsets[i + 1] = offsets[i] + results.get(i).keyPoints.size();
+		int total = offsets[results.size()];
+
+		KeyPointBuffer keyPoints = new KeyPointBuffer(total);
+		BinaryDescriptors descriptors = new BinaryDescriptors(total);
+		descriptors.resize(total);
+		for (int i = 0; i < results.size(); ++i){
+			ImageFeatures f = results.get(i);
+			keyPoints.addAll(f.keyPoints);
+			System.arraycopy(f.descriptors.getWords(), 0, descriptors.getWords(),
+					offsets[i] * BinaryDescriptors.WORDS, f.descriptors.size() * BinaryDescriptors.WORDS);
+		}
+		return new FeatureBatch(keyPoints, descriptors, offsets);
+	}
+
+	/**
+	 * @return number of images in the batch
+	 */
+	public int getImageCount(){
+		return mOffsets.length - 1;
+	}
+
+	/**
+	 * @return first row of image in getKeyPoints() and getDescriptors()
+	 */
+	public int getOffset(int image){
+		checkImage(image);
+		return mOffsets[image];
+	}
+
+	/**
+	 * @return number of features of image
+	 */
+	public int getCount(int image){
+		checkImage(image);
+		return mOffsets[image + 1] - mOffsets[image];
+	}
+
+	/**
+	 * @return index of the image owning row, rows are all features of the batch
+	 */
+	public int getImageOfRow(int row){
+		if (row < 0 || row >= mOffsets[mOffsets.length - 1])
+			throw new IllegalArgumentException("No row " + row);
+		// Offsets are ascending
+		int lo = 0, hi = getImageCount() - 1;
+		while (lo < hi){
+			int mid = (lo + hi + 1) >>> 1;
+			if (mOffsets[mid] <= row) lo = mid;
+			else hi = mid - 1;
+		}
+		return lo;
+	}
+
+	/**
+	 * @return key points of all images, not a copy
+	 */
+	public KeyPointBuffer getKeyPoints(){
+		return mKeyPoints;
+	}
+
+	/**
+	 * @return descriptors of all images, not a copy
+	 */
+	public BinaryDescriptors getDescriptors(){
+		return mDescriptors;
+	}
+
+	/**
+	 * @return copy of the key points of a single image
+	 */
+	public KeyPointBuffer copyKeyPoints(int image){
+		int offset = getOffset(image);
+		int count = getCount(image);
+		KeyPointBuffer keyPoints = new KeyPointBuffer(count);
+		for (int i = offset; i < offset + count; ++i){
+			keyPoints.add(mKeyPoints.getX(i), mKeyPoints.getY(i), mKeyPoints.getSize(i),
+					mKeyPoints.getAngle(i), mKeyPoints.getResponse(i), mKeyPoints.getOctave(i));
+		}
+		return keyPoints;
+	}
+
+	/**
+	 * @return copy of the descriptors of a single image
+	 */
+	public BinaryDescriptors copyDescriptors(int image){
+		int offset = getOffset(image);
+		int count = getCount(image);
+		BinaryDescriptors descriptors = new BinaryDescriptors(count);
+		descriptors.resize(count);
+		System.arraycopy(mDescriptors.getWords(), offset * BinaryDescriptors.WORDS,
+				descriptors.getWords(), 0, count * BinaryDescriptors.WORDS);
+		return descriptors;
+	}
+
+	/**
+	 * Features of a single image before they are concatenated
+	 */
+	private static class ImageFeatures {
+		final KeyPointBuffer keyPoints = new KeyPointBuffer();
+		final BinaryDescriptors descriptors = new BinaryDescriptors();
+	}
+
+	private void checkImage(int image){
+		if (image < 0 || image >= getImageCount())
+			throw new IllegalArgumentException("No image " + image + " in batch of "
+					+ getImageCount());
+	}
+}
@@ -0,0 +1,172 @@
+package edu.uw.homographyanalyzer.reusable.features;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Binary mask restricting detection to regions of interest, for example
+ * the annotated display and controls of an appliance.
+ *
+ * Polygons are filled with an even-odd scanline fill and the union is
+ * dilated by a square structuring element so key points whose patch
+ * straddles an outline are still found.
+ */
+public class FeatureMask {
+
+	// 1 inside, 0 outside, row major
+	private final byte[] mBits;
+	private final int mWidth, mHeight;
+
+	private FeatureMask(byte[] bits, int width, int height){
+		mBits = bits;
+		mWidth = width;
+		mHeight = height;
+	}
+
+	/**
+	 * Creates the dilated union of polygons
+	 * @param width width of the image the mask is for
+	 * @param height height of the image the mask is for
+	 * @param polygons vertices as x0 y0 x1 y1 ... in image coordinates,
+	 * 			polygons are closed implicitly
+	 * @param dilation pixels the union is grown by in every direction
+	 * @return mask of width x height
+	 */
+	public static FeatureMask fromPolygons(int width, int height, List<float[]> polygons,
+			int dilation){
+		if (width <= 0 || height <= 0)
+			throw new IllegalArgumentException("Illegal mask size " + width + "x" + height);
+		byte[] bits = new byte[width * height];
+		for (float[] polygon: polygons)
+			fill(bits, width, height, polygon);
+		if (dilation > 0)
+			bits = dilate(bits, width, height, dilation);
+		return new FeatureMask(bits, width, height);
+	}
+
+	public int getWidth(){
+		return mWidth;
+	}
+
+	public int getHeight(){
+		return mHeight;
+	}
+
+	/**
+	 * @return row major mask with 1 inside and 0 outside, not a copy
+	 */
+	public byte[] getBits(){
+		return mBits;
+	}
+
+	/**
+	 * @return true if x, y lies inside the mask, false outside or off the image
+	 */
+	public boolean isSet(int x, int y){
+		if (x < 0 || y < 0 || x >= mWidth || y >= mHeight) return false;
+		return mBits[y * mWidth + x] != 0;
+	}
+
+	/**
+	 * @return true if any pixel of row y is inside the mask
+	 */
+	public boolean isRowSet(int y){
+		if (y < 0 || y >= mHeight) return false;
+		for (int i = y * mWidth, end = i + mWidth; i < end; ++i)
+			if (mBits[i] != 0) return true;
+		return false;
+	}
+
+	/**
+	 * @return fraction of the image inside the mask
+	 */
+	public float getCoverage(){
+		int count = 0;
+		for (byte b: mBits) count += b;
+		return count / (float) mBits.length;
+	}
+
+	/**
+	 * Removes key points outside of the mask, order is preserved
+	 * @param keyPoints key points in coordinates of the masked image
+	 */
+	public void filter(KeyPointBuffer keyPoints){
+		int kept = 0;
+		for (int i = 0; i < keyPoints.size(); ++i){
+			if (isSet(Math.round(keyPoints.getX(i)), Math.round(keyPoints.getY(i))))
+				keyPoints.copy(i, kept++);
+		}
+		keyPoints.truncate(kept);
+	}
+
+	/**
+	 * Even-odd scanline fill sampling pixel centers
+	 */
+	private static void fill(byte[] bits, int width, int height, float[] polygon){
+		int n = polygon.length / 2;
+		if (n < 3) return;
+		float minY = Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+		for (int i = 0; i < n; ++i){
+			minY = Math.min(minY, polygon[2 * i + 1]);
+			maxY = Math.max(maxY, polygon[2 * i + 1]);
+		}
+		int y0 = Math.max(0, (int)Math.floor(minY));
+		int y1 = Math.min(height - 1, (int)Math.ceil(maxY));
+
+		float[] crossings = new float[n];
+		for (int y = y0; y <= y1; ++y){
+			float cy = y + 0.5f;
+			int count = 0;
+			for (int i = 0, j = n - 1; i < n; j = i++){
+				float xi = polygon[2 * i], yi = polygon[2 * i + 1];
+				float xj = polygon[2 * j], yj = polygon[2 * j + 1];
+				// Half open so a vertex on the scanline is counted once
+				if ((yi <= cy) != (yj <= cy))
+					crossings[count++] = xi + (cy - yi) * (xj - xi) / (yj - yi);
+			}
+			Arrays.sort(crossings, 0, count);
+			int row = y * width;
+			for (int k = 0; k + 1 < count; k += 2){
+				int xs = Math.max(0, (int)Math.ceil(crossings[k] - 0.5f));
+				int xe = Math.min(width - 1, (int)Math.floor(crossings[k + 1] - 0.5f));
+				if (xs <= xe) Arrays.fill(bits, row + xs, row + xe + 1, (byte)1);
+			}
+		}
+	}
+
+	/**
+	 * Separable dilation with a (2 * radius + 1) square, run lengths keep it
+	 * independent of the radius
+	 */
+	private static byte[] dilate(byte[] src, int width, int height, int radius){
+		byte[] tmp = new byte[src.length];
+		for (int y = 0; y < height; ++y){
+			int row = y * width;
+			// Distance to the last set pixel on the left, then the right
+			int last = -radius - 1;
+			for (int x = 0; x < width; ++x){
+				if (src[row + x] != 0) last = x;
+				if (x - last <= radius) tmp[row + x] = 1;
+			}
+			last = width + radius;
+			for (int x = width - 1; x >= 0; --x){
+				if (src[row + x] != 0) last = x;
+				if (last - x <= radius) tmp[row + x] = 1;
+			}
+		}
+		byte[] dst = new byte[src.length];
+		for (int x = 0; x < width; ++x){
+			int last = -radius - 1;
+			for (int y = 0; y < height; ++y){
+				if (tmp[y * width + x] != 0) last = y;
+				if (y - last <= radius) dst[y * width + x] = 1;
+			}
+			last = height + radius;
+			for (int y = height - 1; y >= 0; --y){
+				if (tmp[y * width + x] != 0) last = y;
+				if (last - y <= radius) dst[y * width + x] = 1;
+			}
+		}
+		return dst;
+	}
+}
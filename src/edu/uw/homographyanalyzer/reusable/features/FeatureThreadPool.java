@@ -0,0 +1,162 @@
+package edu.uw.homographyanalyzer.reusable.features;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process wide bounded pool shared by the pure Java feature stages.
+ * 
+ * Work submitted from a thread that already belongs to the pool runs
+ * inline, that way stages can nest (per image work that splits rows
+ * into bands) without dead locking the bounded pool.
+ */
+public final class FeatureThreadPool {
+
+	private static final int THREADS = 
+			Math.max(1, Runtime.getRuntime().availableProcessors());
+
+	// Bands smaller then this are not worth handing to another thread
+	private static final int MIN_ROWS_PER_BAND = 32;
+
+	private static ExecutorService sExecutor;
+
+	/**
+	 * Work done on a contiguous range of rows
+	 */
+	public interface BandTask {
+		/**
+		 * @param band index of this band
+		 * @param rowStart first row (inclusive)
+		 * @param rowEnd last row (exclusive)
+		 */
+		public void run(int band, int rowStart, int rowEnd);
+	}
+
+	private FeatureThreadPool(){}
+
+	/**
+	 * @return number of worker threads of the pool
+	 */
+	public static int getThreadCount(){
+		return THREADS;
+	}
+
+	/**
+	 * @return the shared executor, created on first use
+	 */
+	public static synchronized ExecutorService getExecutor(){
+		if (sExecutor == null)
+			sExecutor = Executors.newFixedThreadPool(THREADS, new WorkerFactory());
+		return sExecutor;
+	}
+
+	/**
+	 * @return true if the calling thread is a worker of this pool
+	 */
+	public static boolean isWorkerThread(){
+		return Thread.currentThread() instanceof WorkerThread;
+	}
+
+	/**
+	 * @param rows number of rows to split
+	 * @return number of bands runBands will split rows into
+	 */
+	public static int bandCount(int rows){
+		if (isWorkerThread()) return 1;
+		return Math.max(1, Math.min(THREADS, rows / MIN_ROWS_PER_BAND));
+	}
+
+	/**
+	 * Splits [rowStart, rowEnd) into bandCount() bands and runs task on each
+	 * band concurrently.  Returns once all bands completed.
+	 * 
+	 * @param rowStart first row (inclusive)
+	 * @param rowEnd last row (exclusive)
+	 * @param task work for every band
+	 */
+	public static void runBands(int rowStart, int rowEnd, final BandTask task){
+		final int rows = rowEnd - rowStart;
+		if (rows <= 0) return;
+		final int bands = bandCount(rows);
+		if (bands == 1){
+			task.run(0, rowStart, rowEnd);
+			return;
+		}
+
+		List<Callable<Void>> jobs = new ArrayList<Callable<Void>>(bands);
+		for (int b = 0; b < bands; ++b){
+			final int band = b;
+			final int start = rowStart + (int)((long)rows * b / bands);
+			final int end = rowStart + (int)((long)rows * (b + 1) / bands);
+			jobs.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					task.run(band, start, end);
+					return null;
+				}
+			});
+		}
+		invokeAll(jobs);
+	}
+
+	/**
+	 * Runs all the jobs and waits for them, results are in the same order as jobs.
+	 * Runs inline when called from a worker thread.
+	 * Any exception thrown by a job is rethrown as a RuntimeException
+	 * 
+	 * @param jobs work to run
+	 * @return results of the jobs
+	 */
+	public static <T> List<T> invokeAll(List<? extends Callable<T>> jobs){
+		List<T> results = new ArrayList<T>(jobs.size());
+		try {
+			if (isWorkerThread() || jobs.size() == 1){
+				for (Callable<T> job: jobs)
+					results.add(job.call());
+				return results;
+			}
+			List<Future<T>> futures = getExecutor().invokeAll(jobs);
+			for (Future<T> f: futures)
+				results.add(f.get());
+			return results;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for feature workers", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new RuntimeException(cause);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Marker class for threads owned by this pool
+	 */
+	private static class WorkerThread extends Thread {
+		public WorkerThread(Runnable r, String name){
+			super(r, name);
+			setDaemon(true);
+		}
+	}
+
+	private static class WorkerFactory implements ThreadFactory {
+		private final AtomicInteger mCount = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			return new WorkerThread(r, "FeatureWorker-" + mCount.incrementAndGet());
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package edu.uw.homographyanalyzer.reusable.features;
+
+/**
+ * Matrix of float descriptors, for example SIFT or SURF, stored row major
+ * in a single float array.  Descriptor i occupies [i * dims, (i + 1) * dims).
+ */
+public class FloatDescriptors {
+
+	private final float[] mData;
+	private final int mCount;
+	private final int mDims;
+
+	/**
+	 * @param data row major descriptors, not copied
+	 * @param count number of descriptors
+	 * @param dims number of floats per descriptor
+	 */
+	public FloatDescriptors(float[] data, int count, int dims){
+		if (count < 0 || dims <= 0 || data.length < count * dims)
+			throw new IllegalArgumentException("Illegal descriptor matrix " + count + "x" + dims
+					+ " for " + data.length + " floats");
+		mData = data;
+		mCount = count;
+		mDims = dims;
+	}
+
+	/**
+	 * @return number of descriptors
+	 */
+	public int size(){
+		return mCount;
+	}
+
+	/**
+	 * @return number of floats per descriptor
+	 */
+	public int getDims(){
+		return mDims;
+	}
+
+	/**
+	 * @return backing array, descriptor i starts at i * getDims()
+	 */
+	public float[] getData(){
+		return mData;
+	}
+
+	/**
+	 * @return squared Euclidean distance between descriptor i of this and
+	 * descriptor j of other
+	 */
+	public float distanceSquared(int i, FloatDescriptors other, int j){
+		float[] a = mData;
+		float[] b = other.mData;
+		int ai = i * mDims;
+		int bj = j * mDims;
+		float sum = 0;
+		for (int d = 0; d < mDims; ++d){
+			float diff = a[ai + d] - b[bj + d];
+			sum += diff * diff;
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,63 @@
+package edu.uw.homographyanalyzer.reusable.features;
+
+/**
+ * Single 8 bit grayscale plane stored row major in a byte array.
+ * This is the only image representation the pure Java feature
+ * pipeline works on, it has no dependency on OpenCV or Android.
+ * 
+ * Pixels are unsigned, use get(x, y) or mask with 0xFF when reading
+ * the backing array directly.
+ */
+public class GrayImage {
+
+	// Row major pixels, stride == width
+	private final byte[] mPixels;
+	private final int mWidth, mHeight;
+
+	/**
+	 * Creates a black image
+	 * @param width width in pixels
+	 * @param height height in pixels
+	 */
+	public GrayImage(int width, int height){
+		this(new byte[width * height], width, height);
+	}
+
+	/**
+	 * Wraps an existing plane, the array is not copied
+	 * @param pixels row major pixels of at least width * height length
+	 * @param width width in pixels
+	 * @param height height in pixels
+	 */
+	public GrayImage(byte[] pixels, int width, int height){
+		if (width <= 0 || height <= 0)
+			throw new IllegalArgumentException("Illegal image size " + width + "x" + height);
+		if (pixels == null || pixels.length < width * height)
+			throw new IllegalArgumentException("Pixel buffer too small for " + width + "x" + height);
+		mPixels = pixels;
+		mWidth = width;
+		mHeight = height;
+	}
+
+	/**
+	 * @return backing array of this image, not a copy
+	 */
+	public byte[] getPixels(){
+		return mPixels;
+	}
+
+	public int getWidth(){
+		return mWidth;
+	}
+
+	public int getHeight(){
+		return mHeight;
+	}
+
+	/**
+	 * @return intensity 0-255 at x, y
+	 */
+	public int get(int x, int y){
+		return mPixels[y * mWidth + x] & 0xFF;
+	}
+}
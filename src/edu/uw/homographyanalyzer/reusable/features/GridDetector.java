@@ -0,0 +1,145 @@
+package edu.uw.homographyanalyzer.reusable.features;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * FAST on a grid of overlapping tiles, every tile keeps only its strongest
+ * key points so the result is spread evenly over the image.
+ *
+ * Tiles run concurrently on the FeatureThreadPool.  Each tile is cropped with
+ * OVERLAP extra pixels on every side so the segment test, non maximum
+ * suppression and Harris response see the same neighborhood they would on
+ * the whole image.  A tile only reports key points that fall in its own
+ * core cell, cells partition the image so key points found in the overlaps
+ * are never reported twice.
+ *
+ * Thread safe, every tile uses its own FastDetector.
+ */
+public class GridDetector implements KeyPointDetector {
+
+	public static final int DEFAULT_GRID_ROWS = 4;
+	public static final int DEFAULT_GRID_COLS = 4;
+	public static final int DEFAULT_MAX_PER_TILE = 40;
+
+	// FAST circle (3) plus non maximum suppression (1) plus Harris block (4)
+	static final int OVERLAP = 8;
+	// Harris response reads this far around a key point
+	private static final int HARRIS_RADIUS = 4;
+
+	private final int mGridRows, mGridCols;
+	private final int mMaxPerTile;
+	private final int mThreshold;
+	private final boolean mHarrisRanking;
+
+	public GridDetector(){
+		this(DEFAULT_GRID_ROWS, DEFAULT_GRID_COLS, DEFAULT_MAX_PER_TILE,
+				FastDetector.DEFAULT_THRESHOLD, false);
+	}
+
+	/**
+	 * @param gridRows number of tile rows
+	 * @param gridCols number of tile columns
+	 * @param maxPerTile number of key points kept per tile
+	 * @param threshold FAST threshold
+	 * @param harrisRanking true to rank key points by Harris response like ORB,
+	 * 			false to rank by FAST score
+	 */
+	public GridDetector(int gridRows, int gridCols, int maxPerTile, int threshold,
+			boolean harrisRanking){
+		if (gridRows <= 0 || gridCols <= 0)
+			throw new IllegalArgumentException("Illegal grid " + gridRows + "x" + gridCols);
+		if (maxPerTile <= 0)
+			throw new IllegalArgumentException("Illegal key points per tile " + maxPerTile);
+		mGridRows = gridRows;
+		mGridCols = gridCols;
+		mMaxPerTile = maxPerTile;
+		mThreshold = threshold;
+		mHarrisRanking = harrisRanking;
+	}
+
+	public int getMaxPerTile(){
+		return mMaxPerTile;
+	}
+
+	@Override
+	public void detect(GrayImage image, KeyPointBuffer keyPoints) {
+		keyPoints.clear();
+		final int width = image.getWidth();
+		final int height = image.getHeight();
+		int rows = Math.min(mGridRows, Math.max(1, height / (2 * OVERLAP)));
+		int cols = Math.min(mGridCols, Math.max(1, width / (2 * OVERLAP)));
+
+		List<Callable<KeyPointBuffer>> jobs = new ArrayList<Callable<KeyPointBuffer>>(rows * cols);
+		for (int r = 0; r < rows; ++r){
+			for (int c = 0; c < cols; ++c){
+				jobs.add(new TileJob(image,
+						c * width / cols, r * height / rows,
+						(c + 1) * width / cols, (r + 1) * height / rows));
+			}
+		}
+		// Merge in tile order so the output is deterministic
+		for (KeyPointBuffer tile: FeatureThreadPool.invokeAll(jobs))
+			keyPoints.addAll(tile);
+	}
+
+	/**
+	 * Detects the key points of a single cell
+	 */
+	private class TileJob implements Callable<KeyPointBuffer> {
+
+		private final GrayImage mImage;
+		// Core cell, [x0, x1) x [y0, y1)
+		private final int mX0, mY0, mX1, mY1;
+
+		public TileJob(GrayImage image, int x0, int y0, int x1, int y1){
+			mImage = image;
+			mX0 = x0;
+			mY0 = y0;
+			mX1 = x1;
+			mY1 = y1;
+		}
+
+		@Override
+		public KeyPointBuffer call() {
+			int width = mImage.getWidth();
+			int height = mImage.getHeight();
+			// Tile is the cell grown by the overlap, clipped to the image
+			int tx0 = Math.max(0, mX0 - OVERLAP);
+			int ty0 = Math.max(0, mY0 - OVERLAP);
+			int tw = Math.min(width, mX1 + OVERLAP) - tx0;
+			int th = Math.min(height, mY1 + OVERLAP) - ty0;
+
+			byte[] pixels = ByteArrayPool.acquire(tw * th);
+			KeyPointBuffer found = new KeyPointBuffer();
+			KeyPointBuffer kept = new KeyPointBuffer();
+			try {
+				byte[] src = mImage.getPixels();
+				for (int y = 0; y < th; ++y)
+					System.arraycopy(src, (ty0 + y) * width + tx0, pixels, y * tw, tw);
+				GrayImage tile = new GrayImage(pixels, tw, th);
+				new FastDetector(mThreshold, true).detect(tile, found);
+
+				for (int i = 0; i < found.size(); ++i){
+					int tx = (int)found.getX(i);
+					int ty = (int)found.getY(i);
+					int x = tx + tx0;
+					int y = ty + ty0;
+					if (x < mX0 || x >= mX1 || y < mY0 || y >= mY1) continue;
+					float response = found.getResponse(i);
+					if (mHarrisRanking){
+						if (tx < HARRIS_RADIUS || ty < HARRIS_RADIUS
+								|| tx >= tw - HARRIS_RADIUS || ty >= th - HARRIS_RADIUS) continue;
+						response = OrbExtractor.harrisResponse(pixels, tw, tx, ty);
+					}
+					kept.add(x, y, found.getSize(i), -1f, response, 0);
+				}
+			} finally {
+				ByteArrayPool.release(pixels);
+			}
+			KeyPointSelector.retainBest(kept, mMaxPerTile);
+			return kept;
+		}
+	}
+}
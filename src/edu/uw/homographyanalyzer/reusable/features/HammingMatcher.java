@@ -0,0 +1,41 @@
+package edu.uw.homographyanalyzer.reusable.features;
+
+/**
+ * Brute force nearest neighbor matcher for BinaryDescriptors.
+ * Query descriptors are split across the FeatureThreadPool.
+ */
+public class HammingMatcher {
+
+	/**
+	 * Finds for every query descriptor the closest train descriptor
+	 * 
+	 * @param query descriptors to find matches for
+	 * @param train descriptors to search
+	 * @param trainIdx output, index of the closest train descriptor per query 
+	 * 			or -1 if train is empty, length >= query.size()
+	 * @param distances output, Hamming distance to the closest train descriptor, 
+	 * 			length >= query.size()
+	 */
+	public static void match(final BinaryDescriptors query, final BinaryDescriptors train,
+			final int[] trainIdx, final int[] distances){
+		final int n = train.size();
+		FeatureThreadPool.runBands(0, query.size(), new FeatureThreadPool.BandTask() {
+			@Override
+			public void run(int band, int start, int end) {
+				for (int q = start; q < end; ++q){
+					int best = -1;
+					int bestDistance = Integer.MAX_VALUE;
+					for (int t = 0; t < n; ++t){
+						int d = query.distance(q, train, t);
+						if (d < bestDistance){
+							bestDistance = d;
+							best = t;
+						}
+					}
+					trainIdx[q] = best;
+					distances[q] = best == -1 ? Integer.MAX_VALUE : bestDistance;
+				}
+			}
+		});
+	}
+}
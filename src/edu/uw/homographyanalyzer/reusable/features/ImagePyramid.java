@@ -0,0 +1,161 @@
+package edu.uw.homographyanalyzer.reusable.features;
+
+/**
+ * Gaussian pyramid of a grayscale image shared by every consumer of that 
+ * image.  Level 0 is the image itself and every following level is half
+ * the size of the previous one, smoothed with a 5 tap binomial kernel
+ * before decimation.
+ * 
+ * Levels are built on first access and kept until the pyramid is no longer
+ * used, then their buffers go back to the ByteArrayPool.  Consumers bracket
+ * their use with acquire() and release(); the owner of the image holds the
+ * initial reference.  A level requested after the buffers were returned is 
+ * simply built again.
+ * 
+ * Thread safe.
+ */
+public class ImagePyramid {
+
+	public static final int DEFAULT_MAX_LEVELS = 5;
+	// No level is smaller then this in either dimension
+	public static final int MIN_LEVEL_SIZE = 32;
+
+	private final GrayImage[] mLevels;
+	private final int mNumLevels;
+	private int mReferences;
+
+	/**
+	 * Creates pyramid with up to DEFAULT_MAX_LEVELS levels
+	 * @param base level 0, not copied
+	 */
+	public ImagePyramid(GrayImage base){
+		this(base, DEFAULT_MAX_LEVELS);
+	}
+
+	/**
+	 * @param base level 0, not copied
+	 * @param maxLevels maximum number of levels including the base
+	 */
+	public ImagePyramid(GrayImage base, int maxLevels){
+		int levels = 1;
+		int w = base.getWidth() / 2;
+		int h = base.getHeight() / 2;
+		while (levels < maxLevels && w >= MIN_LEVEL_SIZE && h >= MIN_LEVEL_SIZE){
+			levels++;
+			w /= 2;
+			h /= 2;
+		}
+		mNumLevels = levels;
+		mLevels = new GrayImage[levels];
+		mLevels[0] = base;
+		mReferences = 1;
+	}
+
+	/**
+	 * @return number of levels available including the base
+	 */
+	public int getNumLevels(){
+		return mNumLevels;
+	}
+
+	/**
+	 * @return factor that maps coordinates of level to coordinates of level 0
+	 */
+	public static float getScale(int level){
+		return 1 << level;
+	}
+
+	/**
+	 * Returns level, building it and all missing coarser levels on the way
+	 * @param level 0 based level index
+	 * @return image of the level
+	 */
+	public synchronized GrayImage getLevel(int level){
+		if (level < 0 || level >= mNumLevels)
+			throw new IllegalArgumentException("No level " + level + 
+					" in pyramid of " + mNumLevels + " levels");
+		for (int l = 1; l <= level; ++l){
+			if (mLevels[l] == null)
+				mLevels[l] = pyrDown(mLevels[l - 1]);
+		}
+		return mLevels[level];
+	}
+
+	/**
+	 * @return true if level has been built and not released since
+	 */
+	public synchronized boolean isBuilt(int level){
+		return level >= 0 && level < mNumLevels && mLevels[level] != null;
+	}
+
+	/**
+	 * Registers a consumer, levels are kept until every acquire is 
+	 * matched with a release
+	 */
+	public synchronized void acquire(){
+		mReferences++;
+	}
+
+	/**
+	 * Unregisters a consumer, once no consumer is left the downsampled 
+	 * levels are returned to the ByteArrayPool
+	 */
+	public synchronized void release(){
+		if (mReferences == 0) return;
+		if (--mReferences > 0) return;
+		for (int l = 1; l < mNumLevels; ++l){
+			if (mLevels[l] != null){
+				ByteArrayPool.release(mLevels[l].getPixels());
+				mLevels[l] = null;
+			}
+		}
+	}
+
+	/**
+	 * Smooths with [1 4 6 4 1] / 16 in both directions and drops every 
+	 * other row and column, borders are replicated
+	 * @return level half the size of src
+	 */
+	static GrayImage pyrDown(GrayImage src){
+		final int sw = src.getWidth();
+		final int sh = src.getHeight();
+		final int dw = sw / 2;
+		final int dh = sh / 2;
+		final byte[] s = src.getPixels();
+		final byte[] d = ByteArrayPool.acquire(dw * dh);
+
+		FeatureThreadPool.runBands(0, dh, new FeatureThreadPool.BandTask() {
+			@Override
+			public void run(int band, int rowStart, int rowEnd) {
+				// Vertically filtered source row for the current output row
+				int[] row = new int[sw];
+				for (int y = rowStart; y < rowEnd; ++y){
+					int sy = 2 * y;
+					int r0 = clamp(sy - 2, sh) * sw;
+					int r1 = clamp(sy - 1, sh) * sw;
+					int r2 = sy * sw;
+					int r3 = clamp(sy + 1, sh) * sw;
+					int r4 = clamp(sy + 2, sh) * sw;
+					for (int x = 0; x < sw; ++x){
+						row[x] = (s[r0 + x] & 0xFF) + 4 * (s[r1 + x] & 0xFF) 
+								+ 6 * (s[r2 + x] & 0xFF) + 4 * (s[r3 + x] & 0xFF)
+								+ (s[r4 + x] & 0xFF);
+					}
+					int out = y * dw;
+					for (int x = 0; x < dw; ++x){
+						int sx = 2 * x;
+						int sum = row[clamp(sx - 2, sw)] + 4 * row[clamp(sx - 1, sw)] 
+								+ 6 * row[sx] + 4 * row[clamp(sx + 1, sw)] 
+								+ row[clamp(sx + 2, sw)];
+						d[out + x] = (byte)((sum + 128) >> 8);
+					}
+				}
+			}
+		});
+		return new GrayImage(d, dw, dh);
+	}
+
+	private static int clamp(int v, int size){
+		return v < 0 ? 0 : v >= size ? size - 1 : v;
+	}
+}
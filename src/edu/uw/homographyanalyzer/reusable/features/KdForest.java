@@ -0,0 +1,378 @@
+package edu.uw.homographyanalyzer.reusable.features;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Approximate nearest neighbor index over FloatDescriptors built from
+ * several randomized KD trees, the way FLANN indexes SIFT and SURF.
+ *
+ * Every tree splits on a dimension picked at random among the ones with the
+ * highest variance, so the trees partition the space differently.  A query
+ * descends every tree once and then keeps exploring the closest unexplored
+ * branches of all trees best bin first until maxChecks descriptors were
+ * compared.  More checks give higher recall, maxChecks <= 0 searches exactly.
+ *
+ * The index only reads the train descriptors, it is built once and reused
+ * by any number of concurrent queries.
+ */
+public class KdForest {
+
+	public static final int DEFAULT_TREES = 4;
+	public static final int DEFAULT_MAX_CHECKS = 64;
+
+	// Descriptors per leaf
+	private static final int LEAF_SIZE = 8;
+	// Split dimension is picked among this many highest variance dimensions
+	private static final int RANDOM_DIMS = 5;
+	// Number of descriptors variance is estimated on per node
+	private static final int VARIANCE_SAMPLES = 100;
+	// Trees are reproducible for the same train descriptors
+	private static final long SEED = 0x5EEDL;
+
+	private final FloatDescriptors mTrain;
+	private final Tree[] mTrees;
+
+	public KdForest(FloatDescriptors train){
+		this(train, DEFAULT_TREES);
+	}
+
+	/**
+	 * Builds the index
+	 * @param train descriptors to search, must not be modified afterwards
+	 * @param numTrees number of randomized trees, more trees give higher
+	 * 			recall for the same number of checks
+	 */
+	public KdForest(FloatDescriptors train, int numTrees){
+		if (numTrees <= 0)
+			throw new IllegalArgumentException("Illegal number of trees " + numTrees);
+		mTrain = train;
+		mTrees = new Tree[numTrees];
+		Random random = new Random(SEED);
+		for (int t = 0; t < numTrees; ++t)
+			mTrees[t] = new Tree(train, random);
+	}
+
+	/**
+	 * @return descriptors the index was built for
+	 */
+	public FloatDescriptors getTrain(){
+		return mTrain;
+	}
+
+	/**
+	 * @return number of trees
+	 */
+	public int getTreeCount(){
+		return mTrees.length;
+	}
+
+	/**
+	 * Finds for every query descriptor the closest train descriptor,
+	 * queries are split across the FeatureThreadPool
+	 *
+	 * @param query descriptors to find matches for, same dimensions as train
+	 * @param maxChecks number of train descriptors compared per query,
+	 * 			<= 0 for an exact search
+	 * @param trainIdx output, index of the closest train descriptor found
+	 * 			or -1 if train is empty, length >= query.size()
+	 * @param distances output, squared Euclidean distance to the closest train
+	 * 			descriptor found, length >= query.size()
+	 */
+	public void match(final FloatDescriptors query, final int maxChecks,
+			final int[] trainIdx, final float[] distances){
+		if (query.getDims() != mTrain.getDims())
+			throw new IllegalArgumentException("Query has " + query.getDims()
+					+ " dimensions, index has " + mTrain.getDims());
+		FeatureThreadPool.runBands(0, query.size(), new FeatureThreadPool.BandTask() {
+			@Override
+			public void run(int band, int start, int end) {
+				Search search = new Search();
+				for (int q = start; q < end; ++q){
+					search.run(query, q, maxChecks);
+					trainIdx[q] = search.mBest;
+					distances[q] = search.mBestDistance;
+				}
+			}
+		});
+	}
+
+	/**
+	 * One randomized KD tree.  Nodes are stored in parallel arrays, inner
+	 * nodes split on mDim at mSplit, leaves have mDim -1 and own the
+	 * descriptors mIndex[mLeft, mRight).
+	 */
+	private static class Tree {
+
+		private final int[] mIndex;
+		private int[] mDim, mLeft, mRight;
+		private float[] mSplit;
+		private int mNodeCount;
+		private final int mRoot;
+
+		Tree(FloatDescriptors train, Random random){
+			int n = train.size();
+			mIndex = new int[n];
+			for (int i = 0; i < n; ++i) mIndex[i] = i;
+			// Shuffled so the variance samples of a node are random
+			for (int i = n - 1; i > 0; --i){
+				int j = random.nextInt(i + 1);
+				int t = mIndex[i]; mIndex[i] = mIndex[j]; mIndex[j] = t;
+			}
+			int capacity = Math.max(1, 2 * n / LEAF_SIZE + 1);
+			mDim = new int[capacity];
+			mLeft = new int[capacity];
+			mRight = new int[capacity];
+			mSplit = new float[capacity];
+			mRoot = build(train, random, 0, n, new float[n]);
+		}
+
+		private int newNode(){
+			if (mNodeCount == mDim.length){
+				int capacity = mDim.length * 2;
+				mDim = Arrays.copyOf(mDim, capacity);
+				mLeft = Arrays.copyOf(mLeft, capacity);
+				mRight = Arrays.copyOf(mRight, capacity);
+				mSplit = Arrays.copyOf(mSplit, capacity);
+			}
+			return mNodeCount++;
+		}
+
+		/**
+		 * Builds the subtree over mIndex[lo, hi)
+		 * @param values scratch, one float per train descriptor
+		 * @return node of the subtree
+		 */
+		private int build(FloatDescriptors train, Random random, int lo, int hi, float[] values){
+			int node = newNode();
+			if (hi - lo <= LEAF_SIZE){
+				mDim[node] = -1;
+				mLeft[node] = lo;
+				mRight[node] = hi;
+				return node;
+			}
+			int dim = pickDimension(train, random, lo, hi);
+			float[] data = train.getData();
+			int dims = train.getDims();
+			for (int i = lo; i < hi; ++i)
+				values[i] = data[mIndex[i] * dims + dim];
+			// Median split keeps the tree balanced, left <= split <= right
+			int mid = (lo + hi) >>> 1;
+			selectNth(values, lo, hi - 1, mid);
+			mDim[node] = dim;
+			mSplit[node] = values[mid];
+			int left = build(train, random, lo, mid, values);
+			int right = build(train, random, mid, hi, values);
+			mLeft[node] = left;
+			mRight[node] = right;
+			return node;
+		}
+
+		/**
+		 * @return random one of the RANDOM_DIMS dimensions with the highest
+		 * variance on a sample of mIndex[lo, hi)
+		 */
+		private int pickDimension(FloatDescriptors train, Random random, int lo, int hi){
+			float[] data = train.getData();
+			int dims = train.getDims();
+			int samples = Math.min(VARIANCE_SAMPLES, hi - lo);
+			double[] mean = new double[dims];
+			double[] variance = new double[dims];
+			for (int s = 0; s < samples; ++s){
+				int base = mIndex[lo + s] * dims;
+				for (int d = 0; d < dims; ++d) mean[d] += data[base + d];
+			}
+			for (int d = 0; d < dims; ++d) mean[d] /= samples;
+			for (int s = 0; s < samples; ++s){
+				int base = mIndex[lo + s] * dims;
+				for (int d = 0; d < dims; ++d){
+					double diff = data[base + d] - mean[d];
+					variance[d] += diff * diff;
+				}
+			}
+
+			// Highest variances first, insertion into a short list
+			int top = Math.min(RANDOM_DIMS, dims);
+			int[] best = new int[top];
+			int count = 0;
+			for (int d = 0; d < dims; ++d){
+				int k = count < top ? count++ : top;
+				if (k == top && variance[d] <= variance[best[top - 1]]) continue;
+				if (k == top) k = top - 1;
+				while (k > 0 && variance[best[k - 1]] < variance[d]){
+					best[k] = best[k - 1];
+					k--;
+				}
+				best[k] = d;
+			}
+			return best[random.nextInt(top)];
+		}
+
+		/**
+		 * Quickselect on values[lo, hi], permuting mIndex along, afterwards
+		 * values left of n are <= values[n] <= values right of n
+		 */
+		private void selectNth(float[] values, int lo, int hi, int n){
+			while (lo < hi){
+				float pivot = values[(lo + hi) >>> 1];
+				int i = lo, j = hi;
+				while (i <= j){
+					while (values[i] < pivot) i++;
+					while (values[j] > pivot) j--;
+					if (i <= j){
+						float v = values[i]; values[i] = values[j]; values[j] = v;
+						int t = mIndex[i]; mIndex[i] = mIndex[j]; mIndex[j] = t;
+						i++;
+						j--;
+					}
+				}
+				if (n <= j) hi = j;
+				else if (n >= i) lo = i;
+				else return;
+			}
+		}
+	}
+
+	/**
+	 * Scratch of a single query thread
+	 */
+	private class Search {
+
+		// Per train descriptor, query that last compared it
+		private final int[] mVisited = new int[mTrain.size()];
+		private int mStamp = 0;
+		private final BranchHeap mHeap = new BranchHeap();
+		private int mChecks;
+
+		int mBest;
+		float mBestDistance;
+
+		void run(FloatDescriptors query, int q, int maxChecks){
+			if (++mStamp == 0){
+				// Wrapped, stamps of earlier queries are ambiguous
+				Arrays.fill(mVisited, 0);
+				mStamp = 1;
+			}
+			int limit = maxChecks <= 0 ? Integer.MAX_VALUE : maxChecks;
+			mBest = -1;
+			mBestDistance = Float.MAX_VALUE;
+			mChecks = 0;
+			mHeap.clear();
+
+			// Every tree is descended at least once
+			for (int t = 0; t < mTrees.length; ++t)
+				descend(query, q, t, mTrees[t].mRoot);
+			while (mChecks < limit && mHeap.size() > 0){
+				float bound = mHeap.peekKey();
+				if (bound >= mBestDistance) break;
+				int tree = mHeap.peekTree();
+				int node = mHeap.peekNode();
+				mHeap.pop();
+				descend(query, q, tree, node);
+			}
+		}
+
+		/**
+		 * Walks from node to the leaf closest to the query, queuing the other
+		 * branches, and compares the descriptors of that leaf
+		 */
+		private void descend(FloatDescriptors query, int q, int t, int node){
+			Tree tree = mTrees[t];
+			float[] data = query.getData();
+			int base = q * query.getDims();
+			while (tree.mDim[node] != -1){
+				float diff = data[base + tree.mDim[node]] - tree.mSplit[node];
+				int near = diff < 0 ? tree.mLeft[node] : tree.mRight[node];
+				int far = diff < 0 ? tree.mRight[node] : tree.mLeft[node];
+				float bound = diff * diff;
+				if (bound < mBestDistance) mHeap.push(bound, t, far);
+				node = near;
+			}
+			for (int i = tree.mLeft[node]; i < tree.mRight[node]; ++i){
+				int idx = tree.mIndex[i];
+				if (mVisited[idx] == mStamp) continue;
+				mVisited[idx] = mStamp;
+				mChecks++;
+				float d = query.distanceSquared(q, mTrain, idx);
+				if (d < mBestDistance){
+					mBestDistance = d;
+					mBest = idx;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Binary min heap of unexplored branches keyed by their distance bound
+	 */
+	private static class BranchHeap {
+
+		private float[] mKeys = new float[64];
+		private int[] mTrees = new int[64];
+		private int[] mNodes = new int[64];
+		private int mSize;
+
+		int size(){
+			return mSize;
+		}
+
+		void clear(){
+			mSize = 0;
+		}
+
+		float peekKey(){
+			return mKeys[0];
+		}
+
+		int peekTree(){
+			return mTrees[0];
+		}
+
+		int peekNode(){
+			return mNodes[0];
+		}
+
+		void push(float key, int tree, int node){
+			if (mSize == mKeys.length){
+				mKeys = Arrays.copyOf(mKeys, mSize * 2);
+				mTrees = Arrays.copyOf(mTrees, mSize * 2);
+				mNodes = Arrays.copyOf(mNodes, mSize * 2);
+			}
+			int i = mSize++;
+			while (i > 0){
+				int parent = (i - 1) >> 1;
+				if (mKeys[parent] <= key) break;
+				set(i, parent);
+				i = parent;
+			}
+			mKeys[i] = key;
+			mTrees[i] = tree;
+			mNodes[i] = node;
+		}
+
+		void pop(){
+			if (--mSize == 0) return;
+			float key = mKeys[mSize];
+			int tree = mTrees[mSize];
+			int node = mNodes[mSize];
+			int i = 0;
+			while (true){
+				int child = 2 * i + 1;
+				if (child >= mSize) break;
+				if (child + 1 < mSize && mKeys[child + 1] < mKeys[child]) child++;
+				if (key <= mKeys[child]) break;
+				set(i, child);
+				i = child;
+			}
+			mKeys[i] = key;
+			mTrees[i] = tree;
+			mNodes[i] = node;
+		}
+
+		private void set(int to, int from){
+			mKeys[to] = mKeys[from];
+			mTrees[to] = mTrees[from];
+			mNodes[to] = mNodes[from];
+		}
+	}
+}
@@ -0,0 +1,173 @@
+package edu.uw.homographyanalyzer.reusable.features;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of key points stored as parallel primitive arrays.
+ * Avoids allocating a KeyPoint and Point object per key point.
+ * 
+ * The arrays returned by the getters are the backing arrays, only
+ * the first size() entries are valid.
+ */
+public class KeyPointBuffer {
+
+	private static final int DEFAULT_CAPACITY = 512;
+
+	private float[] mX, mY, mSize, mAngle, mResponse;
+	private int[] mOctave;
+	private int mCount;
+
+	public KeyPointBuffer(){
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity initial number of key points that fit without growing
+	 */
+	public KeyPointBuffer(int capacity){
+		capacity = Math.max(1, capacity);
+		mX = new float[capacity];
+		mY = new float[capacity];
+		mSize = new float[capacity];
+		mAngle = new float[capacity];
+		mResponse = new float[capacity];
+		mOctave = new int[capacity];
+		mCount = 0;
+	}
+
+	/**
+	 * @return number of key points stored
+	 */
+	public int size(){
+		return mCount;
+	}
+
+	/**
+	 * Removes all key points, keeps the allocated arrays
+	 */
+	public void clear(){
+		mCount = 0;
+	}
+
+	/**
+	 * Appends a key point
+	 * @return index of the new key point
+	 */
+	public int add(float x, float y, float size, float angle, float response, int octave){
+		if (mCount == mX.length)
+			ensureCapacity(mCount + 1);
+		int i = mCount++;
+		mX[i] = x;
+		mY[i] = y;
+		mSize[i] = size;
+		mAngle[i] = angle;
+		mResponse[i] = response;
+		mOctave[i] = octave;
+		return i;
+	}
+
+	/**
+	 * Appends every key point of other to the end of this
+	 * @param other key points to append
+	 */
+	public void addAll(KeyPointBuffer other){
+		int n = other.mCount;
+		ensureCapacity(mCount + n);
+		System.arraycopy(other.mX, 0, mX, mCount, n);
+		System.arraycopy(other.mY, 0, mY, mCount, n);
+		System.arraycopy(other.mSize, 0, mSize, mCount, n);
+		System.arraycopy(other.mAngle, 0, mAngle, mCount, n);
+		System.arraycopy(other.mResponse, 0, mResponse, mCount, n);
+		System.arraycopy(other.mOctave, 0, mOctave, mCount, n);
+		mCount += n;
+	}
+
+	/**
+	 * Overwrites key point to with key point from
+	 * @param from index of key point to copy
+	 * @param to index of key point to overwrite
+	 */
+	public void copy(int from, int to){
+		mX[to] = mX[from];
+		mY[to] = mY[from];
+		mSize[to] = mSize[from];
+		mAngle[to] = mAngle[from];
+		mResponse[to] = mResponse[from];
+		mOctave[to] = mOctave[from];
+	}
+
+	/**
+	 * Drops every key point at index size and after
+	 * @param size new number of key points, ignored if not smaller then size()
+	 */
+	public void truncate(int size){
+		mCount = Math.max(0, Math.min(mCount, size));
+	}
+
+	/**
+	 * Grows backing arrays so at least capacity key points fit
+	 */
+	public void ensureCapacity(int capacity){
+		if (capacity <= mX.length) return;
+		int newCapacity = Math.max(capacity, mX.length + (mX.length >> 1));
+		mX = Arrays.copyOf(mX, newCapacity);
+		mY = Arrays.copyOf(mY, newCapacity);
+		mSize = Arrays.copyOf(mSize, newCapacity);
+		mAngle = Arrays.copyOf(mAngle, newCapacity);
+		mResponse = Arrays.copyOf(mResponse, newCapacity);
+		mOctave = Arrays.copyOf(mOctave, newCapacity);
+	}
+
+	public float getX(int i){
+		return mX[i];
+	}
+
+	public float getY(int i){
+		return mY[i];
+	}
+
+	public float getSize(int i){
+		return mSize[i];
+	}
+
+	public float getAngle(int i){
+		return mAngle[i];
+	}
+
+	public float getResponse(int i){
+		return mResponse[i];
+	}
+
+	public int getOctave(int i){
+		return mOctave[i];
+	}
+
+	public void setAngle(int i, float angle){
+		mAngle[i] = angle;
+	}
+
+	public void setResponse(int i, float response){
+		mResponse[i] = response;
+	}
+
+	/**
+	 * @return backing array of x coordinates
+	 */
+	public float[] getXArray(){
+		return mX;
+	}
+
+	/**
+	 * @return backing array of y coordinates
+	 */
+	public float[] getYArray(){
+		return mY;
+	}
+
+	/**
+	 * @return backing array of responses
+	 */
+	public float[] getResponseArray(){
+		return mResponse;
+	}
+}
@@ -0,0 +1,16 @@
+package edu.uw.homographyanalyzer.reusable.features;
+
+/**
+ * Key point detector that runs in pure Java over a grayscale plane.
+ */
+public interface KeyPointDetector {
+
+	/**
+	 * Finds key points in image.  keyPoints is cleared before any
+	 * key point is added.
+	 * 
+	 * @param image grayscale image to search
+	 * @param keyPoints output buffer for the key points found
+	 */
+	public void detect(GrayImage image, KeyPointBuffer keyPoints);
+}
@@ -0,0 +1,156 @@
+package edu.uw.homographyanalyzer.reusable.features;
+
+import java.util.Arrays;
+
+/**
+ * Caps the number of key points so matching and RANSAC cost stay predictable.
+ *
+ * The n strongest key points are found with quickselect on the primitive
+ * response array, linear in the number of key points instead of sorting.
+ * retainSpread additionally applies adaptive non maximal suppression (ANMS)
+ * so the kept key points are spread over the image instead of clustering
+ * on the most textured region.
+ */
+public final class KeyPointSelector {
+
+	// A stronger neighbor only suppresses if its response is this much larger
+	public static final float DEFAULT_ROBUSTNESS = 0.9f;
+	// ANMS is quadratic, only this many times n candidates take part
+	private static final int ANMS_CANDIDATES_FACTOR = 5;
+
+	private KeyPointSelector(){}
+
+	/**
+	 * Finds the indices of the n largest values, ties are broken arbitrarily
+	 * @param values values to rank, not modified
+	 * @param size number of values to consider
+	 * @param n number of indices to select
+	 * @return indices of the min(n, size) largest values in ascending index order
+	 */
+	public static int[] selectTop(float[] values, int size, int n){
+		if (size < 0 || size > values.length)
+			throw new IllegalArgumentException("Illegal size " + size);
+		n = Math.max(0, Math.min(n, size));
+		int[] index = new int[size];
+		for (int i = 0; i < size; ++i) index[i] = i;
+		if (n < size){
+			float[] v = Arrays.copyOf(values, size);
+			select(v, index, 0, size - 1, n);
+		}
+		int[] top = Arrays.copyOf(index, n);
+		Arrays.sort(top);
+		return top;
+	}
+
+	/**
+	 * Keeps the n key points with the highest response, order is preserved
+	 * @param keyPoints key points to cap
+	 * @param n maximum number of key points
+	 */
+	public static void retainBest(KeyPointBuffer keyPoints, int n){
+		int size = keyPoints.size();
+		if (size <= n) return;
+		retain(keyPoints, selectTop(keyPoints.getResponseArray(), size, n));
+	}
+
+	/**
+	 * Keeps n key points that are strong and spread over the image.  Every key
+	 * point gets the distance to the closest sufficiently stronger key point
+	 * and the n key points with the largest distances are kept.
+	 *
+	 * @param keyPoints key points to cap
+	 * @param n maximum number of key points
+	 * @param robustness a neighbor suppresses a key point if the response of the
+	 * 			key point is less then robustness times the response of the neighbor
+	 */
+	public static void retainSpread(KeyPointBuffer keyPoints, int n, float robustness){
+		if (keyPoints.size() <= n) return;
+		if (n <= 0){
+			keyPoints.truncate(0);
+			return;
+		}
+		// Weak key points would only get small radii anyway
+		retainBest(keyPoints, n * ANMS_CANDIDATES_FACTOR);
+
+		int size = keyPoints.size();
+		float[] x = keyPoints.getXArray();
+		float[] y = keyPoints.getYArray();
+		float[] response = keyPoints.getResponseArray();
+
+		// Visit in descending response so only earlier key points can suppress
+		int[] order = selectTop(response, size, size);
+		sortByResponse(order, response);
+		float[] radius = new float[size];
+		for (int a = 0; a < size; ++a){
+			int i = order[a];
+			float best = Float.MAX_VALUE;
+			for (int b = 0; b < a; ++b){
+				int j = order[b];
+				if (response[i] >= robustness * response[j]) continue;
+				float dx = x[i] - x[j];
+				float dy = y[i] - y[j];
+				float d = dx * dx + dy * dy;
+				if (d < best) best = d;
+			}
+			radius[i] = best;
+		}
+		retain(keyPoints, selectTop(radius, size, n));
+	}
+
+	/**
+	 * Compacts keyPoints to the key points at the ascending indices in keep
+	 */
+	private static void retain(KeyPointBuffer keyPoints, int[] keep){
+		for (int k = 0; k < keep.length; ++k)
+			keyPoints.copy(keep[k], k);
+		keyPoints.truncate(keep.length);
+	}
+
+	/**
+	 * Sorts indices by descending response, ties by ascending index
+	 */
+	private static void sortByResponse(int[] order, float[] response){
+		long[] keys = new long[order.length];
+		for (int k = 0; k < order.length; ++k){
+			// Float bits that order like the floats as signed ints, inverted 
+			// so larger responses sort first
+			int bits = Float.floatToIntBits(response[order[k]]);
+			bits = ~(bits >= 0 ? bits : bits ^ 0x7FFFFFFF);
+			keys[k] = ((long) bits << 32) | order[k];
+		}
+		Arrays.sort(keys);
+		for (int k = 0; k < order.length; ++k)
+			order[k] = (int) keys[k];
+	}
+
+	/**
+	 * Quickselect, afterwards the n largest values of [left, right] are in
+	 * [left, left + n), index is permuted along with values
+	 */
+	private static void select(float[] v, int[] index, int left, int right, int n){
+		int target = left + n - 1;
+		while (left < right){
+			// Median of three pivot against sorted and reversed input
+			int mid = (left + right) >>> 1;
+			if (v[mid] > v[left]) swap(v, index, mid, left);
+			if (v[right] > v[left]) swap(v, index, right, left);
+			if (v[right] > v[mid]) swap(v, index, right, mid);
+			float pivot = v[mid];
+
+			int i = left, j = right;
+			while (i <= j){
+				while (v[i] > pivot) i++;
+				while (v[j] < pivot) j--;
+				if (i <= j) swap(v, index, i++, j--);
+			}
+			if (target <= j) right = j;
+			else if (target >= i) left = i;
+			else return;
+		}
+	}
+
+	private static void swap(float[] v, int[] index, int a, int b){
+		float t = v[a]; v[a] = v[b]; v[b] = t;
+		int s = index[a]; index[a] = index[b]; index[b] = s;
+	}
+}
@@ -0,0 +1,422 @@
+package edu.uw.homographyanalyzer.reusable.features;
+
+import java.util.Random;
+
+/**
+ * Pure Java ORB: oriented FAST key points ranked by Harris response and
+ * described with rotated BRIEF.
+ * 
+ * The sampling pattern is rotated once into PATTERN_ROTATIONS discrete
+ * orientations when the class is loaded, describing a key point only looks
+ * up the pattern closest to its orientation.  Descriptors are written straight
+ * into a packed BinaryDescriptors matrix.
+ * 
+ * Scale levels come from an ImagePyramid, pass the pyramid attached to the
+ * image so levels are shared with other consumers instead of rebuilt.
+ * 
+ * Not thread safe, use one instance per thread.
+ */
+public class OrbExtractor {
+
+	public static final int DEFAULT_NUM_FEATURES = 500;
+	public static final int DEFAULT_NUM_LEVELS = 4;
+	public static final int DEFAULT_FAST_THRESHOLD = 20;
+
+	// Patch used for orientation and descriptor
+	public static final int PATCH_SIZE = 31;
+	private static final int HALF_PATCH = PATCH_SIZE / 2;
+	// Sample points of the pattern lie within [-PATTERN_RADIUS, PATTERN_RADIUS]
+	private static final int PATTERN_RADIUS = 13;
+	// Rotated pattern reaches PATTERN_RADIUS * sqrt(2), plus the smoothing kernel
+	static final int EDGE = 22;
+
+	// 12 degree steps
+	public static final int PATTERN_ROTATIONS = 30;
+
+	private static final float HARRIS_K = 0.04f;
+	private static final int HARRIS_BLOCK = 7;
+
+	// Seed of the sampling pattern, changing it breaks stored descriptors
+	private static final long PATTERN_SEED = 0x0B5EEDL;
+
+	// Pattern point pairs per rotation, x1 y1 x2 y2 per test
+	private static final int[][] sPattern = buildRotatedPatterns();
+
+	// Half width of every row of the circular orientation patch
+	private static final int[] sCircleHalfWidth = buildCircleHalfWidths();
+
+	private int mNumFeatures;
+	private int mNumLevels;
+	private final FastDetector mFast;
+	private FeatureMask mMask;
+
+	public OrbExtractor(){
+		this(DEFAULT_NUM_FEATURES, DEFAULT_NUM_LEVELS);
+	}
+
+	/**
+	 * @param numFeatures maximum number of features to retain
+	 * @param numLevels maximum number of pyramid levels to use
+	 */
+	public OrbExtractor(int numFeatures, int numLevels){
+		mNumFeatures = Math.max(1, numFeatures);
+		mNumLevels = Math.max(1, numLevels);
+		mFast = new FastDetector(DEFAULT_FAST_THRESHOLD, true);
+	}
+
+	public int getNumFeatures(){
+		return mNumFeatures;
+	}
+
+	public int getNumLevels(){
+		return mNumLevels;
+	}
+
+	/**
+	 * Restricts detection to a region of interest
+	 * @param mask mask in level 0 coordinates, null to search the whole image
+	 */
+	public void setMask(FeatureMask mask){
+		mMask = mask;
+	}
+
+	/**
+	 * Detects oriented FAST key points over all levels and computes their descriptors.
+	 * Builds a temporary pyramid, prefer the ImagePyramid overload when the 
+	 * image already has one.
+	 * 
+	 * @param image image to process
+	 * @param keyPoints output, key points in coordinates of image
+	 * @param descriptors output, one descriptor per key point
+	 */
+	public void detectAndCompute(GrayImage image, KeyPointBuffer keyPoints, 
+			BinaryDescriptors descriptors){
+		ImagePyramid pyramid = new ImagePyramid(image, mNumLevels);
+		try {
+			detectAndCompute(pyramid, keyPoints, descriptors);
+		} finally {
+			pyramid.release();
+		}
+	}
+
+	/**
+	 * Detects oriented FAST key points over the first getNumLevels() levels of 
+	 * pyramid and computes their descriptors
+	 * 
+	 * @param pyramid pyramid of the image to process
+	 * @param keyPoints output, key points in coordinates of level 0
+	 * @param descriptors output, one descriptor per key point
+	 */
+	public void detectAndCompute(ImagePyramid pyramid, KeyPointBuffer keyPoints, 
+			BinaryDescriptors descriptors){
+		keyPoints.clear();
+		descriptors.resize(0);
+		int levels = Math.min(mNumLevels, pyramid.getNumLevels());
+
+		// Features per level decrease with the area of the level
+		float factor = 0.5f;
+		float perLevel = mNumFeatures * (1 - factor) 
+				/ (1 - (float)Math.pow(factor, levels));
+
+		KeyPointBuffer levelPoints = new KeyPointBuffer();
+		BinaryDescriptors levelDescriptors = new BinaryDescriptors();
+		int remaining = mNumFeatures;
+		for (int l = 0; l < levels; ++l){
+			int quota = l == levels - 1 ? remaining : Math.round(perLevel);
+			perLevel *= factor;
+
+			GrayImage level = pyramid.getLevel(l);
+			if (level.getWidth() > 2 * EDGE && level.getHeight() > 2 * EDGE){
+				detectLevel(level, l, quota, levelPoints);
+				remaining -= levelPoints.size();
+				computeLevel(level, levelPoints, levelDescriptors);
+				appendScaled(levelPoints, levelDescriptors, l, PATCH_SIZE, keyPoints, descriptors);
+			}
+		}
+	}
+
+	/**
+	 * Computes orientation and descriptors of key points found by another
+	 * detector.  Key points too close to the border for the patch are removed.
+	 * 
+	 * @param image image key points were found in
+	 * @param keyPoints key points, angle is overwritten
+	 * @param descriptors output, one descriptor per remaining key point
+	 */
+	public void compute(GrayImage image, KeyPointBuffer keyPoints, 
+			BinaryDescriptors descriptors){
+		removeBorderPoints(keyPoints, image.getWidth(), image.getHeight());
+		computeLevel(image, keyPoints, descriptors);
+	}
+
+	/**
+	 * Computes orientation and descriptors of key points found on several 
+	 * pyramid levels, every key point is described on the level given by its 
+	 * octave.  Key points are regrouped by level and those too close to the 
+	 * border of their level are removed.
+	 * 
+	 * @param pyramid pyramid key points were found in
+	 * @param keyPoints key points in coordinates of level 0, angle is overwritten
+	 * @param descriptors output, one descriptor per remaining key point
+	 */
+	public void compute(ImagePyramid pyramid, KeyPointBuffer keyPoints, 
+			BinaryDescriptors descriptors){
+		KeyPointBuffer all = new KeyPointBuffer(keyPoints.size());
+		all.addAll(keyPoints);
+		keyPoints.clear();
+		descriptors.resize(0);
+
+		KeyPointBuffer levelPoints = new KeyPointBuffer();
+		BinaryDescriptors levelDescriptors = new BinaryDescriptors();
+		for (int l = 0; l < pyramid.getNumLevels(); ++l){
+			float scale = ImagePyramid.getScale(l);
+			levelPoints.clear();
+			for (int i = 0; i < all.size(); ++i){
+				if (all.getOctave(i) != l) continue;
+				levelPoints.add(all.getX(i) / scale, all.getY(i) / scale, all.getSize(i) / scale, 
+						all.getAngle(i), all.getResponse(i), l);
+			}
+			if (levelPoints.size() == 0) continue;
+			compute(pyramid.getLevel(l), levelPoints, levelDescriptors);
+			appendScaled(levelPoints, levelDescriptors, l, -1, keyPoints, descriptors);
+		}
+	}
+
+	/**
+	 * Finds the quota best key points of a single level ranked by Harris response
+	 */
+	private void detectLevel(GrayImage level, int l, int quota, KeyPointBuffer out){
+		mFast.setMask(mMask, 1 << l);
+		mFast.detect(level, out);
+		removeBorderPoints(out, level.getWidth(), level.getHeight());
+
+		byte[] pixels = level.getPixels();
+		int stride = level.getWidth();
+		for (int i = 0; i < out.size(); ++i){
+			out.setResponse(i, harrisResponse(pixels, stride, 
+					(int)out.getX(i), (int)out.getY(i)));
+		}
+		KeyPointSelector.retainBest(out, quota);
+	}
+
+	/**
+	 * Orients and describes key points given in coordinates of level
+	 */
+	private void computeLevel(GrayImage level, final KeyPointBuffer keyPoints, 
+			final BinaryDescriptors descriptors){
+		final int n = keyPoints.size();
+		descriptors.resize(n);
+		if (n == 0) return;
+
+		final byte[] pixels = level.getPixels();
+		final int stride = level.getWidth();
+		final long[] words = descriptors.getWords();
+
+		// Pixel offsets of the rotated patterns for this stride
+		final int[][] offsets = new int[PATTERN_ROTATIONS][];
+		for (int r = 0; r < PATTERN_ROTATIONS; ++r){
+			int[] pattern = sPattern[r];
+			int[] o = new int[BinaryDescriptors.BITS * 2];
+			for (int t = 0; t < BinaryDescriptors.BITS; ++t){
+				o[2 * t] = pattern[4 * t + 1] * stride + pattern[4 * t];
+				o[2 * t + 1] = pattern[4 * t + 3] * stride + pattern[4 * t + 2];
+			}
+			offsets[r] = o;
+		}
+
+		final byte[] smoothed = smooth(level);
+		try {
+			// Key points are independent of each other
+			FeatureThreadPool.runBands(0, n, new FeatureThreadPool.BandTask() {
+				@Override
+				public void run(int band, int start, int end) {
+					for (int i = start; i < end; ++i){
+						int x = Math.round(keyPoints.getX(i));
+						int y = Math.round(keyPoints.getY(i));
+						float angle = intensityCentroidAngle(pixels, stride, x, y);
+						keyPoints.setAngle(i, angle);
+
+						int rotation = Math.round(angle / (360f / PATTERN_ROTATIONS)) % PATTERN_ROTATIONS;
+						int[] o = offsets[rotation];
+						int center = y * stride + x;
+						int w = i * BinaryDescriptors.WORDS;
+						for (int word = 0; word < BinaryDescriptors.WORDS; ++word){
+							long bits = 0;
+							int t = word * 64;
+							for (int b = 0; b < 64; ++b, ++t){
+								int a = smoothed[center + o[2 * t]] & 0xFF;
+								int c = smoothed[center + o[2 * t + 1]] & 0xFF;
+								if (a < c) bits |= 1L << b;
+							}
+							words[w + word] = bits;
+						}
+					}
+				}
+			});
+		} finally {
+			ByteArrayPool.release(smoothed);
+		}
+	}
+
+	/**
+	 * Scales level key points back to level 0 coordinates and appends them with 
+	 * their descriptors to the output
+	 * @param size diameter on the level given to every key point, negative 
+	 * 			to keep the size of the key point
+	 */
+	private static void appendScaled(KeyPointBuffer levelPoints, BinaryDescriptors levelDescriptors,
+			int level, float size, KeyPointBuffer keyPoints, BinaryDescriptors descriptors){
+		float scale = ImagePyramid.getScale(level);
+		int first = keyPoints.size();
+		int n = levelPoints.size();
+		for (int i = 0; i < n; ++i){
+			float s = size < 0 ? levelPoints.getSize(i) : size;
+			keyPoints.add(levelPoints.getX(i) * scale, levelPoints.getY(i) * scale,
+					s * scale, levelPoints.getAngle(i), 
+					levelPoints.getResponse(i), level);
+		}
+		descriptors.resize(first + n);
+		System.arraycopy(levelDescriptors.getWords(), 0, descriptors.getWords(), 
+				first * BinaryDescriptors.WORDS, n * BinaryDescriptors.WORDS);
+	}
+
+	private static void removeBorderPoints(KeyPointBuffer keyPoints, int width, int height){
+		int kept = 0;
+		for (int i = 0; i < keyPoints.size(); ++i){
+			float x = keyPoints.getX(i);
+			float y = keyPoints.getY(i);
+			if (x >= EDGE && y >= EDGE && x < width - EDGE && y < height - EDGE)
+				keyPoints.copy(i, kept++);
+		}
+		keyPoints.truncate(kept);
+	}
+
+	/**
+	 * Harris corner response over a HARRIS_BLOCK square using Sobel gradients
+	 */
+	static float harrisResponse(byte[] p, int stride, int x, int y){
+		int r = HARRIS_BLOCK / 2;
+		double a = 0, b = 0, c = 0;
+		for (int dy = -r; dy <= r; ++dy){
+			int i = (y + dy) * stride + x - r;
+			for (int dx = -r; dx <= r; ++dx, ++i){
+				int up = i - stride;
+				int down = i + stride;
+				int ix = ((p[up + 1] & 0xFF) + 2 * (p[i + 1] & 0xFF) + (p[down + 1] & 0xFF))
+						- ((p[up - 1] & 0xFF) + 2 * (p[i - 1] & 0xFF) + (p[down - 1] & 0xFF));
+				int iy = ((p[down - 1] & 0xFF) + 2 * (p[down] & 0xFF) + (p[down + 1] & 0xFF))
+						- ((p[up - 1] & 0xFF) + 2 * (p[up] & 0xFF) + (p[up + 1] & 0xFF));
+				a += ix * ix;
+				b += iy * iy;
+				c += ix * iy;
+			}
+		}
+		// Normalize gradients to [0, 1] so responses are comparable between images
+		double scale = 1.0 / (4 * HARRIS_BLOCK * 255);
+		scale = scale * scale * scale * scale;
+		return (float)(((a * b - c * c) - HARRIS_K * (a + b) * (a + b)) * scale);
+	}
+
+	/**
+	 * @return angle in degrees [0, 360) from the center to the intensity centroid
+	 * of the circular patch
+	 */
+	static float intensityCentroidAngle(byte[] p, int stride, int x, int y){
+		int m01 = 0, m10 = 0;
+		int center = y * stride + x;
+
+		// Center row
+		for (int u = -HALF_PATCH; u <= HALF_PATCH; ++u)
+			m10 += u * (p[center + u] & 0xFF);
+
+		// Rows above and below at the same time
+		for (int v = 1; v <= HALF_PATCH; ++v){
+			int d = sCircleHalfWidth[v];
+			int sumV = 0;
+			for (int u = -d; u <= d; ++u){
+				int below = p[center + v * stride + u] & 0xFF;
+				int above = p[center - v * stride + u] & 0xFF;
+				sumV += below - above;
+				m10 += u * (below + above);
+			}
+			m01 += v * sumV;
+		}
+		float angle = (float)Math.toDegrees(Math.atan2(m01, m10));
+		return angle < 0 ? angle + 360f : angle;
+	}
+
+	/**
+	 * @return level blurred with a separable 7 tap binomial kernel, borders replicated.
+	 * The array comes from the ByteArrayPool.
+	 */
+	static byte[] smooth(GrayImage level){
+		int w = level.getWidth();
+		int h = level.getHeight();
+		byte[] src = level.getPixels();
+		int[] tmp = new int[w * h];
+		byte[] dst = ByteArrayPool.acquire(w * h);
+		final int[] k = { 1, 6, 15, 20, 15, 6, 1 };
+
+		for (int y = 0; y < h; ++y){
+			int row = y * w;
+			for (int x = 0; x < w; ++x){
+				int sum = 0;
+				for (int j = 0; j < 7; ++j){
+					int xx = Math.max(0, Math.min(w - 1, x + j - 3));
+					sum += k[j] * (src[row + xx] & 0xFF);
+				}
+				tmp[row + x] = sum;
+			}
+		}
+		for (int y = 0; y < h; ++y){
+			for (int x = 0; x < w; ++x){
+				int sum = 0;
+				for (int j = 0; j < 7; ++j){
+					int yy = Math.max(0, Math.min(h - 1, y + j - 3));
+					sum += k[j] * tmp[yy * w + x];
+				}
+				dst[y * w + x] = (byte)((sum + 2048) >> 12);
+			}
+		}
+		return dst;
+	}
+
+	/**
+	 * Builds the BRIEF test pairs from an isotropic Gaussian (BRIEF sampling 
+	 * strategy G II) with a fixed seed, then rotates them into every orientation
+	 */
+	private static int[][] buildRotatedPatterns(){
+		Random random = new Random(PATTERN_SEED);
+		double sigma = PATCH_SIZE / 5.0;
+		int[] base = new int[BinaryDescriptors.BITS * 4];
+		for (int t = 0; t < BinaryDescriptors.BITS; ++t){
+			do {
+				for (int j = 0; j < 4; ++j){
+					long v = Math.round(random.nextGaussian() * sigma);
+					base[4 * t + j] = (int)Math.max(-PATTERN_RADIUS, Math.min(PATTERN_RADIUS, v));
+				}
+			} while (base[4 * t] == base[4 * t + 2] && base[4 * t + 1] == base[4 * t + 3]);
+		}
+
+		int[][] patterns = new int[PATTERN_ROTATIONS][BinaryDescriptors.BITS * 4];
+		for (int r = 0; r < PATTERN_ROTATIONS; ++r){
+			double theta = Math.toRadians(r * 360.0 / PATTERN_ROTATIONS);
+			double cos = Math.cos(theta);
+			double sin = Math.sin(theta);
+			for (int i = 0; i < base.length; i += 2){
+				double x = base[i];
+				double y = base[i + 1];
+				patterns[r][i] = (int)Math.round(x * cos - y * sin);
+				patterns[r][i + 1] = (int)Math.round(x * sin + y * cos);
+			}
+		}
+		return patterns;
+	}
+
+	private static int[] buildCircleHalfWidths(){
+		int[] halfWidth = new int[HALF_PATCH + 1];
+		for (int v = 0; v <= HALF_PATCH; ++v)
+			halfWidth[v] = (int)Math.floor(Math.sqrt((double)HALF_PATCH * HALF_PATCH - v * v));
+		return halfWidth;
+	}
+}
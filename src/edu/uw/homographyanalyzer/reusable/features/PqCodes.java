@@ -0,0 +1,64 @@
+package edu.uw.homographyanalyzer.reusable.features;
+
+/**
+ * Float descriptors compressed by a ProductQuantizer, one byte per subspace.
+ * Code i occupies [i * getCodeBytes(), (i + 1) * getCodeBytes()), byte s is
+ * the index of the closest centroid of subspace s.
+ */
+public class PqCodes {
+
+	private final byte[] mCodes;
+	private final int mCount;
+	private final int mCodeBytes;
+
+	/**
+	 * @param codes row major codes, not copied
+	 * @param count number of codes
+	 * @param codeBytes bytes per code, the number of subspaces
+	 */
+	public PqCodes(byte[] codes, int count, int codeBytes){
+		if (count < 0 || codeBytes <= 0 || codes.length < count * codeBytes)
+			throw new IllegalArgumentException("Illegal code matrix " + count + "x" + codeBytes
+					+ " for " + codes.length + " bytes");
+		mCodes = codes;
+		mCount = count;
+		mCodeBytes = codeBytes;
+	}
+
+	/**
+	 * @return number of codes
+	 */
+	public int size(){
+		return mCount;
+	}
+
+	/**
+	 * @return bytes per code
+	 */
+	public int getCodeBytes(){
+		return mCodeBytes;
+	}
+
+	/**
+	 * @return backing array, code i starts at i * getCodeBytes()
+	 */
+	public byte[] getCodes(){
+		return mCodes;
+	}
+
+	/**
+	 * Asymmetric distance, the sum of the table entries the code selects
+	 * @param table distances of one query to every centroid as computed by
+	 * 			ProductQuantizer.computeTable
+	 * @param i index of the code
+	 * @return approximate squared Euclidean distance between query and code i
+	 */
+	public float distance(float[] table, int i){
+		byte[] codes = mCodes;
+		int base = i * mCodeBytes;
+		float sum = 0;
+		for (int s = 0, t = 0; s < mCodeBytes; ++s, t += ProductQuantizer.CENTROIDS)
+			sum += table[t + (codes[base + s] & 0xFF)];
+		return sum;
+	}
+}
@@ -0,0 +1,273 @@
+package edu.uw.homographyanalyzer.reusable.features;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+/**
+ * Product quantization of float descriptors, for example SIFT or SURF.
+ *
+ * Descriptors are split into getCodeBytes() subspaces of equal width and
+ * every subspace is quantized with its own codebook of up to CENTROIDS
+ * centroids found by k-means.  A 128 float SIFT descriptor (512 bytes) is
+ * stored as an 8 or 16 byte code.
+ *
+ * Queries stay uncompressed.  For a query the distance to every centroid of
+ * every subspace is computed once into a table, the distance to a code is
+ * then the sum of getCodeBytes() table entries (asymmetric distance
+ * computation) instead of a full descriptor comparison.
+ *
+ * Codebooks are read only once trained, a quantizer can be shared.
+ */
+public class ProductQuantizer {
+
+	public static final int DEFAULT_CODE_BYTES = 16;
+	// Centroids per subspace, a code byte indexes one of them
+	public static final int CENTROIDS = 256;
+
+	// Lloyd iterations of k-means
+	private static final int ITERATIONS = 12;
+	// Training is capped to this many descriptors
+	private static final int MAX_TRAINING_SAMPLES = 4096;
+	// Codebooks are reproducible for the same training descriptors
+	private static final long SEED = 0x5EEDL;
+
+	private final int mDims;
+	private final int mSubspaces;
+	private final int mSubDims;
+	private final int mCentroids;
+	// mCodebooks[s] holds mCentroids centroids of mSubDims floats, row major
+	private final float[][] mCodebooks;
+
+	private ProductQuantizer(int dims, int subspaces, int centroids, float[][] codebooks){
+		mDims = dims;
+		mSubspaces = subspaces;
+		mSubDims = dims / subspaces;
+		mCentroids = centroids;
+		mCodebooks = codebooks;
+	}
+
+	/**
+	 * Trains the codebooks, subspaces are trained concurrently on the
+	 * FeatureThreadPool
+	 * @param samples descriptors representative of the ones to encode
+	 * @param codeBytes bytes per code, must divide the descriptor dimensions
+	 * @return trained quantizer
+	 */
+	public static ProductQuantizer train(final FloatDescriptors samples, int codeBytes){
+		final int dims = samples.getDims();
+		if (codeBytes <= 0 || dims % codeBytes != 0)
+			throw new IllegalArgumentException(codeBytes + " byte codes do not divide "
+					+ dims + " dimensions");
+		if (samples.size() == 0)
+			throw new IllegalArgumentException("No training descriptors");
+
+		// Evenly spaced subset so training cost is bounded
+		final int n = Math.min(samples.size(), MAX_TRAINING_SAMPLES);
+		final int[] rows = new int[n];
+		for (int i = 0; i < n; ++i)
+			rows[i] = (int)((long) i * samples.size() / n);
+		final int subDims = dims / codeBytes;
+		final int centroids = Math.min(CENTROIDS, n);
+
+		List<Callable<float[]>> jobs = new ArrayList<Callable<float[]>>(codeBytes);
+		for (int s = 0; s < codeBytes; ++s){
+			final int offset = s * subDims;
+			final long seed = SEED + s;
+			jobs.add(new Callable<float[]>() {
+				@Override
+				public float[] call() {
+					float[] points = new float[n * subDims];
+					float[] data = samples.getData();
+					for (int i = 0; i < n; ++i)
+						System.arraycopy(data, rows[i] * dims + offset, points, i * subDims, subDims);
+					return kMeans(points, n, subDims, centroids, new Random(seed));
+				}
+			});
+		}
+		List<float[]> codebooks = FeatureThreadPool.invokeAll(jobs);
+		return new ProductQuantizer(dims, codeBytes, centroids,
+				codebooks.toArray(new float[codeBytes][]));
+	}
+
+	/**
+	 * @return bytes per code, the number of subspaces
+	 */
+	public int getCodeBytes(){
+		return mSubspaces;
+	}
+
+	/**
+	 * @return dimensions of the descriptors this quantizer encodes
+	 */
+	public int getDims(){
+		return mDims;
+	}
+
+	/**
+	 * Compresses descriptors, rows are split across the FeatureThreadPool
+	 * @param descriptors descriptors with getDims() dimensions
+	 * @return one code per descriptor
+	 */
+	public PqCodes encode(final FloatDescriptors descriptors){
+		checkDims(descriptors);
+		final int count = descriptors.size();
+		final byte[] codes = new byte[count * mSubspaces];
+		FeatureThreadPool.runBands(0, count, new FeatureThreadPool.BandTask() {
+			@Override
+			public void run(int band, int start, int end) {
+				float[] data = descriptors.getData();
+				for (int i = start; i < end; ++i){
+					for (int s = 0; s < mSubspaces; ++s){
+						int c = closest(mCodebooks[s], mCentroids, mSubDims,
+								data, i * mDims + s * mSubDims);
+						codes[i * mSubspaces + s] = (byte) c;
+					}
+				}
+			}
+		});
+		return new PqCodes(codes, count, mSubspaces);
+	}
+
+	/**
+	 * Computes the squared distances of one query to every centroid
+	 * @param query uncompressed descriptors
+	 * @param q index of the query descriptor
+	 * @param table output, getCodeBytes() * CENTROIDS entries, the distance to
+	 * 			centroid c of subspace s is at s * CENTROIDS + c
+	 */
+	public void computeTable(FloatDescriptors query, int q, float[] table){
+		float[] data = query.getData();
+		for (int s = 0; s < mSubspaces; ++s){
+			float[] codebook = mCodebooks[s];
+			int base = q * mDims + s * mSubDims;
+			for (int c = 0; c < mCentroids; ++c){
+				float sum = 0;
+				for (int d = 0, cb = c * mSubDims; d < mSubDims; ++d){
+					float diff = data[base + d] - codebook[cb + d];
+					sum += diff * diff;
+				}
+				table[s * CENTROIDS + c] = sum;
+			}
+		}
+	}
+
+	/**
+	 * Finds for every query descriptor the closest code by asymmetric
+	 * distance, queries are split across the FeatureThreadPool
+	 *
+	 * @param query uncompressed descriptors to find matches for
+	 * @param codes compressed descriptors to search, encoded by this quantizer
+	 * @param trainIdx output, index of the closest code or -1 if codes is
+	 * 			empty, length >= query.size()
+	 * @param distances output, approximate squared Euclidean distance to the
+	 * 			closest code, length >= query.size()
+	 */
+	public void match(final FloatDescriptors query, final PqCodes codes,
+			final int[] trainIdx, final float[] distances){
+		checkDims(query);
+		if (codes.getCodeBytes() != mSubspaces)
+			throw new IllegalArgumentException(codes.getCodeBytes()
+					+ " byte codes were not encoded by this quantizer");
+		final int n = codes.size();
+		FeatureThreadPool.runBands(0, query.size(), new FeatureThreadPool.BandTask() {
+			@Override
+			public void run(int band, int start, int end) {
+				float[] table = new float[mSubspaces * CENTROIDS];
+				for (int q = start; q < end; ++q){
+					computeTable(query, q, table);
+					int best = -1;
+					float bestDistance = Float.MAX_VALUE;
+					for (int t = 0; t < n; ++t){
+						float d = codes.distance(table, t);
+						if (d < bestDistance){
+							bestDistance = d;
+							best = t;
+						}
+					}
+					trainIdx[q] = best;
+					distances[q] = bestDistance;
+				}
+			}
+		});
+	}
+
+	private void checkDims(FloatDescriptors descriptors){
+		if (descriptors.getDims() != mDims)
+			throw new IllegalArgumentException("Descriptors have " + descriptors.getDims()
+					+ " dimensions, quantizer has " + mDims);
+	}
+
+	/**
+	 * Lloyd's k-means seeded with distinct random points
+	 * @param points n points of dims floats, row major
+	 * @return k centroids of dims floats, row major
+	 */
+	private static float[] kMeans(float[] points, int n, int dims, int k, Random random){
+		float[] centroids = new float[k * dims];
+		// Partial shuffle picks k distinct points
+		int[] order = new int[n];
+		for (int i = 0; i < n; ++i) order[i] = i;
+		for (int c = 0; c < k; ++c){
+			int j = c + random.nextInt(n - c);
+			int t = order[c]; order[c] = order[j]; order[j] = t;
+			System.arraycopy(points, order[c] * dims, centroids, c * dims, dims);
+		}
+
+		int[] assignment = new int[n];
+		double[] sums = new double[k * dims];
+		int[] counts = new int[k];
+		for (int it = 0; it < ITERATIONS; ++it){
+			boolean changed = it == 0;
+			for (int i = 0; i < n; ++i){
+				int c = closest(centroids, k, dims, points, i * dims);
+				if (c != assignment[i]){
+					assignment[i] = c;
+					changed = true;
+				}
+			}
+			if (!changed) break;
+
+			Arrays.fill(sums, 0);
+			Arrays.fill(counts, 0);
+			for (int i = 0; i < n; ++i){
+				int c = assignment[i];
+				counts[c]++;
+				for (int d = 0; d < dims; ++d)
+					sums[c * dims + d] += points[i * dims + d];
+			}
+			for (int c = 0; c < k; ++c){
+				if (counts[c] == 0){
+					// Empty cluster takes over a random point
+					System.arraycopy(points, random.nextInt(n) * dims, centroids, c * dims, dims);
+					continue;
+				}
+				for (int d = 0; d < dims; ++d)
+					centroids[c * dims + d] = (float)(sums[c * dims + d] / counts[c]);
+			}
+		}
+		return centroids;
+	}
+
+	/**
+	 * @return index of the centroid closest to the dims floats of data at offset
+	 */
+	private static int closest(float[] centroids, int k, int dims, float[] data, int offset){
+		int best = 0;
+		float bestDistance = Float.MAX_VALUE;
+		for (int c = 0, cb = 0; c < k; ++c, cb += dims){
+			float sum = 0;
+			for (int d = 0; d < dims && sum < bestDistance; ++d){
+				float diff = data[offset + d] - centroids[cb + d];
+				sum += diff * diff;
+			}
+			if (sum < bestDistance){
+				bestDistance = sum;
+				best = c;
+			}
+		}
+		return best;
+	}
+}
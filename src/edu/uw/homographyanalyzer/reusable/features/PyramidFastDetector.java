@@ -0,0 +1,53 @@
+package edu.uw.homographyanalyzer.reusable.features;
+
+/**
+ * Runs FAST on every level of a shared ImagePyramid.  Key points are
+ * reported in coordinates of level 0 with octave set to the level they 
+ * were found on.
+ * 
+ * Not thread safe, use one instance per thread.
+ */
+public class PyramidFastDetector {
+
+	private final FastDetector mFast;
+	private final KeyPointBuffer mLevelPoints;
+	private FeatureMask mMask;
+
+	public PyramidFastDetector(){
+		this(new FastDetector());
+	}
+
+	/**
+	 * @param fast detector run on each level
+	 */
+	public PyramidFastDetector(FastDetector fast){
+		mFast = fast;
+		mLevelPoints = new KeyPointBuffer();
+	}
+
+	/**
+	 * Restricts detection to a region of interest
+	 * @param mask mask in level 0 coordinates, null to search the whole image
+	 */
+	public void setMask(FeatureMask mask){
+		mMask = mask;
+	}
+
+	/**
+	 * @param pyramid pyramid to search, levels are built if they are missing
+	 * @param keyPoints output, cleared first
+	 */
+	public void detect(ImagePyramid pyramid, KeyPointBuffer keyPoints){
+		keyPoints.clear();
+		for (int l = 0; l < pyramid.getNumLevels(); ++l){
+			mFast.setMask(mMask, 1 << l);
+			mFast.detect(pyramid.getLevel(l), mLevelPoints);
+			float scale = ImagePyramid.getScale(l);
+			for (int i = 0; i < mLevelPoints.size(); ++i){
+				keyPoints.add(mLevelPoints.getX(i) * scale, mLevelPoints.getY(i) * scale,
+						FastDetector.KEYPOINT_SIZE * scale, -1f,
+						mLevelPoints.getResponse(i), l);
+			}
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package edu.uw.homographyanalyzer.tools;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.opencv.android.Utils;
+import org.opencv.core.Mat;
+
+import android.graphics.Bitmap;
+
+/**
+ * Process wide pool of mutable Bitmaps keyed by size and config.
+ *
+ * Runs at the same resolution render into the same few buffers, obtain 
+ * hands out a returned Bitmap before it allocates.  Bitmaps are never 
+ * recycled by the pool, a Bitmap must only be released once nothing reads 
+ * it anymore, its pixels will be overwritten by the next obtain.
+ *
+ * @author mhotan
+ */
+public final class BitmapPool {
+
+	// Free Bitmaps kept per size and config
+	private static final int MAX_PER_SIZE = 4;
+	// Free Bitmaps kept in total
+	private static final int MAX_BYTES = 16 * 1024 * 1024;
+
+	private static final Map<String, LinkedList<Bitmap>> sFree = 
+			new HashMap<String, LinkedList<Bitmap>>();
+	private static int sBytes;
+
+	private BitmapPool(){}
+
+	/**
+	 * @return mutable Bitmap with undefined content
+	 */
+	public static Bitmap obtain(int width, int height, Bitmap.Config config){
+		synchronized (sFree){
+			LinkedList<Bitmap> free = sFree.get(key(width, height, config));
+			if (free != null && !free.isEmpty()){
+				Bitmap b = free.removeFirst();
+				sBytes -= byteSize(b);
+				return b;
+			}
+		}
+		return Bitmap.createBitmap(width, height, config);
+	}
+
+	/**
+	 * Converts mat into a pooled ARGB_8888 Bitmap
+	 * @param mat CV_8UC1, CV_8UC3 or CV_8UC4 image
+	 * @return Bitmap of the size of mat
+	 */
+	public static Bitmap fromMat(Mat mat){
+		Bitmap b = obtain(mat.cols(), mat.rows(), Bitmap.Config.ARGB_8888);
+		Utils.matToBitmap(mat, b);
+		return b;
+	}
+
+	/**
+	 * Returns b to the pool, dropped if the pool is full
+	 * @param b Bitmap nothing reads anymore, null is ignored
+	 */
+	public static void release(Bitmap b){
+		if (b == null || b.isRecycled() || !b.isMutable()) return;
+		int bytes = byteSize(b);
+		synchronized (sFree){
+			if (sBytes + bytes > MAX_BYTES) return;
+			String key = key(b.getWidth(), b.getHeight(), b.getConfig());
+			LinkedList<Bitmap> free = sFree.get(key);
+			if (free == null){
+				free = new LinkedList<Bitmap>();
+				sFree.put(key, free);
+			}
+			if (free.size() >= MAX_PER_SIZE || free.contains(b)) return;
+			free.add(b);
+			sBytes += bytes;
+		}
+	}
+
+	/**
+	 * Drops all free Bitmaps
+	 */
+	public static void clear(){
+		synchronized (sFree){
+			sFree.clear();
+			sBytes = 0;
+		}
+	}
+
+	private static String key(int width, int height, Bitmap.Config config){
+		return width + "x" + height + " " + config;
+	}
+
+	private static int byteSize(Bitmap b){
+		return b.getRowBytes() * b.getHeight();
+	}
+}
@@ -0,0 +1,320 @@
+package edu.uw.homographyanalyzer.tools;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.opencv.core.Mat;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Looper;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+/**
+ * Process wide, byte budgeted cache of Bitmaps and Mats.
+ *
+ * Entries are accounted by the bytes of their pixels.  Once the budget is
+ * exceeded the least recently used entries are evicted: they are queued to
+ * the OutputWriter if a disk directory is set and read back on the next get.
+ * Reading back touches the disk, on the main thread only entries still in
+ * memory are returned.
+ *
+ * Evicted Mats are released once they are written, their native memory is
+ * not left to the finalizer.  Evicted Bitmaps are not recycled because a 
+ * view may still draw them, their pixels are freed when the Bitmap is 
+ * collected.  A Mat returned by getMat is valid until its entry is evicted
+ * or removed, clone it to keep it longer.
+ *
+ * @author mhotan
+ */
+public final class ImageCache {
+
+	private static final String TAG = "ImageCache";
+
+	private static final String SPILL_PREFIX = "entry_";
+	// Share of the maximum heap used when no budget is set
+	private static final int DEFAULT_HEAP_DIVISOR = 4;
+
+	private static Cache sCache;
+	// Directory evicted entries are written to, null to drop them
+	private static File sDiskDir;
+	// Key of every entry on disk and its file
+	private static final Map<String, Spilled> sSpilled = new HashMap<String, Spilled>();
+	// Names files in sDiskDir uniquely
+	private static int sSpillCount;
+	// Makes keys of newKey unique
+	private static int sKeyCount;
+
+	private ImageCache(){}
+
+	/**
+	 * Entry on disk, written in the background
+	 */
+	private static class Spilled {
+		private final String mPath;
+		private final boolean mIsMat;
+		private final Future<?> mWritten;
+
+		private Spilled(String path, boolean isMat, Future<?> written){
+			mPath = path;
+			mIsMat = isMat;
+			mWritten = written;
+		}
+	}
+
+	private static class Cache extends LruCache<String, Object> {
+
+		public Cache(int maxBytes){
+			super(maxBytes);
+		}
+
+		@Override
+		protected int sizeOf(String key, Object value){
+			return byteSize(value);
+		}
+
+		@Override
+		protected void entryRemoved(boolean evicted, String key, Object oldValue, Object newValue){
+			// Replaced and removed entries belong to the caller again
+			if (evicted) evict(key, oldValue);
+		}
+	}
+
+	private static synchronized Cache cache(){
+		if (sCache == null){
+			long bytes = Runtime.getRuntime().maxMemory() / DEFAULT_HEAP_DIVISOR;
+			sCache = new Cache((int) Math.min(Integer.MAX_VALUE, bytes));
+		}
+		return sCache;
+	}
+
+	/**
+	 * Sets the number of bytes the cache keeps in memory, entries over the
+	 * new budget are evicted right away
+	 * @param maxBytes budget in bytes
+	 */
+	public static synchronized void setBudget(int maxBytes){
+		if (maxBytes <= 0)
+			throw new IllegalArgumentException("Illegal budget " + maxBytes);
+		Cache old = sCache;
+		sCache = new Cache(maxBytes);
+		if (old == null) return;
+		// Most recently used last, so they survive the new budget
+		for (Map.Entry<String, Object> e : old.snapshot().entrySet())
+			sCache.put(e.getKey(), e.getValue());
+	}
+
+	/**
+	 * @return budget in bytes
+	 */
+	public static int getBudget(){
+		return cache().maxSize();
+	}
+
+	/**
+	 * @return bytes currently kept in memory
+	 */
+	public static int getSize(){
+		return cache().size();
+	}
+
+	/**
+	 * Sets the directory evicted entries are written to, entries left there
+	 * by an earlier process are deleted
+	 * @param directory created if missing, null to drop evicted entries
+	 */
+	public static synchronized void setDiskDirectory(File directory){
+		if (directory != null && !directory.isDirectory() && !directory.mkdirs())
+			throw new IllegalArgumentException("Can not create " + directory);
+		if (directory != null && sDiskDir == null && sSpillCount == 0){
+			File[] files = directory.listFiles();
+			if (files != null)
+				for (File f : files)
+					if (f.getName().startsWith(SPILL_PREFIX)) f.delete();
+		}
+		sDiskDir = directory;
+	}
+
+	/**
+	 * @param prefix describes the entry, for example its owner
+	 * @return a key that was not handed out before
+	 */
+	public static synchronized String newKey(String prefix){
+		return prefix + "#" + (sKeyCount++);
+	}
+
+	/**
+	 * Caches image, the cache owns it from now on
+	 */
+	public static void putBitmap(String key, Bitmap image){
+		put(key, image);
+	}
+
+	/**
+	 * Caches mat, the cache owns it from now on and releases it on eviction
+	 */
+	public static void putMat(String key, Mat mat){
+		put(key, mat);
+	}
+
+	/**
+	 * @return cached image, read back from disk if it was evicted, null if
+	 * 			unknown or evicted and called on the main thread
+	 */
+	public static Bitmap getBitmap(String key){
+		Object value = get(key);
+		return value instanceof Bitmap ? (Bitmap) value : null;
+	}
+
+	/**
+	 * @return cached Mat, read back from disk if it was evicted, null if 
+	 * 			unknown or evicted and called on the main thread
+	 */
+	public static Mat getMat(String key){
+		Object value = get(key);
+		return value instanceof Mat ? (Mat) value : null;
+	}
+
+	/**
+	 * @return true if key is cached in memory or on disk
+	 */
+	public static boolean contains(String key){
+		if (key == null) return false;
+		synchronized (sSpilled){
+			if (sSpilled.containsKey(key)) return true;
+		}
+		return cache().snapshot().containsKey(key);
+	}
+
+	/**
+	 * Forgets key, a Mat is released, the file of an evicted entry deleted
+	 */
+	public static void remove(String key){
+		if (key == null) return;
+		Object value = cache().remove(key);
+		if (value instanceof Mat) MatTracker.release((Mat) value);
+		deleteSpilled(key);
+	}
+
+	/**
+	 * Forgets every entry
+	 */
+	public static void clear(){
+		Map<String, Object> entries = cache().snapshot();
+		for (String key : entries.keySet())
+			remove(key);
+		String[] spilled;
+		synchronized (sSpilled){
+			spilled = sSpilled.keySet().toArray(new String[sSpilled.size()]);
+		}
+		for (String key : spilled)
+			deleteSpilled(key);
+	}
+
+	private static void put(String key, Object value){
+		if (key == null || value == null)
+			throw new IllegalArgumentException("NULL entry");
+		deleteSpilled(key);
+		Object old = cache().put(key, value);
+		if (old instanceof Mat && old != value) MatTracker.release((Mat) old);
+	}
+
+	private static Object get(String key){
+		if (key == null) return null;
+		Object value = cache().get(key);
+		if (value != null) return value;
+
+		if (Looper.myLooper() == Looper.getMainLooper()){
+			boolean spilled;
+			synchronized (sSpilled){
+				spilled = sSpilled.containsKey(key);
+			}
+			if (spilled) Log.e(TAG, "Evicted " + key + " is not read back on the main thread");
+			return null;
+		}
+		Spilled spilled;
+		synchronized (sSpilled){
+			spilled = sSpilled.remove(key);
+		}
+		if (spilled == null) return null;
+		try {
+			spilled.mWritten.get();
+		} catch (InterruptedException e) {
+			return null;
+		} catch (ExecutionException e) {
+			Log.e(TAG, "Evicted " + key + " was not written: " + e.getCause());
+			return null;
+		}
+		value = spilled.mIsMat ? MatCodec.read(spilled.mPath)
+				: BitmapFactory.decodeFile(spilled.mPath);
+		new File(spilled.mPath).delete();
+		if (value == null){
+			Log.e(TAG, "Unable to read back " + key);
+			return null;
+		}
+		cache().put(key, value);
+		return value;
+	}
+
+	/**
+	 * Queues an evicted entry to be written to disk if there is a directory 
+	 * and lets go of it, evictions happen on the thread that puts
+	 */
+	private static void evict(String key, Object value){
+		File dir;
+		String path;
+		synchronized (ImageCache.class){
+			dir = sDiskDir;
+			path = dir == null ? null : new File(dir, SPILL_PREFIX + (sSpillCount++)).getPath();
+		}
+		if (value instanceof Mat){
+			Mat mat = (Mat) value;
+			if (path == null){
+				MatTracker.release(mat);
+				return;
+			}
+			path += MatCodec.Format.RAW.getExtension();
+			putSpilled(key, new Spilled(path, true, 
+					OutputWriter.submitAndRelease(mat, path, MatCodec.Format.RAW, 0)));
+		} else if (path != null){
+			path += ".png";
+			putSpilled(key, new Spilled(path, false, OutputWriter.submit((Bitmap) value, path)));
+		}
+	}
+
+	private static void putSpilled(String key, Spilled spilled){
+		synchronized (sSpilled){
+			sSpilled.put(key, spilled);
+		}
+	}
+
+	private static void deleteSpilled(String key){
+		Spilled spilled;
+		synchronized (sSpilled){
+			spilled = sSpilled.remove(key);
+		}
+		if (spilled == null) return;
+		// Wait for the background write, otherwise it recreates the file
+		try {
+			spilled.mWritten.get();
+		} catch (InterruptedException e) {
+			// Deleted below anyway
+		} catch (ExecutionException e) {
+			// Nothing was written
+		}
+		new File(spilled.mPath).delete();
+	}
+
+	private static int byteSize(Object value){
+		if (value instanceof Bitmap){
+			Bitmap b = (Bitmap) value;
+			return b.getRowBytes() * b.getHeight();
+		}
+		Mat m = (Mat) value;
+		return (int) Math.min(Integer.MAX_VALUE, m.total() * m.elemSize());
+	}
+}
@@ -0,0 +1,298 @@
+package edu.uw.homographyanalyzer.tools;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.opencv.android.Utils;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * Decodes images from files and content URIs at a bounded working resolution.
+ *
+ * The source is opened once.  The header is read from a buffered stream
+ * that is rewound afterwards, the image is decoded with the largest power of
+ * two subsample that still covers the target size and then resampled to the
+ * exact working size.  Peak memory is bounded by the subsampled image
+ * instead of the full camera resolution.
+ *
+ * Targets are applied in the orientation of the image, the long side of the
+ * image is fit to the long side of the target.  Images are never upscaled.
+ *
+ * For analysis the loadRgba variants decode with the same subsample into an
+ * RGBA Mat, the subsampled Bitmap is recycled right after the copy.  The
+ * grayscale plane and the color image for display are both taken from that
+ * one decode.  Bitmap and Mat loads of the same source with the same target
+ * have the same size.
+ *
+ * @author mhotan
+ */
+public final class ImageLoader {
+
+	private static final String TAG = "ImageLoader";
+
+	public static final int DEFAULT_TARGET_WIDTH = 600;
+	public static final int DEFAULT_TARGET_HEIGHT = 800;
+
+	// Headers of the supported formats are read within this many bytes
+	private static final int HEADER_LIMIT = 64 * 1024;
+	private static final int BUFFER_SIZE = 16 * 1024;
+
+	private ImageLoader(){}
+
+	/**
+	 * Source that can be opened again if the header did not fit the buffer
+	 */
+	private interface StreamSource {
+		public InputStream open() throws IOException;
+	}
+
+	/**
+	 * Decodes an image at the default working resolution
+	 * @see #load(ContentResolver, Uri, int, int)
+	 */
+	public static Bitmap load(ContentResolver resolver, Uri uri){
+		return load(resolver, uri, DEFAULT_TARGET_WIDTH, DEFAULT_TARGET_HEIGHT);
+	}
+
+	/**
+	 * Decodes the image of a content URI
+	 * @param resolver resolver to open uri with
+	 * @param uri image to decode
+	 * @param targetWidth width of the working resolution
+	 * @param targetHeight height of the working resolution
+	 * @return ARGB_8888 image fitting the target, or null if it could not be read
+	 */
+	public static Bitmap load(ContentResolver resolver, Uri uri,
+			int targetWidth, int targetHeight){
+		return decode(source(resolver, uri), uri.toString(), targetWidth, targetHeight);
+	}
+
+	/**
+	 * Decodes an image file at the default working resolution
+	 * @see #load(String, int, int)
+	 */
+	public static Bitmap load(String path){
+		return load(path, DEFAULT_TARGET_WIDTH, DEFAULT_TARGET_HEIGHT);
+	}
+
+	/**
+	 * Decodes an image file
+	 * @param path path of the image
+	 * @param targetWidth width of the working resolution
+	 * @param targetHeight height of the working resolution
+	 * @return ARGB_8888 image fitting the target, or null if it could not be read
+	 */
+	public static Bitmap load(String path, int targetWidth, int targetHeight){
+		return decode(source(path), path, targetWidth, targetHeight);
+	}
+
+	/**
+	 * Decodes the image of a content URI to RGBA at the default working 
+	 * resolution
+	 * @see #loadRgba(ContentResolver, Uri, int, int)
+	 */
+	public static Mat loadRgba(ContentResolver resolver, Uri uri){
+		return loadRgba(resolver, uri, DEFAULT_TARGET_WIDTH, DEFAULT_TARGET_HEIGHT);
+	}
+
+	/**
+	 * Decodes the image of a content URI to RGBA
+	 * @param resolver resolver to open uri with
+	 * @param uri image to decode
+	 * @param targetWidth width of the working resolution
+	 * @param targetHeight height of the working resolution
+	 * @return CV_8UC4 image fitting the target, or null if it could not be read
+	 */
+	public static Mat loadRgba(ContentResolver resolver, Uri uri, 
+			int targetWidth, int targetHeight){
+		return decodeRgba(source(resolver, uri), uri.toString(), targetWidth, targetHeight);
+	}
+
+	/**
+	 * Decodes an image file to RGBA at the default working resolution
+	 * @see #loadRgba(String, int, int)
+	 */
+	public static Mat loadRgba(String path){
+		return loadRgba(path, DEFAULT_TARGET_WIDTH, DEFAULT_TARGET_HEIGHT);
+	}
+
+	/**
+	 * Decodes an image file to RGBA
+	 * @param path path of the image
+	 * @param targetWidth width of the working resolution
+	 * @param targetHeight height of the working resolution
+	 * @return CV_8UC4 image fitting the target, or null if it could not be read
+	 */
+	public static Mat loadRgba(String path, int targetWidth, int targetHeight){
+		return decodeRgba(source(path), path, targetWidth, targetHeight);
+	}
+
+	/**
+	 * Largest power of two subsample of a width x height image that still
+	 * covers outWidth x outHeight
+	 */
+	public static int computeSampleSize(int width, int height, int outWidth, int outHeight){
+		int sampleSize = 1;
+		while (width / (sampleSize * 2) >= outWidth && height / (sampleSize * 2) >= outHeight)
+			sampleSize *= 2;
+		return sampleSize;
+	}
+
+	/**
+	 * Working resolution the loaders decode a width x height image to
+	 * @return width x height fit to the target, never upscaled
+	 */
+	public static Size getWorkingSize(int width, int height, int targetWidth, int targetHeight){
+		checkTarget(targetWidth, targetHeight);
+		double scale = fitScale(width, height, targetWidth, targetHeight);
+		return new Size(Math.max(1, Math.round(width * scale)), 
+				Math.max(1, Math.round(height * scale)));
+	}
+
+	private static StreamSource source(final ContentResolver resolver, final Uri uri){
+		return new StreamSource() {
+			@Override
+			public InputStream open() throws IOException {
+				InputStream is = resolver.openInputStream(uri);
+				if (is == null) throw new IOException("No content for " + uri);
+				return is;
+			}
+		};
+	}
+
+	private static StreamSource source(final String path){
+		return new StreamSource() {
+			@Override
+			public InputStream open() throws IOException {
+				return new FileInputStream(path);
+			}
+		};
+	}
+
+	private static void checkTarget(int targetWidth, int targetHeight){
+		if (targetWidth <= 0 || targetHeight <= 0)
+			throw new IllegalArgumentException("Illegal target size " + targetWidth
+					+ "x" + targetHeight);
+	}
+
+	/**
+	 * Scale that fits the long side of a width x height image to the long side
+	 * of the target, never above 1
+	 */
+	private static double fitScale(int width, int height, int targetWidth, int targetHeight){
+		int longTarget = Math.max(targetWidth, targetHeight);
+		int shortTarget = Math.min(targetWidth, targetHeight);
+		return Math.min(1.0, Math.min(
+				(double) longTarget / Math.max(width, height),
+				(double) shortTarget / Math.min(width, height)));
+	}
+
+	/**
+	 * Decodes the image subsampled like decode and copies it to a Mat, the
+	 * Bitmap is recycled before the Mat is resampled
+	 */
+	private static Mat decodeRgba(StreamSource source, String name,
+			int targetWidth, int targetHeight){
+		int[] outSize = new int[2];
+		Bitmap sampled = decodeSampled(source, name, targetWidth, targetHeight, outSize);
+		if (sampled == null) return null;
+		Mat rgba = new Mat();
+		Utils.bitmapToMat(sampled, rgba);
+		int width = sampled.getWidth();
+		int height = sampled.getHeight();
+		sampled.recycle();
+		if (width == outSize[0] && height == outSize[1])
+			return rgba;
+		// Area averaging, the Mat counterpart of filtered scaling
+		Mat resized = new Mat();
+		Imgproc.resize(rgba, resized, new Size(outSize[0], outSize[1]), 0, 0, Imgproc.INTER_AREA);
+		rgba.release();
+		Log.i(TAG, "Loaded " + name + " subsampled to " + width + "x" + height 
+				+ " as " + outSize[0] + "x" + outSize[1]);
+		return resized;
+	}
+
+	private static void close(InputStream is, String name){
+		if (is == null) return;
+		try {
+			is.close();
+		} catch (IOException e) {
+			Log.e(TAG, "Exception when closing " + name + ": " + e);
+		}
+	}
+
+	private static Bitmap decode(StreamSource source, String name,
+			int targetWidth, int targetHeight){
+		int[] outSize = new int[2];
+		Bitmap sampled = decodeSampled(source, name, targetWidth, targetHeight, outSize);
+		if (sampled == null) return null;
+		if (sampled.getWidth() == outSize[0] && sampled.getHeight() == outSize[1])
+			return sampled;
+		Log.i(TAG, "Loaded " + name + " subsampled to " + sampled.getWidth() + "x" 
+				+ sampled.getHeight() + " as " + outSize[0] + "x" + outSize[1]);
+		Bitmap image = Bitmap.createScaledBitmap(sampled, outSize[0], outSize[1], true);
+		if (image != sampled) sampled.recycle();
+		return image;
+	}
+
+	/**
+	 * Decodes the image with the largest power of two subsample that covers
+	 * the working size
+	 * @param outSize output, width and height of the working resolution
+	 * @return ARGB_8888 subsampled image, or null if it could not be read
+	 */
+	private static Bitmap decodeSampled(StreamSource source, String name,
+			int targetWidth, int targetHeight, int[] outSize){
+		checkTarget(targetWidth, targetHeight);
+		InputStream is = null;
+		try {
+			is = new BufferedInputStream(source.open(), BUFFER_SIZE);
+			is.mark(HEADER_LIMIT);
+			BitmapFactory.Options bmpOptions = new BitmapFactory.Options();
+			bmpOptions.inJustDecodeBounds = true;
+			BitmapFactory.decodeStream(is, null, bmpOptions);
+			int width = bmpOptions.outWidth;
+			int height = bmpOptions.outHeight;
+			if (width <= 0 || height <= 0){
+				Log.e(TAG, "Unable to read image header of " + name);
+				return null;
+			}
+			try {
+				is.reset();
+			} catch (IOException e) {
+				// Header was larger then the buffer, only then read twice
+				Log.i(TAG, "Reopening " + name + ", header exceeds " + HEADER_LIMIT + " bytes");
+				is.close();
+				is = new BufferedInputStream(source.open(), BUFFER_SIZE);
+			}
+
+			// Fit the long side of the image to the long side of the target
+			Size working = getWorkingSize(width, height, targetWidth, targetHeight);
+			outSize[0] = (int) working.width;
+			outSize[1] = (int) working.height;
+
+			bmpOptions.inJustDecodeBounds = false;
+			bmpOptions.inSampleSize = computeSampleSize(width, height, outSize[0], outSize[1]);
+			bmpOptions.inPreferredConfig = Bitmap.Config.ARGB_8888;
+			Bitmap sampled = BitmapFactory.decodeStream(is, null, bmpOptions);
+			if (sampled == null)
+				Log.e(TAG, "Unable to decode " + name);
+			return sampled;
+		} catch (IOException e) {
+			Log.e(TAG, "Exception when reading " + name + ": " + e);
+			return null;
+		} finally {
+			close(is, name);
+		}
+	}
+}
@@ -0,0 +1,269 @@
+package edu.uw.homographyanalyzer.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfInt;
+import org.opencv.highgui.Highgui;
+import org.opencv.imgproc.Imgproc;
+
+import android.util.Log;
+
+/**
+ * Writes and reads Mats without going through a Bitmap.
+ *
+ * RAW dumps the elements of any Mat behind a small header and is the
+ * fastest way to keep intermediate results, PNG is lossless with a
+ * selectable compression level, JPEG and WEBP are for previews.
+ *
+ * Mats are in the RGBA order of the pipeline, the encoders of OpenCV expect
+ * BGR(A), the channels are swapped on the way.  Single channel images are
+ * written as they are.
+ *
+ * @author mhotan
+ */
+public final class MatCodec {
+
+	private static final String TAG = "MatCodec";
+
+	private static final int RAW_MAGIC = 0x4841524D; // "HARM"
+	private static final int RAW_VERSION = 1;
+	// magic, version, rows, cols, type
+	private static final int RAW_HEADER_SIZE = 5 * 4;
+
+	public static final int DEFAULT_PNG_COMPRESSION = 3;
+	public static final int DEFAULT_QUALITY = 90;
+
+	/**
+	 * Encodings a Mat can be written with
+	 */
+	public enum Format {
+		RAW(".raw"), PNG(".png"), JPEG(".jpg"), WEBP(".webp");
+
+		private final String mExtension;
+
+		private Format(String extension){
+			mExtension = extension;
+		}
+
+		public String getExtension(){
+			return mExtension;
+		}
+
+		/**
+		 * @return format matching the extension of path, PNG if unknown
+		 */
+		public static Format fromPath(String path){
+			String lower = path.toLowerCase();
+			if (lower.endsWith(".raw")) return RAW;
+			if (lower.endsWith(".jpg") || lower.endsWith(".jpeg")) return JPEG;
+			if (lower.endsWith(".webp")) return WEBP;
+			return PNG;
+		}
+	}
+
+	private MatCodec(){}
+
+	/**
+	 * Writes mat with the format of its extension and default settings
+	 * @see #write(Mat, String, Format, int)
+	 */
+	public static void write(Mat mat, String path) throws IOException {
+		Format format = Format.fromPath(path);
+		write(mat, path, format, format == Format.PNG ? DEFAULT_PNG_COMPRESSION : DEFAULT_QUALITY);
+	}
+
+	/**
+	 * Writes mat to path, atomically replacing an existing file
+	 * @param mat image or any other Mat for RAW
+	 * @param path file to write
+	 * @param format encoding
+	 * @param level PNG compression level 0 - 9, JPEG and WEBP quality 0 - 100,
+	 * 			ignored for RAW
+	 * @throws IOException if mat could not be encoded or written
+	 */
+	public static void write(Mat mat, String path, Format format, int level) throws IOException {
+		if (mat == null || mat.empty())
+			throw new IllegalArgumentException("Empty Mat for " + path);
+		ByteBuffer bytes = format == Format.RAW ? encodeRaw(mat) : encode(mat, format, level);
+		int size = bytes.remaining();
+		OutputWriter.writeFile(new File(path), bytes);
+		Log.i(TAG, "Wrote " + size + " bytes " + format + " to " + path);
+	}
+
+	/**
+	 * Reads a file written by write, images are returned as RGBA or single channel
+	 * @param path file to read
+	 * @return the Mat, or null if it could not be read
+	 */
+	public static Mat read(String path){
+		if (Format.fromPath(path) == Format.RAW)
+			return readRaw(path);
+		Mat bgr = Highgui.imread(path, Highgui.CV_LOAD_IMAGE_UNCHANGED);
+		if (bgr == null || bgr.empty()){
+			Log.e(TAG, "Unable to decode " + path);
+			return null;
+		}
+		int code;
+		if (bgr.channels() == 4) code = Imgproc.COLOR_BGRA2RGBA;
+		else if (bgr.channels() == 3) code = Imgproc.COLOR_BGR2RGBA;
+		else return bgr;
+		Mat rgba = new Mat();
+		Imgproc.cvtColor(bgr, rgba, code);
+		bgr.release();
+		return rgba;
+	}
+
+	private static ByteBuffer encode(Mat mat, Format format, int level) throws IOException {
+		if (mat.depth() != CvType.CV_8U)
+			throw new IllegalArgumentException(format + " needs an 8 bit image");
+		MatOfInt params;
+		switch (format){
+		case PNG:
+			params = new MatOfInt(Highgui.CV_IMWRITE_PNG_COMPRESSION, level);
+			break;
+		case JPEG:
+			params = new MatOfInt(Highgui.CV_IMWRITE_JPEG_QUALITY, level);
+			break;
+		default:
+			params = new MatOfInt(Highgui.CV_IMWRITE_WEBP_QUALITY, level);
+			break;
+		}
+
+		// JPEG has no alpha, PNG and WEBP keep it
+		Mat ordered = mat;
+		if (mat.channels() == 4){
+			ordered = new Mat();
+			Imgproc.cvtColor(mat, ordered, format == Format.JPEG
+					? Imgproc.COLOR_RGBA2BGR : Imgproc.COLOR_RGBA2BGRA);
+		}
+		MatOfByte encoded = new MatOfByte();
+		boolean ok = Highgui.imencode(format.getExtension(), ordered, encoded, params);
+		if (ordered != mat) ordered.release();
+		params.release();
+		if (!ok){
+			encoded.release();
+			throw new IOException("Unable to encode " + format);
+		}
+		ByteBuffer bytes = ByteBuffer.wrap(encoded.toArray());
+		encoded.release();
+		return bytes;
+	}
+
+	private static ByteBuffer encodeRaw(Mat mat){
+		int rows = mat.rows();
+		int cols = mat.cols();
+		int values = rows * cols * mat.channels();
+		ByteBuffer bytes = ByteBuffer.allocate(RAW_HEADER_SIZE + values * (int) mat.elemSize1());
+		bytes.order(ByteOrder.LITTLE_ENDIAN);
+		bytes.putInt(RAW_MAGIC);
+		bytes.putInt(RAW_VERSION);
+		bytes.putInt(rows);
+		bytes.putInt(cols);
+		bytes.putInt(mat.type());
+		switch (mat.depth()){
+		case CvType.CV_8U:
+		case CvType.CV_8S:
+			byte[] b = new byte[values];
+			mat.get(0, 0, b);
+			bytes.put(b);
+			break;
+		case CvType.CV_16U:
+		case CvType.CV_16S:
+			short[] s = new short[values];
+			mat.get(0, 0, s);
+			bytes.asShortBuffer().put(s);
+			break;
+		case CvType.CV_32S:
+			int[] i = new int[values];
+			mat.get(0, 0, i);
+			bytes.asIntBuffer().put(i);
+			break;
+		case CvType.CV_32F:
+			float[] f = new float[values];
+			mat.get(0, 0, f);
+			bytes.asFloatBuffer().put(f);
+			break;
+		default:
+			double[] d = new double[values];
+			mat.get(0, 0, d);
+			bytes.asDoubleBuffer().put(d);
+			break;
+		}
+		bytes.rewind();
+		return bytes;
+	}
+
+	private static Mat readRaw(String path){
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(path, "r");
+			FileChannel channel = raf.getChannel();
+			ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			bytes.order(ByteOrder.LITTLE_ENDIAN);
+			if (bytes.capacity() < RAW_HEADER_SIZE || bytes.getInt() != RAW_MAGIC
+					|| bytes.getInt() != RAW_VERSION){
+				Log.e(TAG, "Not a raw Mat " + path);
+				return null;
+			}
+			int rows = bytes.getInt();
+			int cols = bytes.getInt();
+			int type = bytes.getInt();
+			int values = rows * cols * CvType.channels(type);
+			int elemSize1 = CvType.ELEM_SIZE(type) / CvType.channels(type);
+			if (rows <= 0 || cols <= 0 || bytes.remaining() != values * elemSize1){
+				Log.e(TAG, "Truncated raw Mat " + path);
+				return null;
+			}
+			Mat mat = new Mat(rows, cols, type);
+			switch (CvType.depth(type)){
+			case CvType.CV_8U:
+			case CvType.CV_8S:
+				byte[] b = new byte[values];
+				bytes.get(b);
+				mat.put(0, 0, b);
+				break;
+			case CvType.CV_16U:
+			case CvType.CV_16S:
+				short[] s = new short[values];
+				bytes.asShortBuffer().get(s);
+				mat.put(0, 0, s);
+				break;
+			case CvType.CV_32S:
+				int[] i = new int[values];
+				bytes.asIntBuffer().get(i);
+				mat.put(0, 0, i);
+				break;
+			case CvType.CV_32F:
+				float[] f = new float[values];
+				bytes.asFloatBuffer().get(f);
+				mat.put(0, 0, f);
+				break;
+			default:
+				double[] d = new double[values];
+				bytes.asDoubleBuffer().get(d);
+				mat.put(0, 0, d);
+				break;
+			}
+			return mat;
+		} catch (IOException e) {
+			Log.e(TAG, "Exception when reading " + path + ": " + e);
+			return null;
+		} finally {
+			if (raf != null){
+				try {
+					raf.close();
+				} catch (IOException e) {
+					Log.e(TAG, "Exception when closing " + path + ": " + e);
+				}
+			}
+		}
+	}
+}
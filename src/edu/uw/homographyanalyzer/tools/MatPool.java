@@ -0,0 +1,95 @@
+package edu.uw.homographyanalyzer.tools;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.opencv.core.Mat;
+
+/**
+ * Process wide pool of Mats keyed by size and type.
+ *
+ * Per run buffers, for example warp results, are obtained here and
+ * released once converted, runs at the same resolution then allocate no
+ * native memory.  Mats over the limits of the pool are released for real.
+ *
+ * @author mhotan
+ */
+public final class MatPool {
+
+	// Free Mats kept per size and type
+	private static final int MAX_PER_SIZE = 4;
+	// Free bytes kept in total
+	private static final long MAX_BYTES = 32L * 1024 * 1024;
+
+	private static final Map<String, LinkedList<Mat>> sFree = 
+			new HashMap<String, LinkedList<Mat>>();
+	private static long sBytes;
+
+	private MatPool(){}
+
+	/**
+	 * @return Mat of rows x cols and type with undefined content
+	 */
+	public static Mat obtain(int rows, int cols, int type){
+		synchronized (sFree){
+			LinkedList<Mat> free = sFree.get(key(rows, cols, type));
+			if (free != null && !free.isEmpty()){
+				Mat m = free.removeFirst();
+				sBytes -= byteSize(m);
+				return m;
+			}
+		}
+		return MatTracker.track(new Mat(rows, cols, type), "MatPool");
+	}
+
+	/**
+	 * Returns m to the pool, m is released if the pool is full
+	 * @param m Mat nothing reads anymore, null is ignored
+	 */
+	public static void release(Mat m){
+		if (m == null) return;
+		if (m.empty() || !m.isContinuous()){
+			// Views and empty Mats are not worth keeping
+			MatTracker.release(m);
+			return;
+		}
+		long bytes = byteSize(m);
+		synchronized (sFree){
+			String key = key(m.rows(), m.cols(), m.type());
+			LinkedList<Mat> free = sFree.get(key);
+			if (free == null){
+				free = new LinkedList<Mat>();
+				sFree.put(key, free);
+			}
+			if (free.contains(m)) return;
+			if (sBytes + bytes <= MAX_BYTES && free.size() < MAX_PER_SIZE){
+				free.add(m);
+				sBytes += bytes;
+				return;
+			}
+		}
+		MatTracker.release(m);
+	}
+
+	/**
+	 * Releases all free Mats
+	 */
+	public static void clear(){
+		synchronized (sFree){
+			for (LinkedList<Mat> free : sFree.values())
+				for (Mat m : free)
+					MatTracker.release(m);
+			sFree.clear();
+			sBytes = 0;
+		}
+	}
+
+	private static String key(int rows, int cols, int type){
+		return rows + "x" + cols + " " + type;
+	}
+
+	private static long byteSize(Mat m){
+		return m.total() * m.elemSize();
+	}
+}
@@ -0,0 +1,98 @@
+package edu.uw.homographyanalyzer.tools;
+
+import java.util.ArrayList;
+
+import org.opencv.core.Mat;
+
+/**
+ * Owner of the intermediate Mats of one pipeline stage.
+ *
+ * Intermediates are created through or added to the scope and released
+ * together by close() at the end of the stage, typically in a finally
+ * block.  Results that outlive the stage are handed out with keep().
+ * Every Mat of a scope is tracked by MatTracker under the name of the scope.
+ *
+ * 	MatScope scope = new MatScope("warp");
+ * 	try {
+ * 		Mat tmp = scope.newMat();
+ * 		...
+ * 		return scope.keep(result);
+ * 	} finally {
+ * 		scope.close();
+ * 	}
+ *
+ * @author mhotan
+ */
+public final class MatScope {
+
+	private final String mName;
+	private final ArrayList<Mat> mMats = new ArrayList<Mat>();
+	private boolean mClosed;
+
+	/**
+	 * @param name stage the scope belongs to, reported by MatTracker
+	 */
+	public MatScope(String name){
+		if (name == null)
+			throw new IllegalArgumentException("NULL name");
+		mName = name;
+	}
+
+	/**
+	 * @return empty Mat released with the scope
+	 */
+	public Mat newMat(){
+		return add(new Mat());
+	}
+
+	/**
+	 * @return Mat of rows x cols and type released with the scope
+	 */
+	public Mat newMat(int rows, int cols, int type){
+		return add(new Mat(rows, cols, type));
+	}
+
+	/**
+	 * Makes mat part of the scope, it is released with the scope
+	 * @param mat Mat only this stage uses, null is ignored
+	 * @return mat
+	 */
+	public <T extends Mat> T add(T mat){
+		if (mClosed)
+			throw new IllegalStateException("Scope " + mName + " is closed");
+		if (mat == null) return null;
+		mMats.add(MatTracker.track(mat, mName));
+		return mat;
+	}
+
+	/**
+	 * Takes mat out of the scope, the caller owns it from now on
+	 * @return mat
+	 */
+	public <T extends Mat> T keep(T mat){
+		if (mat == null) return null;
+		for (int i = mMats.size() - 1; i >= 0; --i)
+			if (mMats.get(i) == mat) mMats.remove(i);
+		return mat;
+	}
+
+	/**
+	 * Releases mat now instead of at the end of the scope
+	 */
+	public void release(Mat mat){
+		if (mat == null) return;
+		keep(mat);
+		MatTracker.release(mat);
+	}
+
+	/**
+	 * Releases every Mat of the scope, newest first.  Closing twice does nothing.
+	 */
+	public void close(){
+		if (mClosed) return;
+		mClosed = true;
+		for (int i = mMats.size() - 1; i >= 0; --i)
+			MatTracker.release(mMats.get(i));
+		mMats.clear();
+	}
+}
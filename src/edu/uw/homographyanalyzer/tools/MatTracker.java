@@ -0,0 +1,191 @@
+package edu.uw.homographyanalyzer.tools;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opencv.core.Mat;
+
+import android.util.Log;
+
+/**
+ * Debug bookkeeping of native Mat memory.
+ *
+ * While enabled every tracked Mat remembers the stage and the stack it was
+ * allocated from.  report() logs the Mats that still hold pixel data with
+ * their allocation sites and the live native byte total, and the Mats that
+ * were garbage collected without ever being released, those left their
+ * memory to the finalizer.
+ *
+ * Mats are only weakly referenced, tracking never keeps one alive.  When
+ * disabled track() and untrack() return right away.
+ *
+ * @author mhotan
+ */
+public final class MatTracker {
+
+	private static final String TAG = "MatTracker";
+
+	private static volatile boolean sEnabled;
+
+	// Tracked Mats by the address of their native object
+	private static final Map<Long, Allocation> sLive = new HashMap<Long, Allocation>();
+	private static final ReferenceQueue<Mat> sCollected = new ReferenceQueue<Mat>();
+	// Mats collected without release since the last report, by stage
+	private static final Map<String, Integer> sFinalized = new HashMap<String, Integer>();
+
+	private MatTracker(){}
+
+	/**
+	 * Where a Mat was allocated
+	 */
+	private static class Allocation extends WeakReference<Mat> {
+		private final long mAddress;
+		private final String mStage;
+		private final Throwable mSite;
+
+		private Allocation(Mat mat, String stage){
+			super(mat, sCollected);
+			mAddress = mat.getNativeObjAddr();
+			mStage = stage;
+			mSite = new Throwable("Allocated in " + stage);
+		}
+	}
+
+	/**
+	 * Enables or disables tracking, disabling forgets every tracked Mat
+	 */
+	public static void setEnabled(boolean enabled){
+		sEnabled = enabled;
+		if (!enabled){
+			synchronized (sLive){
+				sLive.clear();
+				sFinalized.clear();
+				while (sCollected.poll() != null);
+			}
+		}
+	}
+
+	public static boolean isEnabled(){
+		return sEnabled;
+	}
+
+	/**
+	 * Records where mat was allocated if tracking is enabled
+	 * @param mat Mat to track, null is ignored
+	 * @param stage name of the pipeline stage that allocated it
+	 * @return mat
+	 */
+	public static <T extends Mat> T track(T mat, String stage){
+		if (!sEnabled || mat == null) return mat;
+		synchronized (sLive){
+			purge();
+			Allocation a = new Allocation(mat, stage);
+			sLive.put(a.mAddress, a);
+		}
+		return mat;
+	}
+
+	/**
+	 * Forgets mat, called when it is released
+	 */
+	public static void untrack(Mat mat){
+		if (!sEnabled || mat == null) return;
+		synchronized (sLive){
+			Allocation a = sLive.remove(mat.getNativeObjAddr());
+			if (a != null) a.clear();
+		}
+	}
+
+	/**
+	 * Releases mat and forgets it
+	 * @param mat Mat to release, null is ignored
+	 */
+	public static void release(Mat mat){
+		if (mat == null) return;
+		untrack(mat);
+		mat.release();
+	}
+
+	/**
+	 * @return number of tracked Mats that still hold pixel data
+	 */
+	public static int getLiveCount(){
+		return live().size();
+	}
+
+	/**
+	 * @return native bytes held by tracked Mats
+	 */
+	public static long getLiveBytes(){
+		long bytes = 0;
+		for (Mat m : live())
+			bytes += m.total() * m.elemSize();
+		return bytes;
+	}
+
+	/**
+	 * Logs every tracked Mat that still holds pixel data with its allocation
+	 * site, the live byte total and the Mats left to the finalizer since the
+	 * last report
+	 */
+	public static void report(){
+		if (!sEnabled) return;
+		List<Allocation> live = new ArrayList<Allocation>();
+		Map<String, Integer> finalized;
+		synchronized (sLive){
+			purge();
+			for (Allocation a : new ArrayList<Allocation>(sLive.values())){
+				Mat m = a.get();
+				if (m == null) continue;
+				// Released by somebody who did not untrack it
+				if (m.dataAddr() == 0) sLive.remove(a.mAddress);
+				else live.add(a);
+			}
+			finalized = new HashMap<String, Integer>(sFinalized);
+			sFinalized.clear();
+		}
+
+		long total = 0;
+		for (Allocation a : live){
+			Mat m = a.get();
+			if (m == null) continue;
+			long bytes = m.total() * m.elemSize();
+			total += bytes;
+			Log.w(TAG, "Unreleased " + m.cols() + "x" + m.rows() + " type " + m.type()
+					+ ", " + bytes + " bytes", a.mSite);
+		}
+		for (Map.Entry<String, Integer> e : finalized.entrySet())
+			Log.w(TAG, e.getValue() + " Mats of " + e.getKey()
+					+ " were left to the finalizer");
+		Log.i(TAG, live.size() + " live Mats holding " + total + " native bytes");
+	}
+
+	/**
+	 * Drops collected Mats, counting them per stage
+	 */
+	private static void purge(){
+		Allocation a;
+		while ((a = (Allocation) sCollected.poll()) != null){
+			if (sLive.get(a.mAddress) != a) continue;
+			sLive.remove(a.mAddress);
+			Integer count = sFinalized.get(a.mStage);
+			sFinalized.put(a.mStage, count == null ? 1 : count + 1);
+		}
+	}
+
+	private static List<Mat> live(){
+		List<Mat> mats = new ArrayList<Mat>();
+		synchronized (sLive){
+			purge();
+			for (Allocation a : sLive.values()){
+				Mat m = a.get();
+				if (m != null && m.dataAddr() != 0) mats.add(m);
+			}
+		}
+		return mats;
+	}
+}
@@ -0,0 +1,255 @@
+package edu.uw.homographyanalyzer.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.opencv.core.Mat;
+
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Write behind queue for rendered results.
+ *
+ * Bitmaps and Mats are encoded and written by background workers, callers get a
+ * Future of the Uri of the written file.  Files are written to a temporary
+ * name through a FileChannel, forced to storage and renamed, readers never
+ * see a partially written output.
+ *
+ * The queue is bounded.  Once QUEUE_CAPACITY writes are pending a background
+ * caller encodes its own output, a batch producing results faster than 
+ * storage takes them is slowed down instead of filling memory with Bitmaps.
+ * The main thread is never made to encode, its writes go to an overflow
+ * worker instead.
+ *
+ * @author mhotan
+ */
+public final class OutputWriter {
+
+	private static final String TAG = "OutputWriter";
+
+	private static final int THREADS = 2;
+	private static final int QUEUE_CAPACITY = 8;
+	// Idle workers exit after this many seconds
+	private static final int KEEP_ALIVE = 30;
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private static ThreadPoolExecutor sExecutor;
+	// Takes the writes the main thread submits while the queue is full
+	private static ExecutorService sOverflow;
+
+	private OutputWriter(){}
+
+	/**
+	 * Encoded bytes, handed to the channel without another copy
+	 */
+	private static class EncodeBuffer extends ByteArrayOutputStream {
+		public EncodeBuffer(int size){
+			super(size);
+		}
+
+		public ByteBuffer wrap(){
+			return ByteBuffer.wrap(buf, 0, count);
+		}
+	}
+
+	private static synchronized ThreadPoolExecutor getExecutor(){
+		if (sExecutor == null){
+			sExecutor = new ThreadPoolExecutor(THREADS, THREADS, KEEP_ALIVE, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY), new WorkerFactory(),
+					new BackPressurePolicy());
+			sExecutor.allowCoreThreadTimeOut(true);
+		}
+		return sExecutor;
+	}
+
+	private static synchronized ExecutorService getOverflow(){
+		if (sOverflow == null)
+			sOverflow = Executors.newSingleThreadExecutor(new WorkerFactory());
+		return sOverflow;
+	}
+
+	/**
+	 * Runs rejected writes in the caller, except on the main thread where 
+	 * they are handed to the overflow worker
+	 */
+	private static class BackPressurePolicy implements RejectedExecutionHandler {
+		@Override
+		public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+			if (executor.isShutdown()) return;
+			if (Looper.myLooper() == Looper.getMainLooper()){
+				Log.i(TAG, "Queue full, overflowing write of the main thread");
+				getOverflow().execute(r);
+			} else 
+				r.run();
+		}
+	}
+
+	/**
+	 * Queues a lossless PNG of bmp
+	 * @see #submit(Bitmap, String, Bitmap.CompressFormat, int)
+	 */
+	public static Future<Uri> submit(Bitmap bmp, String path){
+		return submit(bmp, path, Bitmap.CompressFormat.PNG, 100);
+	}
+
+	/**
+	 * Queues a lossless PNG of bmp and hands bmp to the BitmapPool once it
+	 * is written, the caller gives up bmp
+	 * @see #submit(Bitmap, String, Bitmap.CompressFormat, int)
+	 */
+	public static Future<Uri> submitAndRelease(final Bitmap bmp, final String path){
+		if (bmp == null || path == null)
+			throw new IllegalArgumentException("NULL output");
+		return getExecutor().submit(new Callable<Uri>() {
+			@Override
+			public Uri call() throws IOException {
+				try {
+					return write(bmp, path, Bitmap.CompressFormat.PNG, 100);
+				} finally {
+					BitmapPool.release(bmp);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Queues bmp to be written to path
+	 * @param bmp image to write, must not be modified or recycled until the
+	 * 			returned future is done
+	 * @param path file to write, replaced if it exists
+	 * @param format encoding of the file
+	 * @param quality quality hint of the encoder, 0 - 100
+	 * @return future of the Uri of path, its get() throws an ExecutionException
+	 * 			wrapping the IOException if writing failed
+	 */
+	public static Future<Uri> submit(final Bitmap bmp, final String path,
+			final Bitmap.CompressFormat format, final int quality){
+		if (bmp == null || path == null)
+			throw new IllegalArgumentException("NULL output");
+		return getExecutor().submit(new Callable<Uri>() {
+			@Override
+			public Uri call() throws IOException {
+				return write(bmp, path, format, quality);
+			}
+		});
+	}
+
+	/**
+	 * Queues mat to be written to path without going through a Bitmap
+	 * @param mat image to write, must not be modified or released until the
+	 * 			returned future is done
+	 * @param path file to write, replaced if it exists
+	 * @param format encoding of the file
+	 * @param level compression level or quality, see MatCodec.write
+	 * @return future of the Uri of path
+	 */
+	public static Future<Uri> submit(final Mat mat, final String path,
+			final MatCodec.Format format, final int level){
+		if (mat == null || path == null)
+			throw new IllegalArgumentException("NULL output");
+		return getExecutor().submit(new Callable<Uri>() {
+			@Override
+			public Uri call() throws IOException {
+				MatCodec.write(mat, path, format, level);
+				return Uri.fromFile(new File(path));
+			}
+		});
+	}
+
+	/**
+	 * Queues mat to be written to path and releases it once it is written,
+	 * the caller gives up mat
+	 * @see #submit(Mat, String, MatCodec.Format, int)
+	 */
+	public static Future<Uri> submitAndRelease(final Mat mat, final String path,
+			final MatCodec.Format format, final int level){
+		if (mat == null || path == null)
+			throw new IllegalArgumentException("NULL output");
+		return getExecutor().submit(new Callable<Uri>() {
+			@Override
+			public Uri call() throws IOException {
+				try {
+					MatCodec.write(mat, path, format, level);
+					return Uri.fromFile(new File(path));
+				} finally {
+					MatTracker.release(mat);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Encodes and writes bmp on the calling thread
+	 * @see #submit(Bitmap, String, Bitmap.CompressFormat, int)
+	 * @return Uri of path
+	 * @throws IOException if the file could not be written
+	 */
+	public static Uri write(Bitmap bmp, String path,
+			Bitmap.CompressFormat format, int quality) throws IOException {
+		EncodeBuffer encoded = new EncodeBuffer(bmp.getWidth() * bmp.getHeight());
+		if (!bmp.compress(format, quality, encoded))
+			throw new IOException("Unable to encode " + path);
+
+		File file = new File(path);
+		writeFile(file, encoded.wrap());
+		Log.i(TAG, "Wrote " + encoded.size() + " bytes to " + path);
+		return Uri.fromFile(file);
+	}
+
+	/**
+	 * Writes bytes to a temporary file through a FileChannel, forces it to 
+	 * storage and renames it to file
+	 * @throws IOException if the file could not be written
+	 */
+	static void writeFile(File file, ByteBuffer bytes) throws IOException {
+		File temp = new File(file.getPath() + TEMP_SUFFIX);
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			FileChannel channel = out.getChannel();
+			while (bytes.hasRemaining())
+				channel.write(bytes);
+			channel.force(false);
+		} catch (IOException e) {
+			out.close();
+			temp.delete();
+			throw e;
+		}
+		out.close();
+		if (!temp.renameTo(file)){
+			temp.delete();
+			throw new IOException("Unable to rename " + temp + " to " + file);
+		}
+	}
+
+	/**
+	 * Names the workers and keeps them below the priority of the UI thread
+	 */
+	private static class WorkerFactory implements ThreadFactory {
+		private final AtomicInteger mCount = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, TAG + "-" + mCount.incrementAndGet());
+			t.setDaemon(true);
+			t.setPriority(Thread.NORM_PRIORITY - 1);
+			return t;
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package edu.uw.homographyanalyzer.tools;
+
+import org.opencv.core.Mat;
+
+/**
+ * Reference counted, read only handle to a Mat shared between snapshots.
+ *
+ * Whoever creates or acquires a SharedMat holds one reference and gives it
+ * up with release().  An owned Mat is released as soon as the last
+ * reference is gone, a borrowed Mat belongs to somebody else and is never
+ * released here.
+ *
+ * The Mat returned by view() is not copied and must not be modified, a
+ * consumer that wants to change the pixels asks for copy().
+ *
+ * @author mhotan
+ */
+public final class SharedMat {
+
+	private final Mat mMat;
+	private final boolean mOwned;
+	private int mRefs;
+
+	private SharedMat(Mat mat, boolean owned){
+		if (mat == null)
+			throw new IllegalArgumentException("NULL Mat");
+		mMat = mat;
+		mOwned = owned;
+		mRefs = 1;
+	}
+
+	/**
+	 * Shares mat, it is released with the last reference
+	 * @param mat Mat nobody else modifies or releases from now on
+	 * @return handle holding the first reference, null if mat is null
+	 */
+	public static SharedMat wrap(Mat mat){
+		return mat == null ? null : new SharedMat(mat, true);
+	}
+
+	/**
+	 * Shares mat without taking it over, its owner keeps releasing it
+	 * @param mat Mat that outlives every reference to the handle
+	 * @return handle holding the first reference, null if mat is null
+	 */
+	public static SharedMat borrow(Mat mat){
+		return mat == null ? null : new SharedMat(mat, false);
+	}
+
+	/**
+	 * Adds a reference, the caller releases it when done
+	 * @return this
+	 */
+	public synchronized SharedMat acquire(){
+		checkLive();
+		mRefs++;
+		return this;
+	}
+
+	/**
+	 * Gives up a reference, an owned Mat is released with the last one
+	 */
+	public synchronized void release(){
+		checkLive();
+		if (--mRefs == 0 && mOwned) MatTracker.release(mMat);
+	}
+
+	/**
+	 * @return the shared Mat, valid while a reference is held and must not
+	 * 			be modified
+	 */
+	public synchronized Mat view(){
+		checkLive();
+		return mMat;
+	}
+
+	/**
+	 * @return a deep copy the caller owns and may modify
+	 */
+	public synchronized Mat copy(){
+		checkLive();
+		return mMat.clone();
+	}
+
+	public synchronized int rows(){
+		checkLive();
+		return mMat.rows();
+	}
+
+	public synchronized int cols(){
+		checkLive();
+		return mMat.cols();
+	}
+
+	public synchronized int type(){
+		checkLive();
+		return mMat.type();
+	}
+
+	/**
+	 * @return true once every reference has been released
+	 */
+	public synchronized boolean isReleased(){
+		return mRefs == 0;
+	}
+
+	/**
+	 * Null safe release, for fields being replaced
+	 * @return null
+	 */
+	public static SharedMat release(SharedMat shared){
+		if (shared != null) shared.release();
+		return null;
+	}
+
+	/**
+	 * Null safe acquire, for copying fields into a snapshot
+	 * @return shared, or null
+	 */
+	public static SharedMat acquire(SharedMat shared){
+		return shared == null ? null : shared.acquire();
+	}
+
+	private void checkLive(){
+		if (mRefs == 0)
+			throw new IllegalStateException("SharedMat used after its last release");
+	}
+}
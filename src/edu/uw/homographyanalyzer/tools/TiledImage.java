@@ -0,0 +1,210 @@
+package edu.uw.homographyanalyzer.tools;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opencv.android.Utils;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * Image at its full resolution that is only ever decoded region by region.
+ *
+ * The encoded image is opened once with a BitmapRegionDecoder.  Regions are
+ * decoded on request, optionally subsampled, and handed out as Mats the
+ * caller releases.  Nothing of the size of the whole image is allocated,
+ * memory is bounded by the largest region read.
+ *
+ * Regions use full resolution pixel coordinates and are clipped to the image.
+ *
+ * @author mhotan
+ */
+public class TiledImage {
+
+	private static final String TAG = "TiledImage";
+
+	// Side of the square tiles of getTiles when no size is given
+	public static final int DEFAULT_TILE_SIZE = 512;
+
+	private final BitmapRegionDecoder mDecoder;
+	private final String mName;
+	private final int mWidth;
+	private final int mHeight;
+
+	private TiledImage(BitmapRegionDecoder decoder, String name){
+		mDecoder = decoder;
+		mName = name;
+		mWidth = decoder.getWidth();
+		mHeight = decoder.getHeight();
+	}
+
+	/**
+	 * @param path JPEG or PNG file
+	 * @return tiled image, or null if path can not be region decoded
+	 */
+	public static TiledImage open(String path){
+		if (path == null)
+			throw new IllegalArgumentException("NULL path");
+		try {
+			return new TiledImage(BitmapRegionDecoder.newInstance(path, false), path);
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to region decode " + path + ": " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * @param resolver resolver to open uri with
+	 * @param uri JPEG or PNG content
+	 * @return tiled image, or null if uri can not be region decoded
+	 */
+	public static TiledImage open(ContentResolver resolver, Uri uri){
+		if (uri == null)
+			throw new IllegalArgumentException("NULL uri");
+		InputStream is = null;
+		try {
+			is = resolver.openInputStream(uri);
+			if (is == null) throw new IOException("No content for " + uri);
+			return new TiledImage(BitmapRegionDecoder.newInstance(is, false), uri.toString());
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to region decode " + uri + ": " + e);
+			return null;
+		} finally {
+			if (is != null){
+				try {
+					is.close();
+				} catch (IOException e) {
+					Log.e(TAG, "Exception when closing " + uri + ": " + e);
+				}
+			}
+		}
+	}
+
+	public int getWidth(){
+		return mWidth;
+	}
+
+	public int getHeight(){
+		return mHeight;
+	}
+
+	/**
+	 * Splits the image into a grid of tiles, the last row and column are smaller
+	 * @param tileSize side of the tiles
+	 * @return tiles row by row
+	 */
+	public List<Rect> getTiles(int tileSize){
+		return getTiles(mWidth, mHeight, tileSize);
+	}
+
+	/**
+	 * Splits a width x height area into a grid of tiles
+	 * @see #getTiles(int)
+	 */
+	public static List<Rect> getTiles(int width, int height, int tileSize){
+		if (tileSize <= 0)
+			throw new IllegalArgumentException("Illegal tile size " + tileSize);
+		List<Rect> tiles = new ArrayList<Rect>();
+		for (int y = 0; y < height; y += tileSize)
+			for (int x = 0; x < width; x += tileSize)
+				tiles.add(new Rect(x, y, Math.min(tileSize, width - x),
+						Math.min(tileSize, height - y)));
+		return tiles;
+	}
+
+	/**
+	 * @return region grown by margin on every side and clipped to the image
+	 */
+	public Rect grow(Rect region, int margin){
+		int x = Math.max(0, region.x - margin);
+		int y = Math.max(0, region.y - margin);
+		int right = Math.min(mWidth, region.x + region.width + margin);
+		int bottom = Math.min(mHeight, region.y + region.height + margin);
+		return new Rect(x, y, Math.max(0, right - x), Math.max(0, bottom - y));
+	}
+
+	/**
+	 * Decodes a region to grayscale
+	 * @param region full resolution region, clipped to the image
+	 * @param sampleSize power of two subsample, 1 for full resolution
+	 * @return CV_8UC1 Mat of the clipped region divided by sampleSize,
+	 * 			null if the region is empty or could not be decoded
+	 */
+	public Mat readGray(Rect region, int sampleSize){
+		Mat rgba = readColor(region, sampleSize);
+		if (rgba == null) return null;
+		Mat gray = new Mat();
+		Imgproc.cvtColor(rgba, gray, Imgproc.COLOR_RGBA2GRAY);
+		rgba.release();
+		return gray;
+	}
+
+	/**
+	 * Decodes a region to RGBA
+	 * @see #readGray(Rect, int)
+	 * @return CV_8UC4 Mat, null if the region is empty or could not be decoded
+	 */
+	public Mat readColor(Rect region, int sampleSize){
+		if (sampleSize < 1)
+			throw new IllegalArgumentException("Illegal sample size " + sampleSize);
+		Rect clipped = grow(region, 0);
+		if (clipped.width == 0 || clipped.height == 0) return null;
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inSampleSize = sampleSize;
+		options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+		Bitmap bmp;
+		synchronized (mDecoder){
+			if (mDecoder.isRecycled())
+				throw new IllegalStateException(mName + " is closed");
+			bmp = mDecoder.decodeRegion(new android.graphics.Rect(clipped.x, clipped.y,
+					clipped.x + clipped.width, clipped.y + clipped.height), options);
+		}
+		if (bmp == null){
+			Log.e(TAG, "Unable to decode " + clipped.width + "x" + clipped.height
+					+ " at " + clipped.x + "," + clipped.y + " of " + mName);
+			return null;
+		}
+		Mat rgba = new Mat();
+		Utils.bitmapToMat(bmp, rgba);
+		bmp.recycle();
+		return rgba;
+	}
+
+	/**
+	 * Decodes the whole image at a working resolution, only the subsampled
+	 * image is ever held
+	 * @param width width of the result
+	 * @param height height of the result
+	 * @return CV_8UC4 Mat of width x height, null if it could not be decoded
+	 */
+	public Mat readColor(int width, int height){
+		int sampleSize = ImageLoader.computeSampleSize(mWidth, mHeight, width, height);
+		Mat rgba = readColor(new Rect(0, 0, mWidth, mHeight), sampleSize);
+		if (rgba == null || (rgba.cols() == width && rgba.rows() == height)) 
+			return rgba;
+		Mat resized = new Mat();
+		Imgproc.resize(rgba, resized, new Size(width, height), 0, 0, Imgproc.INTER_AREA);
+		rgba.release();
+		return resized;
+	}
+
+	/**
+	 * Lets go of the decoder, no region can be read afterwards
+	 */
+	public void close(){
+		synchronized (mDecoder){
+			mDecoder.recycle();
+		}
+	}
+}
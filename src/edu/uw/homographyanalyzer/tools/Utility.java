@@ -1,52 +1,49 @@
 package edu.uw.homographyanalyzer.tools;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.IOException;
 
-import org.opencv.android.Utils;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfDMatch;
 import org.opencv.core.MatOfKeyPoint;
 import org.opencv.core.MatOfPoint2f;
-import org.opencv.core.Point;
 import org.opencv.features2d.DMatch;
 import org.opencv.features2d.DescriptorExtractor;
 import org.opencv.features2d.DescriptorMatcher;
 import org.opencv.features2d.Features2d;
-import org.opencv.features2d.KeyPoint;
 import org.opencv.imgproc.Imgproc;
 
 import android.graphics.Bitmap;
 import android.net.Uri;
 import edu.uw.homographyanalyzer.global.GlobalLogger;
+import edu.uw.homographyanalyzer.reusable.FeatureAdapter;
+import edu.uw.homographyanalyzer.reusable.features.KeyPointBuffer;
 
 public class Utility {
 	/*
-	 * Save a bitmap to a file
+	 * Save a bitmap to a file, blocks until it is written.
+	 * Use OutputWriter.submit to write in the background
 	 */
 	public static Uri saveBitmapToFile(Bitmap bmp, String path) {
-		Uri u = null;
 		try {
-			u = null;
-			File f = new File(path);
-			u = Uri.fromFile(f);
-			FileOutputStream out = new FileOutputStream(f);
-			bmp.compress(Bitmap.CompressFormat.PNG, 100, out);
-		} catch (FileNotFoundException e) {
+			return OutputWriter.write(bmp, path, Bitmap.CompressFormat.PNG, 100);
+		} catch (IOException e) {
 			GlobalLogger.getInstance().loge("Couldn't create file: " + path);
 			e.printStackTrace();
+			return null;
 		}
-		return u;
 	}
 
 	/*
-	 * Save a Mat to a file
+	 * Save a Mat to a file, encoded by the extension of path.
+	 * See MatCodec for the formats and OutputWriter to write in the background
 	 */
 	public static void saveMatToFile(Mat mat, String path) {
-		Bitmap bmp = Bitmap.createBitmap(mat.width(), mat.height(),
-				Bitmap.Config.ARGB_8888);
-		Utils.matToBitmap(mat, bmp);
+		try {
+			MatCodec.write(mat, path);
+		} catch (IOException e) {
+			GlobalLogger.getInstance().loge("Couldn't create file: " + path);
+			e.printStackTrace();
+		}
 	}
 
 	/*
@@ -112,20 +109,30 @@ public class Utility {
 
 		// The source of computation
 		DMatch[] descriptors_array = descriptors.toArray();
-		KeyPoint[] ref_kp_array = ref_kp.toArray();
-		KeyPoint[] tgt_kp_array = tgt_kp.toArray();
+		KeyPointBuffer ref_kp_buffer = FeatureAdapter.toKeyPointBuffer(ref_kp);
+		KeyPointBuffer tgt_kp_buffer = FeatureAdapter.toKeyPointBuffer(tgt_kp);
 
-		// The result
-		Point[] ref_pts_array = new Point[descriptors_array.length];
-		Point[] tgt_pts_array = new Point[descriptors_array.length];
+		// The result, x y pairs
+		float[] ref_pts_array = new float[descriptors_array.length * 2];
+		float[] tgt_pts_array = new float[descriptors_array.length * 2];
 
 		for (int i = 0; i < descriptors_array.length; i++) {
-			ref_pts_array[i] = ref_kp_array[descriptors_array[i].trainIdx].pt;
-			tgt_pts_array[i] = tgt_kp_array[descriptors_array[i].queryIdx].pt;
+			int ref = descriptors_array[i].trainIdx;
+			int tgt = descriptors_array[i].queryIdx;
+			ref_pts_array[2 * i] = ref_kp_buffer.getX(ref);
+			ref_pts_array[2 * i + 1] = ref_kp_buffer.getY(ref);
+			tgt_pts_array[2 * i] = tgt_kp_buffer.getX(tgt);
+			tgt_pts_array[2 * i + 1] = tgt_kp_buffer.getY(tgt);
 		}
 		
-		MatOfPoint2f ref_pts = new MatOfPoint2f(ref_pts_array);
-		MatOfPoint2f tgt_pts = new MatOfPoint2f(tgt_pts_array);
+		MatOfPoint2f ref_pts = new MatOfPoint2f();
+		MatOfPoint2f tgt_pts = new MatOfPoint2f();
+		if (descriptors_array.length > 0){
+			ref_pts.alloc(descriptors_array.length);
+			ref_pts.put(0, 0, ref_pts_array);
+			tgt_pts.alloc(descriptors_array.length);
+			tgt_pts.put(0, 0, tgt_pts_array);
+		}
 		
 		MatOfPoint2f[] results = new MatOfPoint2f[2];
 		results[0] = ref_pts;